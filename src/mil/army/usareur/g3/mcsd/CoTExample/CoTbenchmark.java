@@ -0,0 +1,1161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTExample;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+import mil.af.cursorOnTarget.CotEvent;
+import mil.af.cursorOnTarget.DetailSubelement;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTdeduplicator;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTeventScanner;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTeventSink;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTparsedEvent;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTparser;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTpartitionedWorkers;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTringBuffer;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTrouter;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTschemaValidator;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTstringPool;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTtime;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTtakProtocol;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTtcpListener;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTudpListener;
+import mil.army.usareur.g3.mcsd.CotBindings.Track;
+import org.json.JSONObject;
+import org.json.XML;
+
+/**
+ * Simple benchmarks of the CoT listeners and parsers. The benchmarks run in a
+ * single JVM against the loopback interface and print their results to the
+ * console.
+ *
+ * Usage: CoTbenchmark tcp [eventsPerConnection] [handlerMicros]
+ * <br>CoTbenchmark tls [keyStore] [password]
+ * <br>CoTbenchmark parse [events]
+ * <br>CoTbenchmark json [events]
+ * <br>CoTbenchmark encode [events]
+ * <br>CoTbenchmark workers [events] [handlerMicros]
+ * <br>CoTbenchmark route [events]
+ * <br>CoTbenchmark dedup [events]
+ * <br>CoTbenchmark pool [events]
+ * <br>CoTbenchmark time [times]
+ * <br>CoTbenchmark multicast [events]
+ *
+ * tcp - compare the TCP listener modes. For 1 to 1000 concurrent client
+ * connections every connection sends eventsPerConnection events (default 100)
+ * and closes. The CoT event handler optionally blocks for handlerMicros
+ * (default 0) to simulate handlers that write to a database. Throughput and
+ * the 50th and 99th percentile latency from send to handler are reported.
+ *
+ * tls - measure the TLS listener mode with mutual TLS: full handshakes per
+ * second, resumed handshakes per second and the steady-state throughput of a
+ * few long lived connections. The self-signed key store (default
+ * cot-benchmark.jks, password changeit) is created with keytool if it does
+ * not exist; it serves as the certificate of both the listener and the
+ * clients.
+ *
+ * parse - compare parsing the sample event with CotEvent.parse(), where
+ * every detail sub element is serialized with toXml() and unmarshalled again,
+ * to the single-pass CoTstaxParser, to a CoTlazyEvent that only decodes the
+ * track detail and to the CoTeventScanner, which only reads the core
+ * attributes. The sample event is also parsed and scanned as a TAK protocol
+ * message, and validated against the CoT schemas in lib/xsd if the benchmark
+ * runs in the project directory. Each parser handles the given number of
+ * events (default 100000) on one thread.
+ *
+ * json - compare converting the sample event to compact JSON with
+ * org.json.XML, the way CoTparser.parseToJSON() did before, to the streaming
+ * CoTjsonEncoder, which writes into a reused buffer.
+ *
+ * encode - compare the size and the time per event of the JSON from
+ * parseToJSON() to the CBOR and the TAK protobuf encodings of the parsed
+ * sample event, and the time to decode them again.
+ *
+ * workers - parse events of 100 uids on 1 to 8 threads, once from a
+ * CoTringBuffer with several consumers and once from CoTpartitionedWorkers.
+ * Every event carries a sequence number per uid, updates that are handled
+ * after a later update of the same uid are counted as reordered. The CoT
+ * event handler optionally blocks for handlerMicros (default 0).
+ *
+ * route - dispatch events of 16 types to 20 type patterns, half of the
+ * events to none of them. Every event is parsed and its type tested with a
+ * chain of startsWith() checks, or scanned and routed by the CoTrouter,
+ * which drops the unsubscribed events unparsed.
+ *
+ * dedup - receive every event three times, the copies a few events apart as
+ * from multicast, unicast and a relay. Every copy is parsed, or the copies
+ * are dropped by the CoTdeduplicator before the parser.
+ *
+ * pool - read the uid, type and how of events of 2000 uids with the scanner,
+ * once as new Strings and once from the CoTstringPool, and look up the type
+ * description. The time and the bytes allocated per event are reported.
+ *
+ * time - parse and format CoT times with DatatypeConverter and
+ * SimpleDateFormat, the way the TAK protocol codec did before, and with
+ * CoTtime from Strings and from bytes. The time and the bytes allocated per
+ * time are reported.
+ *
+ * multicast - send events alternately to the SA multicast group and a second
+ * group over the loopback interface to a UDP listener that joined both
+ * groups on it. At most 64 events are in flight. The throughput and the
+ * events received per group are reported; all events must arrive.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTbenchmark {
+
+    private static final int BENCHMARK_PORT = 19998;
+    private static final int[] CONNECTION_COUNTS = {1, 10, 100, 1000};
+
+    /**
+     * A parser that records the time from send to handler of every event. The
+     * send time in nanoseconds is carried in the uid of the event.
+     */
+    private static class LatencyParser extends CoTparser {
+
+        private final long[] latencies;
+        private final AtomicInteger received = new AtomicInteger();
+        private final CountDownLatch done;
+        private final long handlerMicros;
+
+        LatencyParser(int expected, long handlerMicros) {
+            this.latencies = new long[expected];
+            this.done = new CountDownLatch(expected);
+            this.handlerMicros = handlerMicros;
+        }
+
+        @Override
+        public void coTeventHandler(String xmlEvent) {
+            long now = System.nanoTime();
+            int start = xmlEvent.indexOf("uid=\"") + 5;
+            long sent = Long.parseLong(xmlEvent.substring(start, xmlEvent.indexOf('"', start)));
+            if (handlerMicros > 0) {
+                try {
+                    TimeUnit.MICROSECONDS.sleep(handlerMicros);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            int i = received.getAndIncrement();
+            if (i < latencies.length) {
+                latencies[i] = now - sent;
+            }
+            done.countDown();
+        }//coTeventHandler
+    }//class LatencyParser
+
+    /**
+     * A parser that parses every event and counts the updates of a uid that
+     * overtook a later update. The uid is unit-n, the access attribute carries
+     * the sequence number of the update.
+     */
+    private static class OrderParser extends CoTparser {
+
+        private final AtomicIntegerArray lastSequence;
+        private final AtomicInteger reordered = new AtomicInteger();
+        private final AtomicInteger received = new AtomicInteger();
+        private final long handlerMicros;
+
+        OrderParser(int uids, long handlerMicros) {
+            this.lastSequence = new AtomicIntegerArray(uids);
+            this.handlerMicros = handlerMicros;
+        }
+
+        @Override
+        public void coTeventHandler(ByteBuffer xmlEvent) {
+            CoTparsedEvent cotEvent;
+            try {
+                cotEvent = parseCoTevent(xmlEvent);
+            } catch (XMLStreamException | JAXBException ex) {
+                Logger.getLogger(CoTbenchmark.class.getName()).log(Level.WARNING, null, ex);
+                received.incrementAndGet();
+                return;
+            }
+            int unit = Integer.parseInt(cotEvent.getUid().substring(5));
+            int sequence = Integer.parseInt(cotEvent.getAccess());
+            if (handlerMicros > 0) {
+                try {
+                    TimeUnit.MICROSECONDS.sleep(handlerMicros);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            int last;
+            do {
+                last = lastSequence.get(unit);
+                if (sequence < last) {
+                    reordered.incrementAndGet();
+                    break;
+                }
+            } while (!lastSequence.compareAndSet(unit, last, sequence));
+            received.incrementAndGet();
+        }//coTeventHandler
+    }//class OrderParser
+
+    /**
+     * Build a small CoT position report.
+     *
+     * @param uid the uid of the event
+     * @return a String of CoT XML
+     */
+    static String sampleEvent(String uid) {
+        return "<?xml version=\"1.0\" standalone=\"yes\"?>"
+                + "<event version=\"2.0\" uid=\"" + uid + "\" type=\"a-f-G-U-C\" how=\"m-g\""
+                + " time=\"2018-09-24T11:34:28.000Z\" start=\"2018-09-24T11:34:28.000Z\" stale=\"2018-09-24T11:36:28.000Z\">"
+                + "<point lat=\"49.4167\" lon=\"8.7000\" hae=\"120.0\" ce=\"10.0\" le=\"5.0\"/>"
+                + "<detail><contact callsign=\"ALPHA-6\"/><track course=\"270.0\" speed=\"12.5\"/>"
+                + "<remarks>benchmark</remarks></detail></event>\n";
+    }//sampleEvent
+
+    /**
+     * Compare the TCP listener modes for a growing number of concurrent
+     * connections.
+     *
+     * @param eventsPerConnection the number of events every connection sends
+     * @param handlerMicros the time the CoT event handler blocks per event
+     */
+    private static void benchmarkTcp(int eventsPerConnection, long handlerMicros) throws InterruptedException {
+        System.out.println("TCP listener, " + eventsPerConnection + " events per connection, handler "
+                + handlerMicros + " us");
+        System.out.println(String.format("%-15s %12s %10s %12s %10s %10s",
+                "mode", "connections", "events", "events/s", "p50 ms", "p99 ms"));
+        for (CoTtcpListener.Mode mode : CoTtcpListener.Mode.values()) {
+            if (mode == CoTtcpListener.Mode.TLS) {
+                // see benchmarkTls
+                continue;
+            }
+            // warm up the listener code before measuring
+            runTcp(mode, 10, eventsPerConnection, handlerMicros);
+            for (int connections : CONNECTION_COUNTS) {
+                String result = runTcp(mode, connections, eventsPerConnection, handlerMicros);
+                System.out.println(result);
+            }
+        }
+    }//benchmarkTcp
+
+    /**
+     * Run one TCP listener measurement.
+     *
+     * @return a line of the result table
+     */
+    private static String runTcp(CoTtcpListener.Mode mode, int connections, int eventsPerConnection, long handlerMicros)
+            throws InterruptedException {
+        int expected = connections * eventsPerConnection;
+        LatencyParser parser = new LatencyParser(expected, handlerMicros);
+        CoTtcpListener listener = new CoTtcpListener(BENCHMARK_PORT, mode);
+        listener.setCoTparser(parser);
+        listener.start();
+        long begin = System.nanoTime();
+        runTcpClients(connections, eventsPerConnection);
+        boolean complete = parser.done.await(120, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - begin;
+        listener.stopThread();
+        listener.join(5000);
+        int count = Math.min(parser.received.get(), expected);
+        long[] latencies = Arrays.copyOf(parser.latencies, count);
+        Arrays.sort(latencies);
+        return String.format("%-15s %12d %10d %12.0f %10.2f %10.2f%s",
+                mode, connections, count, count / (elapsed / 1e9),
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6,
+                complete ? "" : "  (timed out)");
+    }//runTcp
+
+    /**
+     * Open all the client connections concurrently, send the events and close
+     * the connections.
+     */
+    private static void runTcpClients(int connections, final int eventsPerConnection) throws InterruptedException {
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] clients = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket socket = new Socket("localhost", BENCHMARK_PORT)) {
+                        OutputStream out = socket.getOutputStream();
+                        go.await();
+                        for (int e = 0; e < eventsPerConnection; e++) {
+                            out.write(sampleEvent(Long.toString(System.nanoTime())).getBytes(StandardCharsets.UTF_8));
+                            out.flush();
+                        }
+                    } catch (IOException | InterruptedException ex) {
+                        Logger.getLogger(CoTbenchmark.class.getName()).log(Level.WARNING, null, ex);
+                    }
+                }
+            });
+            clients[i].start();
+        }
+        go.countDown();
+        for (Thread client : clients) {
+            client.join();
+        }
+    }//runTcpClients
+
+    /**
+     * Measure handshakes per second and throughput of the TLS listener mode.
+     *
+     * @param keyStore the file name of the self-signed key store
+     * @param password the password of the key store
+     */
+    private static void benchmarkTls(String keyStore, String password) throws Exception {
+        if (!new File(keyStore).exists()) {
+            createKeyStore(keyStore, password);
+        }
+        final SSLContext serverContext = CoTtcpListener.newSslContext(keyStore, password.toCharArray(),
+                keyStore, password.toCharArray());
+        System.out.println("TLS listener, mutual TLS, key store " + keyStore);
+        System.out.println(String.format("%-22s %12s %12s %12s", "run", "connections", "events", "per second"));
+        // warm up the handshake and listener code before measuring
+        runTls(serverContext, keyStore, password, 200, 1, false);
+        System.out.println(runTls(serverContext, keyStore, password, 1000, 1, false));
+        System.out.println(runTls(serverContext, keyStore, password, 1000, 1, true));
+        System.out.println(runTls(serverContext, keyStore, password, 10, 20000, true));
+    }//benchmarkTls
+
+    /**
+     * Run one TLS listener measurement. Short connections measure handshakes
+     * per second, long connections the event throughput.
+     *
+     * @param resume true if all clients share one client context, so
+     * reconnecting clients resume their TLS session
+     * @return a line of the result table
+     */
+    private static String runTls(SSLContext serverContext, final String keyStore, final String password,
+            final int connections, final int eventsPerConnection, final boolean resume) throws Exception {
+        int expected = connections * eventsPerConnection;
+        LatencyParser parser = new LatencyParser(expected, 0);
+        CoTtcpListener listener = new CoTtcpListener(BENCHMARK_PORT, CoTtcpListener.Mode.TLS);
+        listener.setSslContext(serverContext);
+        listener.setNeedClientAuth(true);
+        listener.setCoTparser(parser);
+        listener.start();
+        final SSLContext sharedContext = CoTtcpListener.newSslContext(keyStore, password.toCharArray(),
+                keyStore, password.toCharArray());
+        final AtomicInteger next = new AtomicInteger();
+        Thread[] clients = new Thread[Math.min(connections, 8)];
+        long begin = System.nanoTime();
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (next.getAndIncrement() < connections) {
+                            SSLContext context = resume ? sharedContext : CoTtcpListener.newSslContext(keyStore,
+                                    password.toCharArray(), keyStore, password.toCharArray());
+                            try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", BENCHMARK_PORT)) {
+                                socket.startHandshake();
+                                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                                for (int e = 0; e < eventsPerConnection; e++) {
+                                    out.write(sampleEvent(Long.toString(System.nanoTime())).getBytes(StandardCharsets.UTF_8));
+                                }
+                                out.flush();
+                            }
+                        }
+                    } catch (Exception ex) {
+                        Logger.getLogger(CoTbenchmark.class.getName()).log(Level.WARNING, null, ex);
+                    }
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        boolean complete = parser.done.await(120, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - begin;
+        listener.stopThread();
+        listener.join(5000);
+        int count = Math.min(parser.received.get(), expected);
+        String run = eventsPerConnection > 1 ? "throughput (events)"
+                : resume ? "resumed handshakes" : "full handshakes";
+        double perSecond = (eventsPerConnection > 1 ? count : connections) / (elapsed / 1e9);
+        return String.format("%-22s %12d %10d %12.0f%s", run, connections, count, perSecond,
+                complete ? "" : "  (timed out)");
+    }//runTls
+
+    /**
+     * Create a self-signed key store with the keytool of the running Java.
+     */
+    private static void createKeyStore(String keyStore, String password) throws IOException, InterruptedException {
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "cot", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "365", "-dname", "CN=localhost",
+                "-keystore", keyStore, "-storepass", password, "-keypass", password)
+                .redirectErrorStream(true).start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed to create " + keyStore);
+        }
+    }//createKeyStore
+
+    /**
+     * Compare the DOM based parsing of the CoT SDK with the StAX parser.
+     *
+     * @param events the number of events each parser handles
+     */
+    private static void benchmarkParse(int events) throws Exception {
+        CoTparser parser = new CoTparser();
+        ByteBuffer event = ByteBuffer.wrap(sampleEvent("benchmark").getBytes(StandardCharsets.UTF_8));
+        String xmlEvent = sampleEvent("benchmark").trim();
+        ByteBuffer takEvent = ByteBuffer.wrap(CoTtakProtocol.toStreamMessage(
+                parser.toProtobuf(parser.parseCoTevent(xmlEvent))));
+        CoTschemaValidator validator = null;
+        if (new File(CoTschemaValidator.DEFAULT_SCHEMA_DIRECTORY).isDirectory()) {
+            validator = new CoTschemaValidator(parser, CoTschemaValidator.DEFAULT_SCHEMA_DIRECTORY, 0, 1);
+        }
+        System.out.println("Parse the sample event, " + events + " events");
+        System.out.println(String.format("%-22s %12s %12s", "parser", "events/s", "us/event"));
+        for (int run = 0; run < 2; run++) {
+            // the first run warms up both parsers
+            long begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parseWithDom(xmlEvent);
+            }
+            long dom = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.parseCoTevent(event);
+            }
+            long stax = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.scanCoTevent(event);
+            }
+            long scan = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.parseLazyCoTevent(event).getDetail(Track.class);
+            }
+            long lazy = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.parseCoTevent(takEvent);
+            }
+            long tak = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.scanCoTevent(takEvent);
+            }
+            long scanTak = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; validator != null && i < events; i++) {
+                validator.validate(event);
+            }
+            long validate = System.nanoTime() - begin;
+            if (run > 0) {
+                System.out.println(String.format("%-22s %12.0f %12.2f", "DOM + toXml + JAXB",
+                        events / (dom / 1e9), dom / 1e3 / events));
+                System.out.println(String.format("%-22s %12.0f %12.2f", "StAX single pass",
+                        events / (stax / 1e9), stax / 1e3 / events));
+                System.out.println(String.format("%-22s %12.0f %12.2f", "lazy, track only",
+                        events / (lazy / 1e9), lazy / 1e3 / events));
+                System.out.println(String.format("%-22s %12.0f %12.2f", "scan core attributes",
+                        events / (scan / 1e9), scan / 1e3 / events));
+                System.out.println(String.format("%-22s %12.0f %12.2f", "TAK protobuf",
+                        events / (tak / 1e9), tak / 1e3 / events));
+                System.out.println(String.format("%-22s %12.0f %12.2f", "scan TAK message",
+                        events / (scanTak / 1e9), scanTak / 1e3 / events));
+                if (validator != null) {
+                    System.out.println(String.format("%-22s %12.0f %12.2f", "XSD validation",
+                            events / (validate / 1e9), validate / 1e3 / events));
+                }
+            }
+        }
+        if (validator != null) {
+            validator.stop();
+        }
+    }//benchmarkParse
+
+    /**
+     * Compare the JSON conversion through a JSONObject tree with the
+     * streaming encoder.
+     *
+     * @param events the number of events each converter handles
+     */
+    private static void benchmarkJson(int events) {
+        CoTparser parser = new CoTparser();
+        ByteBuffer event = ByteBuffer.wrap(sampleEvent("benchmark").getBytes(StandardCharsets.UTF_8));
+        String xmlEvent = sampleEvent("benchmark").trim();
+        StringBuilder json = new StringBuilder(1024);
+        System.out.println("Convert the sample event to JSON, " + events + " events");
+        System.out.println(String.format("%-22s %12s %12s", "converter", "events/s", "us/event"));
+        for (int run = 0; run < 2; run++) {
+            // the first run warms up both converters
+            long begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                toJsonWithTree(parser, xmlEvent);
+            }
+            long tree = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.parseToJSON(xmlEvent, 0);
+            }
+            long stream = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                json.setLength(0);
+                parser.parseToJSON(event, json);
+            }
+            long buffer = System.nanoTime() - begin;
+            if (run > 0) {
+                System.out.println(String.format("%-22s %12.0f %12.2f", "org.json XML",
+                        events / (tree / 1e9), tree / 1e3 / events));
+                System.out.println(String.format("%-22s %12.0f %12.2f", "streaming, String",
+                        events / (stream / 1e9), stream / 1e3 / events));
+                System.out.println(String.format("%-22s %12.0f %12.2f", "streaming, bytes",
+                        events / (buffer / 1e9), buffer / 1e3 / events));
+            }
+        }
+    }//benchmarkJson
+
+    /**
+     * Compare the binary encodings of a parsed event with its JSON.
+     *
+     * @param events the number of events each encoder handles
+     */
+    private static void benchmarkEncode(int events) throws Exception {
+        CoTparser parser = new CoTparser();
+        String xmlEvent = sampleEvent("benchmark").trim();
+        CoTparsedEvent cotEvent = parser.parseCoTevent(xmlEvent);
+        ByteBuffer cbor = ByteBuffer.wrap(parser.toCBOR(cotEvent));
+        ByteBuffer protobuf = ByteBuffer.wrap(parser.toProtobuf(cotEvent));
+        System.out.println("Encode the parsed sample event, " + events + " events");
+        System.out.println(String.format("%-22s %10s %12s", "encoding", "bytes", "ns/event"));
+        for (int run = 0; run < 2; run++) {
+            // the first run warms up all encoders
+            long begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.parseToJSON(xmlEvent);
+            }
+            long json = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.parseToJSON(xmlEvent, 0);
+            }
+            long compactJson = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.toCBOR(cotEvent);
+            }
+            long toCbor = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.parseCBOR(cbor);
+            }
+            long fromCbor = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.toProtobuf(cotEvent);
+            }
+            long toProtobuf = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                parser.parseProtobuf(protobuf);
+            }
+            long fromProtobuf = System.nanoTime() - begin;
+            if (run > 0) {
+                System.out.println(String.format("%-22s %10d", "XML",
+                        xmlEvent.getBytes(StandardCharsets.UTF_8).length));
+                System.out.println(String.format("%-22s %10d %12d", "parseToJSON",
+                        parser.parseToJSON(xmlEvent).getBytes(StandardCharsets.UTF_8).length, json / events));
+                System.out.println(String.format("%-22s %10d %12d", "parseToJSON, compact",
+                        parser.parseToJSON(xmlEvent, 0).getBytes(StandardCharsets.UTF_8).length,
+                        compactJson / events));
+                System.out.println(String.format("%-22s %10d %12d", "toCBOR", cbor.remaining(), toCbor / events));
+                System.out.println(String.format("%-22s %10s %12d", "parseCBOR", "", fromCbor / events));
+                System.out.println(String.format("%-22s %10d %12d", "toProtobuf", protobuf.remaining(),
+                        toProtobuf / events));
+                System.out.println(String.format("%-22s %10s %12d", "parseProtobuf", "", fromProtobuf / events));
+            }
+        }
+    }//benchmarkEncode
+
+    /**
+     * Compare the throughput and the order of the updates of a ring buffer
+     * with several consumers to the workers partitioned by uid.
+     *
+     * @param events the number of events per measurement
+     * @param handlerMicros the time the CoT event handler blocks per event
+     */
+    private static void benchmarkWorkers(int events, long handlerMicros) throws InterruptedException {
+        int uids = 100;
+        ByteBuffer[] cotEvents = new ByteBuffer[events];
+        for (int i = 0; i < events; i++) {
+            cotEvents[i] = ByteBuffer.wrap(sampleEvent("unit-" + (i % uids))
+                    .replace("<event ", "<event access=\"" + (i / uids + 1) + "\" ")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        System.out.println("Parse events of " + uids + " uids, " + events + " events, handler "
+                + handlerMicros + " us");
+        System.out.println(String.format("%-22s %8s %12s %10s", "stage", "threads", "events/s", "reordered"));
+        for (int run = 0; run < 2; run++) {
+            // the first run warms up the parser
+            for (int threads = 1; threads <= 8; threads *= 2) {
+                OrderParser ringParser = new OrderParser(uids, handlerMicros);
+                CoTringBuffer ring = new CoTringBuffer(ringParser, 4096, threads,
+                        CoTringBuffer.WaitStrategy.BLOCKING);
+                ring.setBlockWhenFull(true);
+                ring.start();
+                long ringTime = runWorkers(ring, ringParser, cotEvents);
+                ring.stop();
+                OrderParser workerParser = new OrderParser(uids, handlerMicros);
+                CoTpartitionedWorkers workers = new CoTpartitionedWorkers(workerParser, threads, 4096,
+                        CoTringBuffer.WaitStrategy.BLOCKING);
+                workers.setBlockWhenFull(true);
+                workers.start();
+                long workerTime = runWorkers(workers, workerParser, cotEvents);
+                workers.stop();
+                if (run > 0) {
+                    System.out.println(String.format("%-22s %8d %12.0f %10d", "ring buffer", threads,
+                            events / (ringTime / 1e9), ringParser.reordered.get()));
+                    System.out.println(String.format("%-22s %8d %12.0f %10d", "partitioned by uid", threads,
+                            events / (workerTime / 1e9), workerParser.reordered.get()));
+                }
+            }
+        }
+    }//benchmarkWorkers
+
+    /**
+     * Publish all the events from one thread and wait until they are parsed.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private static long runWorkers(CoTeventSink stage, OrderParser parser, ByteBuffer[] cotEvents)
+            throws InterruptedException {
+        long begin = System.nanoTime();
+        for (ByteBuffer cotEvent : cotEvents) {
+            stage.onCoTevent(cotEvent, null);
+        }
+        while (parser.received.get() < cotEvents.length) {
+            Thread.sleep(1);
+        }
+        return System.nanoTime() - begin;
+    }//runWorkers
+
+    /**
+     * Compare handling the event types with a chain of startsWith() checks
+     * after a full parse to the CoTrouter, which routes on the scanned type.
+     *
+     * @param events the number of events per measurement
+     */
+    private static void benchmarkRoute(int events) throws Exception {
+        String[] patterns = {"a-h-A-*", "a-h-G-*", "a-h-S-*", "a-n-*", "a-u-G-*", "a-f-A-M-F-*", "a-f-G-E-*",
+            "a-f-G-U-C-I-*", "a-f-G-U-C-A", "a-f-G-U-C-F-*", "a-f-S-*", "b-m-p-s-m", "b-m-p-w-*", "b-a-o-*",
+            "b-r-f-h-c", "b-t-f", "t-x-c", "t-x-d-d", "u-d-f", "y-*"};
+        String[] types = {"a-h-G-U-C", "a-f-G-U-C-A", "b-m-p-w-GOTO", "t-x-c", "a-f-S-C", "b-a-o-tbl",
+            "y-c-r", "a-n-A-C-F", "a-f-G-U-C", "a-f-G-E-V-C", "a-u-A-M", "b-m-r", "t-x-t", "u-rb-a",
+            "a-f-A-M-H", "b-d"};
+        final String[] prefixes = new String[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            prefixes[i] = patterns[i].replace("*", "");
+        }
+        ByteBuffer[] cotEvents = new ByteBuffer[events];
+        for (int i = 0; i < events; i++) {
+            cotEvents[i] = ByteBuffer.wrap(sampleEvent("unit-" + i)
+                    .replace("a-f-G-U-C", types[i % types.length]).getBytes(StandardCharsets.UTF_8));
+        }
+        final AtomicInteger chainHandled = new AtomicInteger();
+        CoTparser chain = new CoTparser() {
+            @Override
+            public void coTeventHandler(ByteBuffer xmlEvent) {
+                String type;
+                try {
+                    type = parseCoTevent(xmlEvent).getType();
+                } catch (XMLStreamException | JAXBException ex) {
+                    Logger.getLogger(CoTbenchmark.class.getName()).log(Level.WARNING, null, ex);
+                    return;
+                }
+                for (String prefix : prefixes) {
+                    if (type.startsWith(prefix)) {
+                        chainHandled.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+        };
+        final AtomicInteger routerHandled = new AtomicInteger();
+        CoTparser handler = new CoTparser() {
+            @Override
+            public void coTeventHandler(ByteBuffer xmlEvent) {
+                try {
+                    parseCoTevent(xmlEvent);
+                } catch (XMLStreamException | JAXBException ex) {
+                    Logger.getLogger(CoTbenchmark.class.getName()).log(Level.WARNING, null, ex);
+                    return;
+                }
+                routerHandled.incrementAndGet();
+            }
+        };
+        CoTrouter router = new CoTrouter();
+        for (String pattern : patterns) {
+            router.subscribe(pattern, handler);
+        }
+        System.out.println("Route events of " + types.length + " types to " + patterns.length
+                + " patterns, " + events + " events");
+        System.out.println(String.format("%-22s %12s %12s %10s", "dispatch", "events/s", "us/event", "handled"));
+        for (int run = 0; run < 2; run++) {
+            // the first run warms up the parser
+            chainHandled.set(0);
+            routerHandled.set(0);
+            long begin = System.nanoTime();
+            for (ByteBuffer cotEvent : cotEvents) {
+                chain.onCoTevent(cotEvent, null);
+            }
+            long chainTime = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (ByteBuffer cotEvent : cotEvents) {
+                router.onCoTevent(cotEvent, null);
+            }
+            long routerTime = System.nanoTime() - begin;
+            if (run > 0) {
+                System.out.println(String.format("%-22s %12.0f %12.2f %10d", "parse + startsWith",
+                        events / (chainTime / 1e9), chainTime / 1e3 / events, chainHandled.get()));
+                System.out.println(String.format("%-22s %12.0f %12.2f %10d", "CoTrouter",
+                        events / (routerTime / 1e9), routerTime / 1e3 / events, routerHandled.get()));
+            }
+        }
+    }//benchmarkRoute
+
+    /**
+     * Compare parsing every copy of the events to dropping the copies with
+     * the CoTdeduplicator.
+     *
+     * @param events the number of events received per measurement, copies
+     * included
+     */
+    private static void benchmarkDedup(int events) throws Exception {
+        int copies = 3;
+        int distance = 5;
+        ByteBuffer[] cotEvents = new ByteBuffer[events];
+        for (int i = 0; i < events; i++) {
+            // copy c of event n arrives c * distance events after the first
+            int group = i / (copies * distance);
+            int n = group * distance + i % distance;
+            cotEvents[i] = ByteBuffer.wrap(sampleEvent("unit-" + n).getBytes(StandardCharsets.UTF_8));
+        }
+        final AtomicInteger parsed = new AtomicInteger();
+        CoTparser parser = new CoTparser() {
+            @Override
+            public void coTeventHandler(ByteBuffer xmlEvent) {
+                try {
+                    parseCoTevent(xmlEvent);
+                } catch (XMLStreamException | JAXBException ex) {
+                    Logger.getLogger(CoTbenchmark.class.getName()).log(Level.WARNING, null, ex);
+                    return;
+                }
+                parsed.incrementAndGet();
+            }
+        };
+        System.out.println("Receive every event " + copies + " times, " + events + " events");
+        System.out.println(String.format("%-22s %12s %12s %10s", "stage", "events/s", "us/event", "parsed"));
+        for (int run = 0; run < 2; run++) {
+            // the first run warms up the parser
+            parsed.set(0);
+            long begin = System.nanoTime();
+            for (ByteBuffer cotEvent : cotEvents) {
+                parser.onCoTevent(cotEvent, null);
+            }
+            long parseTime = System.nanoTime() - begin;
+            int parsedAll = parsed.getAndSet(0);
+            CoTdeduplicator dedup = new CoTdeduplicator(parser);
+            begin = System.nanoTime();
+            for (ByteBuffer cotEvent : cotEvents) {
+                dedup.onCoTevent(cotEvent, null);
+            }
+            long dedupTime = System.nanoTime() - begin;
+            if (run > 0) {
+                System.out.println(String.format("%-22s %12.0f %12.2f %10d", "parse every copy",
+                        events / (parseTime / 1e9), parseTime / 1e3 / events, parsedAll));
+                System.out.println(String.format("%-22s %12.0f %12.2f %10d", "CoTdeduplicator",
+                        events / (dedupTime / 1e9), dedupTime / 1e3 / events, parsed.get()));
+                System.out.println(String.format("hit rate %.3f, evicted %d", dedup.getHitRate(),
+                        dedup.getEvictedCount()));
+            }
+        }
+    }//benchmarkDedup
+
+    /**
+     * Compare creating the Strings of the uid, type and how of every event to
+     * the shared instances of the CoTstringPool.
+     *
+     * @param events the number of events per measurement
+     */
+    private static void benchmarkPool(int events) {
+        int uids = 2000;
+        String[] types = {"a-f-G-U-C", "a-h-G-E-V-A-T", "a-n-A-C-F", "a-f-S-C", "a-u-G"};
+        ByteBuffer[] cotEvents = new ByteBuffer[uids];
+        for (int i = 0; i < uids; i++) {
+            cotEvents[i] = ByteBuffer.wrap(sampleEvent("ANDROID-" + (358000000000000L + i))
+                    .replace("a-f-G-U-C", types[i % types.length]).getBytes(StandardCharsets.UTF_8));
+        }
+        CoTparser parser = new CoTparser();
+        CoTstringPool pool = parser.getStringPool();
+        System.out.println("Read uid, type and how of " + uids + " uids, " + events + " events");
+        System.out.println(String.format("%-22s %12s %12s", "strings", "ns/event", "bytes/event"));
+        for (int run = 0; run < 2; run++) {
+            // the first run warms up the scanner and fills the pool
+            long bytes = allocatedBytes();
+            long begin = System.nanoTime();
+            int length = 0;
+            for (int i = 0; i < events; i++) {
+                ByteBuffer event = cotEvents[i % uids];
+                CoTeventScanner scanner = parser.scanCoTevent(event);
+                String type = newString(scanner, event, CoTeventScanner.Attribute.TYPE);
+                length += newString(scanner, event, CoTeventScanner.Attribute.UID).length() + type.length()
+                        + newString(scanner, event, CoTeventScanner.Attribute.HOW).length()
+                        + parser.cotTypes.getDescription(type.charAt(0) == 'a'
+                                ? type.substring(0, 2) + "." + type.substring(3) : type).length();
+            }
+            long created = System.nanoTime() - begin;
+            long createdBytes = allocatedBytes() - bytes;
+            bytes = allocatedBytes();
+            begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                CoTeventScanner scanner = parser.scanCoTevent(cotEvents[i % uids]);
+                String type = scanner.getType();
+                length += scanner.getUid().length() + type.length()
+                        + scanner.getString(CoTeventScanner.Attribute.HOW).length()
+                        + parser.getCotTypeDescription(type).length();
+            }
+            long pooled = System.nanoTime() - begin;
+            long pooledBytes = allocatedBytes() - bytes;
+            if (run > 0 && length > 0) {
+                System.out.println(String.format("%-22s %12.0f %12d", "new Strings",
+                        (double) created / events, createdBytes / events));
+                System.out.println(String.format("%-22s %12.0f %12d", "CoTstringPool",
+                        (double) pooled / events, pooledBytes / events));
+                System.out.println("Strings in the pool " + pool.getCreatedCount());
+            }
+        }
+    }//benchmarkPool
+
+    private static String newString(CoTeventScanner scanner, ByteBuffer event, CoTeventScanner.Attribute attribute) {
+        byte[] bytes = new byte[scanner.getLength(attribute)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = event.get(scanner.getOffset(attribute) + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }//newString
+
+    /**
+     * Send events to two multicast groups over the loopback interface and
+     * count the events the UDP listener receives from each group.
+     *
+     * @param events the number of events sent
+     */
+    private static void benchmarkMulticast(int events) throws IOException, InterruptedException {
+        NetworkInterface loopback = null;
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (networkInterface.isUp() && networkInterface.isLoopback()) {
+                loopback = networkInterface;
+                break;
+            }
+        }
+        if (loopback == null) {
+            System.out.println("No loopback interface is up");
+            return;
+        }
+        final String[] groups = {CoTudpListener.SA_MULTICAST_GROUP, "239.2.3.2"};
+        final AtomicIntegerArray received = new AtomicIntegerArray(groups.length);
+        CoTudpListener listener = new CoTudpListener(BENCHMARK_PORT, 2048);
+        for (String group : groups) {
+            listener.addMulticastGroup(group, loopback.getName());
+        }
+        listener.setEventSink(new CoTeventSink() {
+            // a multicast listener receives on a single thread
+            private final CoTeventScanner scanner = new CoTeventScanner();
+
+            @Override
+            public void onCoTevent(ByteBuffer event, SocketAddress source) {
+                // the uid of every event names its group
+                scanner.scan(event);
+                received.incrementAndGet(scanner.getUid().endsWith(groups[0]) ? 0 : 1);
+            }
+        });
+        listener.start();
+        ByteBuffer[] cotEvents = new ByteBuffer[groups.length];
+        InetSocketAddress[] targets = new InetSocketAddress[groups.length];
+        for (int g = 0; g < groups.length; g++) {
+            cotEvents[g] = ByteBuffer.wrap(sampleEvent("multicast-" + groups[g]).getBytes(StandardCharsets.UTF_8));
+            targets[g] = new InetSocketAddress(InetAddress.getByName(groups[g]), BENCHMARK_PORT);
+        }
+        System.out.println("Multicast over " + loopback.getName() + " to " + Arrays.toString(groups) + ", "
+                + events + " events");
+        try (DatagramChannel sender = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            sender.setOption(StandardSocketOptions.IP_MULTICAST_IF, loopback);
+            sender.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            // wait until the listener has joined the groups
+            long deadline = System.currentTimeMillis() + 5000;
+            while (received.get(0) == 0 && System.currentTimeMillis() < deadline) {
+                sender.send(cotEvents[0].duplicate(), targets[0]);
+                Thread.sleep(10);
+            }
+            if (received.get(0) == 0) {
+                System.out.println("No multicast event received, is multicast enabled on " + loopback.getName() + "?");
+                listener.stopThread();
+                return;
+            }
+            Thread.sleep(100);
+            received.set(0, 0);
+            long begin = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                while (i - received.get(0) - received.get(1) > 64 && System.nanoTime() - begin < 60e9) {
+                    Thread.yield();
+                }
+                sender.send(cotEvents[i % groups.length].duplicate(), targets[i % groups.length]);
+            }
+            deadline = System.currentTimeMillis() + 5000;
+            while (received.get(0) + received.get(1) < events && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            long elapsed = System.nanoTime() - begin;
+            int total = received.get(0) + received.get(1);
+            System.out.println(String.format("%-22s %12s %10s %10s %10s", "groups", "events/s", "received",
+                    groups[0], groups[1]));
+            System.out.println(String.format("%-22d %12.0f %10d %10d %10d", groups.length, total / (elapsed / 1e9),
+                    total, received.get(0), received.get(1)));
+            if (total != events) {
+                System.out.println((events - total) + " events lost");
+            }
+        } finally {
+            listener.stopThread();
+            listener.join(5000);
+        }
+    }//benchmarkMulticast
+
+    /**
+     * Compare parsing and formatting CoT times with the date classes of the
+     * JDK to CoTtime.
+     *
+     * @param times the number of times parsed and formatted per measurement
+     */
+    private static void benchmarkTime(int times) throws ParseException {
+        int distinct = 1024;
+        long base = CoTtime.parse("2018-09-24T11:34:28.000Z");
+        String[] strings = new String[distinct];
+        ByteBuffer bytes = ByteBuffer.allocate(distinct * CoTtime.LENGTH);
+        for (int i = 0; i < distinct; i++) {
+            strings[i] = CoTtime.format(base + i * 7777777L);
+            bytes.put(strings[i].getBytes(StandardCharsets.US_ASCII));
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        byte[] out = new byte[CoTtime.LENGTH];
+        System.out.println("Parse and format CoT times, " + times + " times");
+        System.out.println(String.format("%-28s %12s %12s", "codec", "ns/time", "bytes/time"));
+        for (int run = 0; run < 2; run++) {
+            // the first run warms up the codecs
+            long[] nanos = new long[7];
+            long[] allocated = new long[7];
+            long sum = 0;
+            for (int codec = 0; codec < nanos.length; codec++) {
+                long begin = System.nanoTime();
+                long allocatedBefore = allocatedBytes();
+                for (int i = 0; i < times; i++) {
+                    int n = i & (distinct - 1);
+                    switch (codec) {
+                        case 0:
+                            sum += DatatypeConverter.parseDateTime(strings[n]).getTimeInMillis();
+                            break;
+                        case 1:
+                            sum += format.parse(strings[n]).getTime();
+                            break;
+                        case 2:
+                            sum += CoTtime.parse(strings[n]);
+                            break;
+                        case 3:
+                            sum += CoTtime.parse(bytes, n * CoTtime.LENGTH, (n + 1) * CoTtime.LENGTH);
+                            break;
+                        case 4:
+                            sum += format.format(base + n * 7777777L).length();
+                            break;
+                        case 5:
+                            sum += CoTtime.format(base + n * 7777777L).length();
+                            break;
+                        default:
+                            sum += CoTtime.format(base + n * 7777777L, out, 0);
+                    }
+                }
+                allocated[codec] = allocatedBytes() - allocatedBefore;
+                nanos[codec] = System.nanoTime() - begin;
+            }
+            if (run > 0 && sum != 0) {
+                String[] names = {"parse DatatypeConverter", "parse SimpleDateFormat", "parse CoTtime String",
+                    "parse CoTtime bytes", "format SimpleDateFormat", "format CoTtime String",
+                    "format CoTtime bytes"};
+                for (int codec = 0; codec < names.length; codec++) {
+                    System.out.println(String.format("%-28s %12.1f %12d", names[codec],
+                            (double) nanos[codec] / times, allocated[codec] / times));
+                }
+            }
+        }
+    }//benchmarkTime
+
+    /**
+     * @return the bytes allocated by the current thread, or 0 if the JVM
+     * does not measure them
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }//allocatedBytes
+
+    /**
+     * The conversion done by CoTparser.parseToJSON() before the streaming
+     * encoder.
+     */
+    private static String toJsonWithTree(CoTparser parser, String xmlEvent) {
+        JSONObject xmlJSONObj = XML.toJSONObject(xmlEvent);
+        JSONObject cotEvent = xmlJSONObj.getJSONObject("event");
+        String type = cotEvent.getString("type");
+        cotEvent.getJSONObject("detail").put("symbolCode", parser.convertTypeTo2525B(type));
+        cotEvent.put("description", parser.getCotTypeDescription(type));
+        return xmlJSONObj.toString(0);
+    }//toJsonWithTree
+
+    /**
+     * The parsing done by CoTparser before the StAX parser: a DOM of the
+     * event, then every detail sub element serialized and unmarshalled.
+     */
+    private static int parseWithDom(String xmlEvent) throws Exception {
+        CotEvent cotEvent = CotEvent.parse(xmlEvent);
+        int details = 0;
+        for (DetailSubelement subElement : cotEvent.getDetail()) {
+            StringReader xmlReader = new StringReader(subElement.toXml());
+            if ("contact".equalsIgnoreCase(subElement.getName())) {
+                CoTparser.getUnmarshaller().unmarshal(xmlReader);
+            } else if ("track".equalsIgnoreCase(subElement.getName())) {
+                CoTparser.getUnmarshaller().unmarshal(xmlReader);
+            } else if ("remarks".equalsIgnoreCase(subElement.getName())) {
+                CoTparser.getUnmarshaller().unmarshal(xmlReader);
+            }
+            details++;
+        }
+        return details;
+    }//parseWithDom
+
+    /**
+     * @param sorted values in ascending order
+     * @param fraction the percentile as a fraction between 0 and 1
+     * @return the value at the percentile or 0 for no values
+     */
+    static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }//percentile
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }//intArg
+
+    /**
+     * @param args the benchmark to run followed by its options
+     */
+    public static void main(String[] args) throws Exception {
+        String benchmark = args.length > 0 ? args[0] : "tcp";
+        switch (benchmark) {
+            case "tcp":
+                benchmarkTcp(intArg(args, 1, 100), intArg(args, 2, 0));
+                break;
+            case "parse":
+                benchmarkParse(intArg(args, 1, 100000));
+                break;
+            case "json":
+                benchmarkJson(intArg(args, 1, 100000));
+                break;
+            case "encode":
+                benchmarkEncode(intArg(args, 1, 100000));
+                break;
+            case "workers":
+                benchmarkWorkers(intArg(args, 1, 100000), intArg(args, 2, 0));
+                break;
+            case "route":
+                benchmarkRoute(intArg(args, 1, 100000));
+                break;
+            case "dedup":
+                benchmarkDedup(intArg(args, 1, 100000));
+                break;
+            case "pool":
+                benchmarkPool(intArg(args, 1, 1000000));
+                break;
+            case "time":
+                benchmarkTime(intArg(args, 1, 1000000));
+                break;
+            case "multicast":
+                benchmarkMulticast(intArg(args, 1, 100000));
+                break;
+            case "tls":
+                benchmarkTls(args.length > 1 ? args[1] : "cot-benchmark.jks", args.length > 2 ? args[2] : "changeit");
+                break;
+            default:
+                System.out.println("Usage: CoTbenchmark tcp [eventsPerConnection] [handlerMicros]");
+                System.out.println("       CoTbenchmark tls [keyStore] [password]");
+                System.out.println("       CoTbenchmark parse [events]");
+                System.out.println("       CoTbenchmark json [events]");
+                System.out.println("       CoTbenchmark encode [events]");
+                System.out.println("       CoTbenchmark workers [events] [handlerMicros]");
+                System.out.println("       CoTbenchmark route [events]");
+                System.out.println("       CoTbenchmark dedup [events]");
+                System.out.println("       CoTbenchmark pool [events]");
+                System.out.println("       CoTbenchmark time [times]");
+                System.out.println("       CoTbenchmark multicast [events]");
+        }
+    }// main
+}
@@ -23,16 +23,11 @@
  */
 package mil.army.usareur.g3.mcsd.CoTExample;
 
-import java.io.StringReader;
-import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.bind.JAXBException;
-import mil.af.cursorOnTarget.CotDetail;
-import mil.af.cursorOnTarget.CotEvent;
-import mil.af.cursorOnTarget.CotPoint;
-import mil.af.cursorOnTarget.DetailSubelement;
-import mil.af.cursorOnTarget.UnsupportedCotVersionException;
+import javax.xml.stream.XMLStreamException;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTparsedEvent;
 import mil.army.usareur.g3.mcsd.CoTUtils.CoTparser;
 import mil.army.usareur.g3.mcsd.CotBindings.Track;
 
@@ -47,38 +42,31 @@ public class CustomCoTparser extends CoTparser {
         //System.out.println("===== CUSTOM COT EVENT HANDLER\n-->" + xmlEvent + "<--");
         System.out.println("===== CUSTOM COT EVENT HANDLER\n" + this.parseToJSON(xmlEvent, 8));
         // Get the CoT event
-        CotEvent cotEvent;
+        CoTparsedEvent cotEvent;
 
         try {
-            // Trim the xml string to avoid the following error: "Content is not allowed in trailing section"
-            cotEvent = CotEvent.parse(xmlEvent.trim());
-            System.out.println("===== CUSTOM HANDLER COT EVENT UID: " + cotEvent.getUID());
+            // Read the event, its point and its details in a single pass
+            cotEvent = parseCoTevent(xmlEvent);
+            System.out.println("===== CUSTOM HANDLER COT EVENT UID: " + cotEvent.getUid());
             System.out.println("===== CUSTOM HANDLER COT EVENT TYPE: " + cotEvent.getType());
             System.out.println("===== CUSTOM HANDLER COT EVENT 2525B: " + this.convertTypeTo2525B(cotEvent.getType()));
             System.out.println("===== CUSTOM HANDLER COT EVENT DESCRIPTION: " + this.getCotTypeDescription(cotEvent.getType()));
-            CotPoint point = cotEvent.getPoint();
-            System.out.println("===== CUSTOM HANDLER COT POINT LAT: " + point.getLatitude());
-            System.out.println("===== CUSTOM HANDLER COT POINT LON: " + point.getLongitude());
-            System.out.println("===== CUSTOM HANDLER COT POINT CE: " + point.getCircularError());
-            System.out.println("===== CUSTOM HANDLER COT POINT LE: " + point.getLinearError());
-            System.out.println("===== CUSTOM HANDLER COT POINT HAE: " + point.getHAE());
-            CotDetail detail = cotEvent.getDetail();
-            Iterator dit = detail.iterator();
-            while (dit.hasNext()) {
-                DetailSubelement subElement = (DetailSubelement) dit.next();
-                StringReader xmlReader = new StringReader(subElement.toXml());
-                if ("track".equalsIgnoreCase(subElement.getName())) {
-                    Track track = (Track) jaxbUnmarshallerTrack.unmarshal(xmlReader);
-                    System.out.println("===== CUSTOM HANDLER COT DETAIL " + subElement.getName() + "   Course: " + track.getCourse());
-                    System.out.println("===== CUSTOM HANDLER COT DETAIL " + subElement.getName() + "   ECourse: " + track.getECourse());
-                    System.out.println("===== CUSTOM HANDLER COT DETAIL " + subElement.getName() + "   Slope: " + track.getSlope());
-                    System.out.println("===== CUSTOM HANDLER COT DETAIL " + subElement.getName() + "   ESlope: " + track.getESlope());
-                    System.out.println("===== CUSTOM HANDLER COT DETAIL " + subElement.getName() + "   Speed: " + track.getSpeed());
-                    System.out.println("===== CUSTOM HANDLER COT DETAIL " + subElement.getName() + "   ESpeed: " + track.getESpeed());
-                    System.out.println("===== CUSTOM HANDLER COT DETAIL " + subElement.getName() + "   Version: " + track.getVersion());
-                }//track   
-            }
-        } catch (UnsupportedCotVersionException ex) {
+            System.out.println("===== CUSTOM HANDLER COT POINT LAT: " + cotEvent.getLatitude());
+            System.out.println("===== CUSTOM HANDLER COT POINT LON: " + cotEvent.getLongitude());
+            System.out.println("===== CUSTOM HANDLER COT POINT CE: " + cotEvent.getCircularError());
+            System.out.println("===== CUSTOM HANDLER COT POINT LE: " + cotEvent.getLinearError());
+            System.out.println("===== CUSTOM HANDLER COT POINT HAE: " + cotEvent.getHae());
+            Track track = cotEvent.getDetail(Track.class);
+            if (track != null) {
+                System.out.println("===== CUSTOM HANDLER COT DETAIL track   Course: " + track.getCourse());
+                System.out.println("===== CUSTOM HANDLER COT DETAIL track   ECourse: " + track.getECourse());
+                System.out.println("===== CUSTOM HANDLER COT DETAIL track   Slope: " + track.getSlope());
+                System.out.println("===== CUSTOM HANDLER COT DETAIL track   ESlope: " + track.getESlope());
+                System.out.println("===== CUSTOM HANDLER COT DETAIL track   Speed: " + track.getSpeed());
+                System.out.println("===== CUSTOM HANDLER COT DETAIL track   ESpeed: " + track.getESpeed());
+                System.out.println("===== CUSTOM HANDLER COT DETAIL track   Version: " + track.getVersion());
+            }//track
+        } catch (XMLStreamException ex) {
             Logger.getLogger(CustomCoTparser.class.getName()).log(Level.SEVERE, null, ex);
         } catch (JAXBException ex) {
             Logger.getLogger(CustomCoTparser.class.getName()).log(Level.SEVERE, null, ex);
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free pool of direct byte buffers of one size. Receive threads take a
+ * buffer from the pool for every message and give it back once the message
+ * has been handled, so the receive path does not create garbage. When the
+ * pool is empty a new buffer is allocated, when it is full a returned buffer
+ * is left to the garbage collector.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTbufferPool {
+
+    private final int bufferSize;
+    private final AtomicReferenceArray<ByteBuffer> buffers;
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Create a buffer pool.
+     *
+     * @param bufferSize the capacity in bytes of every buffer
+     * @param maxPooled the maximum number of idle buffers the pool keeps
+     */
+    public CoTbufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new AtomicReferenceArray<>(Math.max(1, maxPooled));
+    }//CoTbufferPool
+
+    /**
+     * Take a cleared buffer from the pool, or allocate one if the pool is
+     * empty.
+     *
+     * @return a direct buffer with position 0 and limit at its capacity
+     */
+    public ByteBuffer acquire() {
+        for (int i = 0; i < buffers.length(); i++) {
+            if (buffers.get(i) != null) {
+                ByteBuffer buffer = buffers.getAndSet(i, null);
+                if (buffer != null) {
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+        }
+        allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }//acquire
+
+    /**
+     * Give a buffer back to the pool. The buffer must not be used after it
+     * has been released.
+     *
+     * @param buffer a buffer taken from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        for (int i = 0; i < buffers.length(); i++) {
+            if (buffers.get(i) == null && buffers.compareAndSet(i, null, buffer)) {
+                return;
+            }
+        }
+    }//release
+
+    /**
+     *
+     * @return the capacity in bytes of the buffers
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }//getBufferSize
+
+    /**
+     *
+     * @return the number of buffers the pool allocated since it was created
+     */
+    public long getAllocatedCount() {
+        return allocated.get();
+    }//getAllocatedCount
+}// class CoTbufferPool
@@ -0,0 +1,703 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.JAXBException;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLStreamException;
+import mil.army.usareur.g3.mcsd.CotBindings.Contact;
+import mil.army.usareur.g3.mcsd.CotBindings.Remarks;
+import mil.army.usareur.g3.mcsd.CotBindings.Track;
+
+/**
+ * Encodes a parsed CoT event as CBOR (RFC 7049) and decodes it again. The
+ * event is a map with the field numbers of the TAK protobuf CotEvent as keys:
+ * <pre>
+ * 1 type, 2 access, 3 qos, 4 opex, 5 uid, 6 time, 7 start, 8 stale, 9 how,
+ * 10 lat, 11 lon, 12 hae, 13 ce, 14 le, 15 detail, 16 version
+ * </pre>
+ * The times are milliseconds since the epoch, doubles that fit are sent as
+ * single precision floats. The detail is a map of the first contact, track
+ * and remarks, each a map of their attributes, and "xmlDetail", the XML of
+ * all other detail sub elements. Keys that are not known are skipped.
+ *
+ * The encoder may be shared between threads.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTcbor {
+
+    // major types
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int TEXT = 3;
+    private static final int MAP = 5;
+    private static final int SIMPLE = 7;
+    private static final int BREAK = 0xFF;
+    // event keys, the field numbers of the TAK protobuf CotEvent
+    private static final int TYPE = 1;
+    private static final int ACCESS = 2;
+    private static final int QOS = 3;
+    private static final int OPEX = 4;
+    private static final int UID = 5;
+    private static final int TIME = 6;
+    private static final int START = 7;
+    private static final int STALE = 8;
+    private static final int HOW = 9;
+    private static final int LAT = 10;
+    private static final int LON = 11;
+    private static final int HAE = 12;
+    private static final int CE = 13;
+    private static final int LE = 14;
+    private static final int DETAIL = 15;
+    private static final int VERSION = 16;
+
+    private static final ThreadLocal<CoTbinaryWriter> WRITER = new ThreadLocal<CoTbinaryWriter>() {
+        @Override
+        protected CoTbinaryWriter initialValue() {
+            return new CoTbinaryWriter();
+        }
+    };
+    private static final DatatypeFactory DATATYPE_FACTORY;
+
+    static {
+        try {
+            DATATYPE_FACTORY = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private final CoTstaxParser staxParser = new CoTstaxParser();
+
+    /**
+     * Encode a parsed event as CBOR.
+     *
+     * @param event the parsed CoT event
+     * @return the CBOR map of the event
+     * @throws JAXBException if a detail cannot be marshalled to xmlDetail
+     */
+    public byte[] encode(CoTparsedEvent event) throws JAXBException {
+        Contact contact = null;
+        Track track = null;
+        Remarks remarks = null;
+        List<Object> xmlDetails = new ArrayList<>();
+        for (Object detail : event.details) {
+            if (contact == null && detail instanceof Contact && ((Contact) detail).getAny().isEmpty()) {
+                contact = (Contact) detail;
+            } else if (track == null && detail instanceof Track && ((Track) detail).getAny().isEmpty()) {
+                track = (Track) detail;
+            } else if (remarks == null && detail instanceof Remarks && isTextOnly((Remarks) detail)) {
+                remarks = (Remarks) detail;
+            } else {
+                xmlDetails.add(detail);
+            }
+        }
+        String xmlDetail = xmlDetails.isEmpty() ? null : CoTstaxParser.marshalDetails(xmlDetails);
+        long time = CoTprotobuf.toMillis(event.time);
+        long start = CoTprotobuf.toMillis(event.start);
+        long stale = CoTprotobuf.toMillis(event.stale);
+        boolean detail = contact != null || track != null || remarks != null || xmlDetail != null;
+
+        CoTbinaryWriter out = WRITER.get();
+        out.reset();
+        head(out, MAP, count(event.type) + count(event.access) + count(event.qos) + count(event.opex)
+                + count(event.uid) + count(event.time) + count(event.start) + count(event.stale)
+                + count(event.how) + count(event.lat) + count(event.lon) + count(event.hae) + count(event.ce)
+                + count(event.le) + (detail ? 1 : 0) + count(event.version));
+        writeText(out, TYPE, event.type);
+        writeText(out, ACCESS, event.access);
+        writeText(out, QOS, event.qos);
+        writeText(out, OPEX, event.opex);
+        writeText(out, UID, event.uid);
+        if (event.time != null) {
+            head(out, UNSIGNED, TIME);
+            writeLong(out, time);
+        }
+        if (event.start != null) {
+            head(out, UNSIGNED, START);
+            writeLong(out, start);
+        }
+        if (event.stale != null) {
+            head(out, UNSIGNED, STALE);
+            writeLong(out, stale);
+        }
+        writeText(out, HOW, event.how);
+        writeDouble(out, LAT, event.lat);
+        writeDouble(out, LON, event.lon);
+        writeDouble(out, HAE, event.hae);
+        writeDouble(out, CE, event.ce);
+        writeDouble(out, LE, event.le);
+        if (detail) {
+            head(out, UNSIGNED, DETAIL);
+            head(out, MAP, (contact != null ? 1 : 0) + (track != null ? 1 : 0) + (remarks != null ? 1 : 0)
+                    + (xmlDetail != null ? 1 : 0));
+            if (contact != null) {
+                writeContact(out, contact);
+            }
+            if (track != null) {
+                writeTrack(out, track);
+            }
+            if (remarks != null) {
+                writeRemarks(out, remarks);
+            }
+            if (xmlDetail != null) {
+                writeText(out, "xmlDetail");
+                writeText(out, xmlDetail);
+            }
+        }
+        writeText(out, VERSION, event.version);
+        return out.toByteArray();
+    }//encode
+
+    /**
+     * The attributes of a detail map use an indefinite length map, a value
+     * that is not set is not written.
+     */
+    private static void writeContact(CoTbinaryWriter out, Contact contact) {
+        writeText(out, "contact");
+        out.write(MAP << 5 | 31);
+        writeAttribute(out, "callsign", contact.getCallsign());
+        writeAttribute(out, "freq", contact.getFreq());
+        writeAttribute(out, "email", contact.getEmail());
+        writeAttribute(out, "dsn", contact.getDsn());
+        writeAttribute(out, "phone", contact.getPhone());
+        writeAttribute(out, "modulation", contact.getModulation());
+        writeAttribute(out, "hostname", contact.getHostname());
+        writeAttribute(out, "version", contact.getVersion());
+        out.write(BREAK);
+    }//writeContact
+
+    private static void writeTrack(CoTbinaryWriter out, Track track) {
+        writeText(out, "track");
+        out.write(MAP << 5 | 31);
+        // course and speed are required
+        writeText(out, "course");
+        writeDouble(out, track.getCourse());
+        writeText(out, "speed");
+        writeDouble(out, track.getSpeed());
+        writeAttribute(out, "slope", track.getSlope());
+        writeAttribute(out, "eCourse", track.getECourse());
+        writeAttribute(out, "eSpeed", track.getESpeed());
+        writeAttribute(out, "eSlope", track.getESlope());
+        writeAttribute(out, "version", track.getVersion());
+        out.write(BREAK);
+    }//writeTrack
+
+    private static void writeRemarks(CoTbinaryWriter out, Remarks remarks) {
+        writeText(out, "remarks");
+        out.write(MAP << 5 | 31);
+        writeAttribute(out, "source", remarks.getSource());
+        writeAttribute(out, "time", remarks.getTime() == null ? null : remarks.getTime().toXMLFormat());
+        writeAttribute(out, "to", remarks.getTo());
+        writeAttribute(out, "keywords", remarks.getKeywords());
+        writeAttribute(out, "version", remarks.getVersion());
+        StringBuilder content = new StringBuilder();
+        for (Object text : remarks.getContent()) {
+            content.append(text);
+        }
+        writeText(out, "content");
+        writeText(out, content.toString());
+        out.write(BREAK);
+    }//writeRemarks
+
+    /**
+     * @return true if the remarks have no child elements
+     */
+    private static boolean isTextOnly(Remarks remarks) {
+        for (Object content : remarks.getContent()) {
+            if (!(content instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }//isTextOnly
+
+    /**
+     * Decode the CBOR map of an event. The position of the buffer is not
+     * changed.
+     *
+     * @param cbor the CBOR between position and limit
+     * @return the parsed CoT event
+     * @throws XMLStreamException if the xmlDetail is not well formed
+     * @throws JAXBException if a sub element of the xmlDetail cannot be
+     * unmarshalled
+     */
+    public CoTparsedEvent decode(ByteBuffer cbor) throws XMLStreamException, JAXBException {
+        ByteBuffer in = cbor.duplicate();
+        CoTparsedEvent event = new CoTparsedEvent();
+        try {
+            int count = readMap(in);
+            for (int i = 0; count < 0 ? !atBreak(in) : i < count; i++) {
+                int key = (in.get(in.position()) & 0xFF) >>> 5 == UNSIGNED ? (int) readUnsigned(in) : -1;
+                switch (key) {
+                    case TYPE:
+                        event.type = readPooledText(in);
+                        break;
+                    case ACCESS:
+                        event.access = readText(in);
+                        break;
+                    case QOS:
+                        event.qos = readText(in);
+                        break;
+                    case OPEX:
+                        event.opex = readText(in);
+                        break;
+                    case UID:
+                        event.uid = readPooledText(in);
+                        break;
+                    case TIME:
+                        event.time = CoTtime.format(readLong(in));
+                        break;
+                    case START:
+                        event.start = CoTtime.format(readLong(in));
+                        break;
+                    case STALE:
+                        event.stale = CoTtime.format(readLong(in));
+                        break;
+                    case HOW:
+                        event.how = readPooledText(in);
+                        break;
+                    case LAT:
+                        event.lat = readDouble(in);
+                        break;
+                    case LON:
+                        event.lon = readDouble(in);
+                        break;
+                    case HAE:
+                        event.hae = readDouble(in);
+                        break;
+                    case CE:
+                        event.ce = readDouble(in);
+                        break;
+                    case LE:
+                        event.le = readDouble(in);
+                        break;
+                    case DETAIL:
+                        readDetail(in, event);
+                        break;
+                    case VERSION:
+                        event.version = readText(in);
+                        break;
+                    default:
+                        if (key < 0) {
+                            skip(in);
+                        }
+                        skip(in);
+                }
+            }//for
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Malformed CBOR", ex);
+        }
+        return event;
+    }//decode
+
+    private void readDetail(ByteBuffer in, CoTparsedEvent event) throws XMLStreamException, JAXBException {
+        int count = readMap(in);
+        for (int i = 0; count < 0 ? !atBreak(in) : i < count; i++) {
+            switch (readText(in)) {
+                case "contact":
+                    event.details.add(readContact(in));
+                    break;
+                case "track":
+                    event.details.add(readTrack(in));
+                    break;
+                case "remarks":
+                    event.details.add(readRemarks(in));
+                    break;
+                case "xmlDetail":
+                    staxParser.readDetails(readText(in), event.details);
+                    break;
+                default:
+                    skip(in);
+            }
+        }
+    }//readDetail
+
+    private static Contact readContact(ByteBuffer in) {
+        Contact contact = new Contact();
+        int count = readMap(in);
+        for (int i = 0; count < 0 ? !atBreak(in) : i < count; i++) {
+            switch (readText(in)) {
+                case "callsign":
+                    contact.setCallsign(readText(in));
+                    break;
+                case "freq":
+                    contact.setFreq(readDouble(in));
+                    break;
+                case "email":
+                    contact.setEmail(readText(in));
+                    break;
+                case "dsn":
+                    contact.setDsn(readText(in));
+                    break;
+                case "phone":
+                    contact.setPhone(readText(in));
+                    break;
+                case "modulation":
+                    contact.setModulation(readText(in));
+                    break;
+                case "hostname":
+                    contact.setHostname(readText(in));
+                    break;
+                case "version":
+                    contact.setVersion(readDouble(in));
+                    break;
+                default:
+                    skip(in);
+            }
+        }
+        return contact;
+    }//readContact
+
+    private static Track readTrack(ByteBuffer in) {
+        Track track = new Track();
+        int count = readMap(in);
+        for (int i = 0; count < 0 ? !atBreak(in) : i < count; i++) {
+            switch (readText(in)) {
+                case "course":
+                    track.setCourse(readDouble(in));
+                    break;
+                case "speed":
+                    track.setSpeed(readDouble(in));
+                    break;
+                case "slope":
+                    track.setSlope(readDouble(in));
+                    break;
+                case "eCourse":
+                    track.setECourse(readDouble(in));
+                    break;
+                case "eSpeed":
+                    track.setESpeed(readDouble(in));
+                    break;
+                case "eSlope":
+                    track.setESlope(readDouble(in));
+                    break;
+                case "version":
+                    track.setVersion(readDouble(in));
+                    break;
+                default:
+                    skip(in);
+            }
+        }
+        return track;
+    }//readTrack
+
+    private static Remarks readRemarks(ByteBuffer in) {
+        Remarks remarks = new Remarks();
+        int count = readMap(in);
+        for (int i = 0; count < 0 ? !atBreak(in) : i < count; i++) {
+            switch (readText(in)) {
+                case "source":
+                    remarks.setSource(readText(in));
+                    break;
+                case "time":
+                    remarks.setTime(DATATYPE_FACTORY.newXMLGregorianCalendar(readText(in)));
+                    break;
+                case "to":
+                    remarks.setTo(readText(in));
+                    break;
+                case "keywords":
+                    remarks.setKeywords(readText(in));
+                    break;
+                case "version":
+                    remarks.setVersion(readDouble(in));
+                    break;
+                case "content":
+                    remarks.getContent().add(readText(in));
+                    break;
+                default:
+                    skip(in);
+            }
+        }
+        return remarks;
+    }//readRemarks
+
+    private static int count(String value) {
+        return value == null ? 0 : 1;
+    }//count
+
+    private static int count(double value) {
+        return Double.isNaN(value) ? 0 : 1;
+    }//count
+
+    /**
+     * Write the initial byte and the argument of a data item.
+     */
+    private static void head(CoTbinaryWriter out, int majorType, long argument) {
+        int major = majorType << 5;
+        if (argument < 24) {
+            out.write(major | (int) argument);
+        } else if (argument < 0x100) {
+            out.write(major | 24);
+            out.write((int) argument);
+        } else if (argument < 0x10000) {
+            out.write(major | 25);
+            out.write((int) (argument >> 8));
+            out.write((int) argument);
+        } else if (argument < 0x100000000L) {
+            out.write(major | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.write((int) (argument >> shift));
+            }
+        } else {
+            out.write(major | 27);
+            out.writeLong(argument);
+        }
+    }//head
+
+    private static void writeLong(CoTbinaryWriter out, long value) {
+        if (value < 0) {
+            head(out, NEGATIVE, -1 - value);
+        } else {
+            head(out, UNSIGNED, value);
+        }
+    }//writeLong
+
+    private static void writeText(CoTbinaryWriter out, String value) {
+        head(out, TEXT, CoTbinaryWriter.utf8Length(value));
+        out.writeUtf8(value);
+    }//writeText
+
+    private static void writeText(CoTbinaryWriter out, int key, String value) {
+        if (value != null) {
+            head(out, UNSIGNED, key);
+            writeText(out, value);
+        }
+    }//writeText
+
+    private static void writeAttribute(CoTbinaryWriter out, String name, String value) {
+        if (value != null) {
+            writeText(out, name);
+            writeText(out, value);
+        }
+    }//writeAttribute
+
+    private static void writeAttribute(CoTbinaryWriter out, String name, double value) {
+        if (value != 0) {
+            writeText(out, name);
+            writeDouble(out, value);
+        }
+    }//writeAttribute
+
+    private static void writeDouble(CoTbinaryWriter out, int key, double value) {
+        if (!Double.isNaN(value)) {
+            head(out, UNSIGNED, key);
+            writeDouble(out, value);
+        }
+    }//writeDouble
+
+    /**
+     * Write a double as a single precision float if that loses nothing.
+     */
+    private static void writeDouble(CoTbinaryWriter out, double value) {
+        float single = (float) value;
+        if (single == value) {
+            out.write(SIMPLE << 5 | 26);
+            int bits = Float.floatToIntBits(single);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.write(bits >> shift);
+            }
+        } else {
+            out.write(SIMPLE << 5 | 27);
+            out.writeLong(Double.doubleToLongBits(value));
+        }
+    }//writeDouble
+
+    /**
+     * Read the argument of a data item whose initial byte was read.
+     */
+    private static long argument(ByteBuffer in, int initial) {
+        int info = initial & 0x1F;
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24:
+                return in.get() & 0xFF;
+            case 25:
+                return in.getShort() & 0xFFFF;
+            case 26:
+                return in.getInt() & 0xFFFFFFFFL;
+            case 27:
+                return in.getLong();
+            default:
+                throw new IllegalArgumentException("Unsupported CBOR argument " + info);
+        }
+    }//argument
+
+    private static int expect(ByteBuffer in, int majorType) {
+        int initial = in.get() & 0xFF;
+        if (initial >>> 5 != majorType) {
+            throw new IllegalArgumentException("Expected CBOR major type " + majorType + " but got " + (initial >>> 5));
+        }
+        return initial;
+    }//expect
+
+    /**
+     * @return the number of pairs, -1 for a map of indefinite length
+     */
+    private static int readMap(ByteBuffer in) {
+        int initial = expect(in, MAP);
+        return (initial & 0x1F) == 31 ? -1 : (int) argument(in, initial);
+    }//readMap
+
+    /**
+     * @return true and read the break if a map of indefinite length ends
+     */
+    private static boolean atBreak(ByteBuffer in) {
+        if ((in.get(in.position()) & 0xFF) == BREAK) {
+            in.get();
+            return true;
+        }
+        return false;
+    }//atBreak
+
+    private static long readUnsigned(ByteBuffer in) {
+        return argument(in, expect(in, UNSIGNED));
+    }//readUnsigned
+
+    private static long readLong(ByteBuffer in) {
+        int initial = in.get() & 0xFF;
+        long argument = argument(in, initial);
+        switch (initial >>> 5) {
+            case UNSIGNED:
+                return argument;
+            case NEGATIVE:
+                return -1 - argument;
+            default:
+                throw new IllegalArgumentException("Expected a CBOR integer");
+        }
+    }//readLong
+
+    /**
+     * Read a uid, type or how as the shared instance of the CoTstringPool.
+     */
+    private static String readPooledText(ByteBuffer in) {
+        int length = (int) argument(in, expect(in, TEXT));
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Malformed CBOR text length " + length);
+        }
+        String value = CoTstringPool.getDefault().get(in, in.position(), in.position() + length);
+        in.position(in.position() + length);
+        return value;
+    }//readPooledText
+
+    private static String readText(ByteBuffer in) {
+        int length = (int) argument(in, expect(in, TEXT));
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Malformed CBOR text length " + length);
+        }
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return value;
+    }//readText
+
+    private static double readDouble(ByteBuffer in) {
+        int initial = in.get(in.position()) & 0xFF;
+        switch (initial) {
+            case SIMPLE << 5 | 25:
+                in.get();
+                return halfToDouble(in.getShort() & 0xFFFF);
+            case SIMPLE << 5 | 26:
+                in.get();
+                return in.getFloat();
+            case SIMPLE << 5 | 27:
+                in.get();
+                return in.getDouble();
+            default:
+                return readLong(in);
+        }
+    }//readDouble
+
+    private static double halfToDouble(int half) {
+        int exponent = (half >> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent != 31) {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        } else {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (half & 0x8000) == 0 ? value : -value;
+    }//halfToDouble
+
+    /**
+     * Skip a data item of any type.
+     */
+    private static void skip(ByteBuffer in) {
+        int initial = in.get() & 0xFF;
+        int majorType = initial >>> 5;
+        if ((initial & 0x1F) == 31) {
+            // indefinite length, the items end with a break
+            while ((in.get(in.position()) & 0xFF) != BREAK) {
+                skip(in);
+            }
+            in.get();
+            return;
+        }
+        long argument = majorType == SIMPLE ? 0 : argument(in, initial);
+        switch (majorType) {
+            case 2:
+            case TEXT:
+                in.position((int) (in.position() + argument));
+                break;
+            case 4:
+                for (long i = 0; i < argument; i++) {
+                    skip(in);
+                }
+                break;
+            case MAP:
+                for (long i = 0; i < 2 * argument; i++) {
+                    skip(in);
+                }
+                break;
+            case 6:
+                // a tag, skip the tagged item
+                skip(in);
+                break;
+            case SIMPLE:
+                int info = initial & 0x1F;
+                in.position(in.position() + (info == 24 ? 1 : info == 25 ? 2 : info == 26 ? 4 : info == 27 ? 8 : 0));
+                break;
+            default:
+                // integers have no content
+        }
+    }//skip
+}// class CoTcbor
@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.ZipException;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTconnectionStats.Format;
+
+/**
+ * The input side of one client connection of a CoTtcpListener. The format of
+ * the connection is detected once from its first bytes: CoT XML starts with
+ * '&lt;', TAK protocol stream messages with the magic byte 0xbf and a gzip
+ * stream with 0x1f 0x8b. XML and TAK bytes go straight to the event framer,
+ * which also follows a TAK client that switches from XML to TAK messages, a
+ * gzip stream is inflated first. The detected format and the counters of the
+ * connection are kept in its CoTconnectionStats.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+class CoTconnectionDecoder {
+
+    private static final byte GZIP_ID1 = 0x1F;
+    private static final byte GZIP_ID2 = (byte) 0x8B;
+    private static final byte UTF8_BOM = (byte) 0xEF;
+
+    private final CoTeventFramer framer;
+    private final CoTconnectionStats stats;
+    private final AtomicLongArray formatCounts;
+    private CoTgzipDecoder gzip;
+    private boolean detected = false;
+    private boolean held = false; // a first byte 0x1f waits for the next one
+
+    /**
+     * Create the decoder of a new connection.
+     *
+     * @param framer the framer of the connection
+     * @param stats the statistics of the connection
+     * @param formatCounts the number of connections of each format, counted
+     * once the format is detected
+     */
+    CoTconnectionDecoder(CoTeventFramer framer, CoTconnectionStats stats, AtomicLongArray formatCounts) {
+        this.framer = framer;
+        this.stats = stats;
+        this.formatCounts = formatCounts;
+    }//CoTconnectionDecoder
+
+    /**
+     *
+     * @return the statistics of the connection
+     */
+    CoTconnectionStats getStats() {
+        return stats;
+    }//getStats
+
+    /**
+     * Feed received bytes to the decoder. Every event completed by these
+     * bytes is dispatched before the method returns. The buffer is consumed.
+     *
+     * @param bytes the received bytes between position and limit
+     * @throws ZipException if a gzip connection sends an invalid stream
+     */
+    void feed(ByteBuffer bytes) throws ZipException {
+        stats.addBytesReceived(bytes.remaining());
+        if (detected || detect(bytes)) {
+            if (gzip != null) {
+                gzip.feed(bytes);
+            } else {
+                framer.feed(bytes);
+            }
+        }
+        stats.update(framer);
+    }//feed(ByteBuffer bytes)
+
+    /**
+     * Feed received bytes to the decoder. Every event completed by these
+     * bytes is dispatched before the method returns.
+     *
+     * @param bytes an array holding the received bytes
+     * @param offset the position of the first received byte
+     * @param length the number of received bytes
+     * @throws ZipException if a gzip connection sends an invalid stream
+     */
+    void feed(byte[] bytes, int offset, int length) throws ZipException {
+        feed(ByteBuffer.wrap(bytes, offset, length));
+    }//feed(byte[] bytes, int offset, int length)
+
+    /**
+     * Called when the sender closed the connection, dispatches a last event
+     * the client did not terminate.
+     *
+     * @throws IOException if a gzip stream ends before its last member is
+     * complete
+     */
+    void flush() throws IOException {
+        if (held) {
+            held = false;
+            framer.feed(new byte[]{GZIP_ID1}, 0, 1);
+        }
+        boolean complete = gzip == null || gzip.isComplete();
+        framer.flush();
+        stats.update(framer);
+        if (!complete) {
+            throw new ZipException("Unexpected end of gzip stream");
+        }
+    }//flush
+
+    /**
+     * Release the resources of the connection.
+     */
+    void close() {
+        if (gzip != null) {
+            gzip.end();
+        }
+    }//close
+
+    /**
+     * Detect the format from the first bytes. Leading whitespace is skipped
+     * as the framer does.
+     *
+     * @return true once the format is known and the remaining bytes can be
+     * decoded
+     */
+    private boolean detect(ByteBuffer bytes) throws ZipException {
+        int position = bytes.position();
+        if (!held) {
+            while (position < bytes.limit()
+                    && (CoTeventFramer.isWhitespace(bytes.get(position)) || bytes.get(position) == 0)) {
+                position++;
+            }
+            bytes.position(position);
+        }
+        if (position == bytes.limit()) {
+            return false;
+        }
+        byte first = held ? GZIP_ID1 : bytes.get(position);
+        Format format;
+        if (first == GZIP_ID1) {
+            int next = held ? position : position + 1;
+            if (next == bytes.limit()) {
+                bytes.get();
+                held = true;
+                return false;
+            }
+            format = bytes.get(next) == GZIP_ID2 ? Format.GZIP : Format.UNKNOWN;
+        } else if (first == '<' || first == UTF8_BOM) {
+            format = Format.XML;
+        } else if (first == CoTtakProtocol.MAGIC) {
+            format = Format.TAK;
+        } else {
+            format = Format.UNKNOWN;
+        }
+        detected = true;
+        stats.setFormat(format);
+        formatCounts.incrementAndGet(format.ordinal());
+        if (format == Format.GZIP) {
+            gzip = new CoTgzipDecoder(framer);
+        }
+        if (held) {
+            held = false;
+            ByteBuffer firstByte = ByteBuffer.wrap(new byte[]{GZIP_ID1});
+            if (gzip != null) {
+                gzip.feed(firstByte);
+            } else {
+                framer.feed(firstByte);
+            }
+        }
+        return true;
+    }//detect
+}// class CoTconnectionDecoder
@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.net.SocketAddress;
+
+/**
+ * Statistics of one client connection of a CoTtcpListener. The format of a
+ * connection is detected once from its first bytes, the counters are updated
+ * by the thread that reads the connection while it is open.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTconnectionStats {
+
+    /**
+     * The format a client speaks, detected from the first bytes of the
+     * connection.
+     */
+    public enum Format {
+        /**
+         * No bytes received yet, or the first bytes match no known format.
+         * The bytes are framed as CoT XML.
+         */
+        UNKNOWN,
+        /**
+         * CoT XML, the connection starts with &lt;?xml or &lt;event.
+         */
+        XML,
+        /**
+         * TAK protocol stream messages, the connection starts with the magic
+         * byte 0xbf.
+         */
+        TAK,
+        /**
+         * A gzip stream of CoT XML or TAK messages, the connection starts with
+         * the gzip header 0x1f 0x8b.
+         */
+        GZIP
+    }//enum Format
+
+    private final SocketAddress source;
+    private final long connectedAt = System.currentTimeMillis();
+    private volatile Format format = Format.UNKNOWN;
+    private volatile long bytesReceived = 0;
+    private volatile long eventCount = 0;
+    private volatile long discardedBytes = 0;
+
+    /**
+     * Create the statistics of a new connection.
+     *
+     * @param source the address of the client
+     */
+    CoTconnectionStats(SocketAddress source) {
+        this.source = source;
+    }//CoTconnectionStats
+
+    void setFormat(Format format) {
+        this.format = format;
+    }//setFormat
+
+    void addBytesReceived(int count) {
+        // only the thread reading the connection writes the counters
+        bytesReceived += count;
+    }//addBytesReceived
+
+    void update(CoTeventFramer framer) {
+        eventCount = framer.getEventCount();
+        discardedBytes = framer.getDiscardedBytes();
+    }//update
+
+    /**
+     *
+     * @return the address of the client
+     */
+    public SocketAddress getSource() {
+        return source;
+    }//getSource
+
+    /**
+     *
+     * @return the time the connection was accepted in milliseconds since the
+     * epoch
+     */
+    public long getConnectedAt() {
+        return connectedAt;
+    }//getConnectedAt
+
+    /**
+     *
+     * @return the format detected from the first bytes of the connection
+     */
+    public Format getFormat() {
+        return format;
+    }//getFormat
+
+    /**
+     *
+     * @return the number of bytes received, compressed bytes for GZIP
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }//getBytesReceived
+
+    /**
+     *
+     * @return the number of events handed on
+     */
+    public long getEventCount() {
+        return eventCount;
+    }//getEventCount
+
+    /**
+     *
+     * @return the number of bytes discarded because an event exceeded the
+     * maximum event size
+     */
+    public long getDiscardedBytes() {
+        return discardedBytes;
+    }//getDiscardedBytes
+
+    @Override
+    public String toString() {
+        return source + " " + format + " bytes=" + bytesReceived + " events=" + eventCount
+                + " discarded=" + discardedBytes;
+    }//toString
+}// class CoTconnectionStats
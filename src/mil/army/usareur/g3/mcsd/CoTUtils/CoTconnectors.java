@@ -25,6 +25,9 @@ package mil.army.usareur.g3.mcsd.CoTUtils;
 
 import java.lang.Thread.State;
 import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
 
 /**
  *
@@ -35,6 +38,8 @@ public class CoTconnectors {
     private final HashMap<Integer, Object> cotListeners = new HashMap<>();
     private CoTparser cotParser;
     private boolean cotParserSet = false;
+    private CoTeventSink eventSink;
+    private CoTdeadLetters deadLetters;
 
     /**
      * Set a customized CoT parser to be used for parsing the CoT events. This
@@ -48,6 +53,29 @@ public class CoTconnectors {
         cotParserSet = true;
     }
 
+    /**
+     * Set the stage the listeners hand the received CoT events to, e.g. a
+     * CoTringBuffer that decouples the listener threads from the CoT parser.
+     * By default the events are handed straight to the CoT parser. Like the
+     * parser, the event sink must be set before the listeners are added.
+     *
+     * @param eventSink the stage that receives the CoT events
+     */
+    public void setEventSink(CoTeventSink eventSink) {
+        this.eventSink = eventSink;
+    }//setEventSink
+
+    /**
+     * Set the dead letters all the listeners hand the messages the event
+     * handler failed on to. By default every listener only counts and logs
+     * its rejects. Must be set before the listeners are added.
+     *
+     * @param deadLetters the dead letters shared by the listeners
+     */
+    public void setDeadLetters(CoTdeadLetters deadLetters) {
+        this.deadLetters = deadLetters;
+    }//setDeadLetters
+
     /**
      * Add a UDP listener on a desired port. The listener still needs to be
      * started.
@@ -55,16 +83,8 @@ public class CoTconnectors {
      * @param port an integer port number
      */
     public void addUdpListener(int port) {
-        if (!cotListeners.containsKey(port)) {
-            CoTudpListener cotUdpListener = new CoTudpListener(port);
-            if (this.cotParserSet) {
-                cotUdpListener.setCoTparser(cotParser);
-            }
-            cotListeners.put(port, cotUdpListener);
-            System.out.println("CoT UDP Listener created, port: " + cotUdpListener.getPort());
-        } else {
-            // Todo: handle existing listener
-            System.out.println(port + " already exists, finish this method");
+        if (isNewPort(port)) {
+            addListener(port, new CoTudpListener(port), "CoT UDP Listener created, port: " + port);
         }
     }//addUdpListener
 
@@ -75,16 +95,8 @@ public class CoTconnectors {
      * @param port an integer port number
      */
     public void addTcpListener(int port) {
-        if (!cotListeners.containsKey(port)) {
-            CoTtcpListener cotTcpListener = new CoTtcpListener(port);
-            if (this.cotParserSet) {
-                cotTcpListener.setCoTparser(cotParser);
-            }
-            cotListeners.put(port, cotTcpListener);
-            System.out.println("CoT TCP Listener created, port: " + cotTcpListener.getPort());
-        } else {
-            // Todo: handle existing listener
-            System.out.println(port + " already exists, finish this method");
+        if (isNewPort(port)) {
+            addListener(port, new CoTtcpListener(port), "CoT TCP Listener created, port: " + port);
         }
     }//addTcpListener
 
@@ -97,16 +109,8 @@ public class CoTconnectors {
      * @param debug a boolean indicating whether to print out debug statements
      */
     public void addUdpListener(int port, boolean debug) {
-        if (!cotListeners.containsKey(port)) {
-            CoTudpListener cotUdpListener = new CoTudpListener(port, debug);
-            if (this.cotParserSet) {
-                cotUdpListener.setCoTparser(cotParser);
-            }
-            cotListeners.put(port, cotUdpListener);
-            System.out.println("CoT UDP Listener created, port: " + cotUdpListener.getPort());
-        } else {
-            // Todo: handle existing listener
-            System.out.println(port + " already exists, finish this method");
+        if (isNewPort(port)) {
+            addListener(port, new CoTudpListener(port, debug), "CoT UDP Listener created, port: " + port);
         }
     }//addUdpListener
 
@@ -119,16 +123,55 @@ public class CoTconnectors {
      * @param debug a boolean indicating whether to print out debug statements
      */
     public void addTcpListener(int port, boolean debug) {
-        if (!cotListeners.containsKey(port)) {
-            CoTtcpListener cotTcpListener = new CoTtcpListener(port, debug);
-            if (this.cotParserSet) {
-                cotTcpListener.setCoTparser(cotParser);
-            }
-            cotListeners.put(port, cotTcpListener);
-            System.out.println("CoT TCP Listener created, port: " + cotTcpListener.getPort());
-        } else {
-            // Todo: handle existing listener
-            System.out.println(port + " already exists, finish this method");
+        if (isNewPort(port)) {
+            addListener(port, new CoTtcpListener(port, debug), "CoT TCP Listener created, port: " + port);
+        }
+    }//addTcpListener
+
+    /**
+     * Add a TCP listener on a desired port that services its client
+     * connections in the given mode. The listener still needs to be started.
+     *
+     * @param port an integer port number
+     * @param mode the connection handling mode, see CoTtcpListener.Mode
+     */
+    public void addTcpListener(int port, CoTtcpListener.Mode mode) {
+        if (isNewPort(port)) {
+            addListener(port, new CoTtcpListener(port, mode), "CoT TCP Listener created, port: " + port + " mode: " + mode);
+        }
+    }//addTcpListener
+
+    /**
+     * Add a TLS listener on a desired port, e.g. 8089 for TAK clients. The
+     * listener still needs to be started.
+     *
+     * @param port an integer port number
+     * @param sslContext the TLS context with the listener certificate and the
+     * trusted client certificates, see CoTtcpListener.newSslContext()
+     * @param needClientAuth true to require client certificates (mutual TLS)
+     */
+    public void addTlsListener(int port, SSLContext sslContext, boolean needClientAuth) {
+        if (isNewPort(port)) {
+            CoTtcpListener cotTcpListener = new CoTtcpListener(port, CoTtcpListener.Mode.TLS);
+            cotTcpListener.setSslContext(sslContext);
+            cotTcpListener.setNeedClientAuth(needClientAuth);
+            addListener(port, cotTcpListener, "CoT TLS Listener created, port: " + port);
+        }
+    }//addTlsListener
+
+    /**
+     * Add a TCP listener on a desired port that services its client
+     * connections in the given mode and set the debug statement option. Debug
+     * statements are not printed by default. The listener still needs to be
+     * started.
+     *
+     * @param port an integer port number
+     * @param mode the connection handling mode, see CoTtcpListener.Mode
+     * @param debug a boolean indicating whether to print out debug statements
+     */
+    public void addTcpListener(int port, CoTtcpListener.Mode mode, boolean debug) {
+        if (isNewPort(port)) {
+            addListener(port, new CoTtcpListener(port, mode, debug), "CoT TCP Listener created, port: " + port + " mode: " + mode);
         }
     }//addTcpListener
 
@@ -139,16 +182,8 @@ public class CoTconnectors {
      * @param packetSize an integer representing the maximum packet size
      */
     public void addUdpListener(int port, int packetSize) {
-        if (!cotListeners.containsKey(port)) {
-            CoTudpListener cotUdpListener = new CoTudpListener(port, packetSize);
-            if (this.cotParserSet) {
-                cotUdpListener.setCoTparser(cotParser);
-            }
-            cotListeners.put(port, cotUdpListener);
-            System.out.println("CoT UDP Listener created, port: " + cotUdpListener.getPort());
-        } else {
-            // Todo: handle existing listener
-            System.out.println(port + " already exists, finish this method");
+        if (isNewPort(port)) {
+            addListener(port, new CoTudpListener(port, packetSize), "CoT UDP Listener created, port: " + port);
         }
     }//addUdpListener
 
@@ -161,18 +196,131 @@ public class CoTconnectors {
      * @param debug a boolean indicating whether to print out debug statements
      */
     public void addUdpListener(int port, int packetSize, boolean debug) {
-        if (!cotListeners.containsKey(port)) {
+        if (isNewPort(port)) {
+            addListener(port, new CoTudpListener(port, packetSize, debug), "CoT UDP Listener created, port: " + port);
+        }
+    }//addUdpListener
+
+    /**
+     * Add a UDP listener on the desired port with a maximum packet size that
+     * receives on several sockets sharing the port, each with its own receive
+     * thread. See CoTudpListener.setSocketCount().
+     *
+     * @param port an integer port number
+     * @param packetSize an integer representing the maximum packet size
+     * @param socketCount an integer number of sockets sharing the port
+     */
+    public void addUdpListener(int port, int packetSize, int socketCount) {
+        addUdpListener(port, packetSize, socketCount, false);
+    }//addUdpListener
+
+    /**
+     * Add a UDP listener on the desired port with a maximum packet size that
+     * receives on several sockets sharing the port, each with its own receive
+     * thread, and set the debug statement option. Debug statements are not
+     * printed by default. See CoTudpListener.setSocketCount().
+     *
+     * @param port an integer port number
+     * @param packetSize an integer representing the maximum packet size
+     * @param socketCount an integer number of sockets sharing the port
+     * @param debug a boolean indicating whether to print out debug statements
+     */
+    public void addUdpListener(int port, int packetSize, int socketCount, boolean debug) {
+        if (isNewPort(port)) {
+            addListener(port, new CoTudpListener(port, packetSize, socketCount, debug),
+                    "CoT UDP Listener created, port: " + port + " sockets: " + socketCount);
+        }
+    }//addUdpListener
+
+    /**
+     * Add a UDP listener on a desired port that joins a multicast group, e.g.
+     * the SA group CoTudpListener.SA_MULTICAST_GROUP on port
+     * CoTudpListener.SA_MULTICAST_PORT. The listener still needs to be
+     * started.
+     *
+     * @param port an integer port number
+     * @param group the multicast group address
+     * @param networkInterface the name of the network interface to join the
+     * group on, or null for all interfaces that support multicast
+     */
+    public void addMulticastListener(int port, String group, String networkInterface) {
+        addMulticastListener(port, 1024, new String[]{group}, networkInterface, false);
+    }//addMulticastListener
+
+    /**
+     * Add a UDP listener on a desired port with a maximum packet size that
+     * joins several multicast groups and set the debug statement option. Debug
+     * statements are not printed by default. The listener still needs to be
+     * started.
+     *
+     * @param port an integer port number
+     * @param packetSize an integer representing the maximum packet size
+     * @param groups the multicast group addresses
+     * @param networkInterface the name of the network interface to join the
+     * groups on, or null for all interfaces that support multicast
+     * @param debug a boolean indicating whether to print out debug statements
+     */
+    public void addMulticastListener(int port, int packetSize, String[] groups, String networkInterface, boolean debug) {
+        if (isNewPort(port)) {
             CoTudpListener cotUdpListener = new CoTudpListener(port, packetSize, debug);
-            if (this.cotParserSet) {
-                cotUdpListener.setCoTparser(cotParser);
+            for (String group : groups) {
+                cotUdpListener.addMulticastGroup(group, networkInterface);
             }
-            cotListeners.put(port, cotUdpListener);
-            System.out.println("CoT UDP Listener created, port: " + cotUdpListener.getPort());
-        } else {
-            // Todo: handle existing listener
-            System.out.println(port + " already exists, finish this method");
+            addListener(port, cotUdpListener, "CoT UDP multicast Listener created, port: " + port);
         }
-    }//addUdpListener
+    }//addMulticastListener
+
+    /**
+     * Check that no listener was added on a port yet. A port can only have
+     * one listener, a second one is not created.
+     *
+     * @param port an integer port number
+     * @return true if the port has no listener
+     */
+    private boolean isNewPort(int port) {
+        if (cotListeners.containsKey(port)) {
+            Logger.getLogger(CoTconnectors.class.getName()).log(Level.WARNING,
+                    "A CoT listener already exists, port: " + port);
+            return false;
+        }
+        return true;
+    }//isNewPort
+
+    /**
+     * Hand the parser, event sink and dead letters of the connectors to a new
+     * UDP listener and add it.
+     */
+    private void addListener(int port, CoTudpListener cotUdpListener, String message) {
+        if (this.cotParserSet) {
+            cotUdpListener.setCoTparser(cotParser);
+        }
+        if (this.eventSink != null) {
+            cotUdpListener.setEventSink(eventSink);
+        }
+        if (this.deadLetters != null) {
+            cotUdpListener.setDeadLetters(deadLetters);
+        }
+        cotListeners.put(port, cotUdpListener);
+        System.out.println(message);
+    }//addListener(int port, CoTudpListener cotUdpListener, String message)
+
+    /**
+     * Hand the parser, event sink and dead letters of the connectors to a new
+     * TCP listener and add it.
+     */
+    private void addListener(int port, CoTtcpListener cotTcpListener, String message) {
+        if (this.cotParserSet) {
+            cotTcpListener.setCoTparser(cotParser);
+        }
+        if (this.eventSink != null) {
+            cotTcpListener.setEventSink(eventSink);
+        }
+        if (this.deadLetters != null) {
+            cotTcpListener.setDeadLetters(deadLetters);
+        }
+        cotListeners.put(port, cotTcpListener);
+        System.out.println(message);
+    }//addListener(int port, CoTtcpListener cotTcpListener, String message)
 
     /**
      * Returns the listener type of the port
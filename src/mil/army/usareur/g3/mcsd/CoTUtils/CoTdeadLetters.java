@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the CoT messages the event handler failed on. The listeners hand
+ * every message whose handler throws to their dead letters instead of
+ * stopping, so one malformed message never takes a port down. Rejects are
+ * counted and the rate of the last seconds is exposed, the first reject of
+ * every second is logged.
+ *
+ * Optionally the rejected raw messages are appended to a dead-letter file for
+ * later analysis. Every record is a header line with the time, the source
+ * address, the number of message bytes and the exception, whose line breaks
+ * are replaced by spaces, followed by the bytes of the message as received and
+ * a line break. The file is never rewritten; once it reaches its maximum size
+ * further rejects are only counted as lost.
+ *
+ * Usage:
+ * <pre>
+ * CoTdeadLetters deadLetters = new CoTdeadLetters("cot-dead-letters.log", 100 * 1024 * 1024);
+ * connectors.setDeadLetters(deadLetters);
+ * ...
+ * System.out.println(deadLetters.getRejectsPerSecond() + " rejects/s");
+ * </pre>
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTdeadLetters {
+
+    // rejects per second are averaged over the last complete seconds
+    private static final int RATE_SECONDS = 10;
+
+    private final OutputStream file;
+    private final long maxBytes;
+    private final long[] buckets = new long[RATE_SECONDS + 1];
+    private final long[] bucketSeconds = new long[RATE_SECONDS + 1];
+    private long size;
+    private long rejectedCount = 0;
+    private long writtenCount = 0;
+    private long lostCount = 0;
+
+    /**
+     * Create dead letters that only count and log the rejects.
+     */
+    public CoTdeadLetters() {
+        this.file = null;
+        this.maxBytes = 0;
+    }//CoTdeadLetters()
+
+    /**
+     * Create dead letters that also append the rejected messages to a file.
+     * An existing file is appended to.
+     *
+     * @param fileName the name of the dead-letter file
+     * @param maxBytes the maximum size of the file
+     * @throws IOException if the file cannot be opened
+     */
+    public CoTdeadLetters(String fileName, long maxBytes) throws IOException {
+        this.file = new FileOutputStream(fileName, true);
+        this.maxBytes = maxBytes;
+        this.size = new File(fileName).length();
+    }//CoTdeadLetters(String fileName, long maxBytes)
+
+    /**
+     * Reject a message the event handler failed on.
+     *
+     * @param message the bytes of the message between position and limit, the
+     * position is not changed
+     * @param source the address the message was received from, or null
+     * @param cause the exception of the event handler
+     */
+    public synchronized void reject(ByteBuffer message, SocketAddress source, Throwable cause) {
+        rejectedCount++;
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        int bucket = (int) (second % buckets.length);
+        if (bucketSeconds[bucket] != second) {
+            bucketSeconds[bucket] = second;
+            buckets[bucket] = 0;
+            Logger.getLogger(CoTdeadLetters.class.getName()).log(Level.WARNING,
+                    "CoT message from " + source + " rejected", cause);
+        }
+        buckets[bucket]++;
+        if (file == null) {
+            return;
+        }
+        // a line break in the exception message would split the header line
+        String reason = String.valueOf(cause).replace('\r', ' ').replace('\n', ' ');
+        byte[] header = (CoTtime.format(now) + " " + source + " " + message.remaining() + " "
+                + reason + "\n").getBytes(StandardCharsets.UTF_8);
+        long length = header.length + message.remaining() + 1;
+        if (size + length > maxBytes) {
+            lostCount++;
+            return;
+        }
+        try {
+            byte[] bytes = new byte[message.remaining()];
+            message.duplicate().get(bytes);
+            file.write(header);
+            file.write(bytes);
+            file.write('\n');
+            file.flush();
+            size += length;
+            writtenCount++;
+        } catch (IOException ex) {
+            Logger.getLogger(CoTdeadLetters.class.getName()).log(Level.SEVERE, null, ex);
+            lostCount++;
+        }
+    }//reject
+
+    /**
+     * Close the dead-letter file.
+     */
+    public synchronized void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                Logger.getLogger(CoTdeadLetters.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }//close
+
+    /**
+     *
+     * @return the average number of rejects per second over the last ten
+     * complete seconds
+     */
+    public synchronized double getRejectsPerSecond() {
+        long second = System.currentTimeMillis() / 1000;
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            if (bucketSeconds[i] < second && bucketSeconds[i] >= second - RATE_SECONDS) {
+                count += buckets[i];
+            }
+        }
+        return (double) count / RATE_SECONDS;
+    }//getRejectsPerSecond
+
+    /**
+     *
+     * @return the number of rejected messages
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }//getRejectedCount
+
+    /**
+     *
+     * @return the number of rejected messages written to the dead-letter file
+     */
+    public synchronized long getWrittenCount() {
+        return writtenCount;
+    }//getWrittenCount
+
+    /**
+     *
+     * @return the number of rejected messages not written because the file
+     * reached its maximum size or could not be written
+     */
+    public synchronized long getLostCount() {
+        return lostCount;
+    }//getLostCount
+}// class CoTdeadLetters
@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTeventScanner.Attribute;
+
+/**
+ * Suppresses the copies of a CoT event that arrive more than once, e.g. over
+ * multicast and unicast, from relays or on several network interfaces. An
+ * event is identified by a 64 bit hash of its uid and time, optionally
+ * together with all its bytes, read with the CoTeventScanner. The time is
+ * compared as milliseconds, so the XML and the TAK protocol copies of an
+ * event match. The first copy is handed on, copies that arrive within the
+ * window are dropped before they are parsed.
+ *
+ * The fingerprints of the events are kept in a fixed size, lock-free cache
+ * of 4-way buckets. A fingerprint expires after the window; when all entries
+ * of a bucket are in use the oldest is evicted. The cache is best effort:
+ * two copies that arrive at the same moment on two threads may both pass,
+ * and a copy passes again once its entry was evicted. If the evicted count
+ * grows, the capacity is too small for the event rate and the window.
+ *
+ * Usage:
+ * <pre>
+ * CoTdeduplicator dedup = new CoTdeduplicator(cp, 65536, 30000);
+ * connectors.setEventSink(dedup);
+ * ...
+ * System.out.println(dedup.getHitRate());
+ * </pre>
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTdeduplicator implements CoTeventSink {
+
+    /**
+     * The default number of fingerprints kept.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+    /**
+     * The default window of 30 seconds.
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 30000;
+    private static final int WAYS = 4;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final CoTeventSink sink;
+    private final long windowMillis;
+    private final int mask;
+    // fingerprints, 0 is an empty entry
+    private final AtomicLongArray keys;
+    // milliseconds since epochNanos when the fingerprint was stored
+    private final AtomicLongArray stamps;
+    private final long epochNanos = System.nanoTime();
+    private volatile boolean contentHash;
+    private final AtomicLong passedCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final ThreadLocal<CoTeventScanner> scanners = new ThreadLocal<CoTeventScanner>() {
+        @Override
+        protected CoTeventScanner initialValue() {
+            return new CoTeventScanner();
+        }
+    };
+
+    /**
+     * Create a deduplicator with the default capacity and window.
+     *
+     * @param sink the next stage of the first copies, e.g. a CoTparser
+     */
+    public CoTdeduplicator(CoTeventSink sink) {
+        this(sink, DEFAULT_CAPACITY, DEFAULT_WINDOW_MILLIS);
+    }//CoTdeduplicator
+
+    /**
+     * @param sink the next stage of the first copies, e.g. a CoTparser
+     * @param capacity the number of fingerprints kept, rounded up to a power
+     * of two
+     * @param windowMillis the time in milliseconds a copy is recognized after
+     * the first one
+     */
+    public CoTdeduplicator(CoTeventSink sink, int capacity, long windowMillis) {
+        int size = WAYS;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.sink = sink;
+        this.windowMillis = windowMillis;
+        this.mask = size - 1;
+        this.keys = new AtomicLongArray(size);
+        this.stamps = new AtomicLongArray(size);
+    }//CoTdeduplicator
+
+    /**
+     * Include a hash of all the bytes of an event in its fingerprint, so
+     * updates that reuse the uid and time of an earlier event are not
+     * dropped. Copies that differ in any byte, e.g. in white space added by a
+     * relay, are no longer recognized.
+     *
+     * @param contentHash true to include the content hash
+     */
+    public void setContentHash(boolean contentHash) {
+        this.contentHash = contentHash;
+    }//setContentHash
+
+    @Override
+    public void onCoTevent(ByteBuffer event, SocketAddress source) {
+        CoTeventScanner scanner = scanners.get();
+        if (scanner.scan(event) && scanner.getLength(Attribute.UID) >= 0 && isDuplicate(fingerprint(scanner, event))) {
+            duplicateCount.incrementAndGet();
+            return;
+        }
+        passedCount.incrementAndGet();
+        sink.onCoTevent(event, source);
+    }//onCoTevent
+
+    private long fingerprint(CoTeventScanner scanner, ByteBuffer event) {
+        // a 64 bit FNV-1a hash of the uid, the time and optionally the content
+        int uid = scanner.getOffset(Attribute.UID);
+        long key = hash(FNV_OFFSET_BASIS, event, uid, uid + scanner.getLength(Attribute.UID));
+        long time = scanner.getMillis(Attribute.TIME);
+        if (time != Long.MIN_VALUE) {
+            for (int shift = 0; shift < 64; shift += 8) {
+                key = (key ^ ((time >>> shift) & 0xff)) * FNV_PRIME;
+            }
+        } else if (scanner.getOffset(Attribute.TIME) >= 0) {
+            int start = scanner.getOffset(Attribute.TIME);
+            key = hash(key, event, start, start + scanner.getLength(Attribute.TIME));
+        }
+        if (contentHash) {
+            key = hash(key, event, event.position(), event.limit());
+        }
+        // the finalizer of MurmurHash3, spreads the bits over the buckets
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key == 0 ? 1 : key;
+    }//fingerprint
+
+    private static long hash(long hash, ByteBuffer event, int start, int end) {
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (event.get(i) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }//hash
+
+    /**
+     * Look the fingerprint up and store it if it is not in the window.
+     */
+    private boolean isDuplicate(long key) {
+        long now = (System.nanoTime() - epochNanos) / 1000000 + 1;
+        int bucket = (int) key & mask & -WAYS;
+        int victim = bucket;
+        long oldest = Long.MAX_VALUE;
+        for (int slot = bucket; slot < bucket + WAYS; slot++) {
+            long stamp = stamps.get(slot);
+            if (keys.get(slot) == key) {
+                if (now - stamp <= windowMillis) {
+                    return true;
+                }
+                stamps.set(slot, now);
+                return false;
+            }
+            if (stamp < oldest) {
+                oldest = stamp;
+                victim = slot;
+            }
+        }
+        long evicted = keys.get(victim);
+        if (keys.compareAndSet(victim, evicted, key)) {
+            stamps.set(victim, now);
+            if (evicted != 0 && now - oldest <= windowMillis) {
+                evictedCount.incrementAndGet();
+            }
+        }
+        return false;
+    }//isDuplicate
+
+    /**
+     *
+     * @return the number of events handed to the next stage
+     */
+    public long getPassedCount() {
+        return passedCount.get();
+    }//getPassedCount
+
+    /**
+     *
+     * @return the number of copies dropped
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }//getDuplicateCount
+
+    /**
+     *
+     * @return the number of fingerprints evicted before their window ended
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }//getEvictedCount
+
+    /**
+     *
+     * @return the fraction of the received events that were copies
+     */
+    public double getHitRate() {
+        long duplicates = duplicateCount.get();
+        long total = duplicates + passedCount.get();
+        return total == 0 ? 0 : (double) duplicates / total;
+    }//getHitRate
+}// class CoTdeduplicator
@@ -0,0 +1,377 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An incremental framer that splits a stream of bytes into CoT events. TCP
+ * clients usually keep their connection open and send one event after the
+ * other, so the framer is fed the bytes as they arrive and hands every event
+ * to its handler as soon as the closing event tag has been received. Events
+ * that are split across several reads are reassembled. The bytes of one event
+ * are bounded by a maximum event size, an event that grows beyond it is
+ * discarded up to and including its closing event tag, and the framer
+ * re-synchronizes on the next event.
+ *
+ * Connections may also stream TAK protocol messages, the magic byte 0xbf and
+ * the length of a protobuf TakMessage followed by the message. Such a message
+ * is handed to the handler with its header as soon as all of its bytes have
+ * been received. XML events and TAK messages may follow each other on the
+ * same connection, as when a TAK client negotiates the protocol.
+ *
+ * A framer keeps state and must only be used for one connection.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTeventFramer {
+
+    /**
+     * Receives the events found by a framer.
+     */
+    public interface Handler {
+
+        /**
+         * Handle one complete CoT event. The bytes are only valid for the
+         * duration of the call.
+         *
+         * @param buffer the framer buffer holding the event
+         * @param offset the position of the first byte of the event
+         * @param length the number of bytes of the event
+         */
+        void onEvent(byte[] buffer, int offset, int length);
+    }//interface Handler
+
+    /**
+     * The default maximum event size of 1 MB.
+     */
+    public static final int DEFAULT_MAX_EVENT_SIZE = 1024 * 1024;
+
+    private static final byte[] END_TAG = {'<', '/', 'e', 'v', 'e', 'n', 't'};
+
+    private final Handler handler;
+    private final int maxEventSize;
+    private byte[] buffer = new byte[4096];
+    private int start = 0;      // first byte of the event being assembled
+    private int limit = 0;      // end of the received bytes
+    private int scan = 0;       // where the search for the end tag resumes
+    private long eventCount = 0;
+    private long discardedBytes = 0;
+    private long skipBytes = 0; // the rest of a discarded TAK message
+    private boolean skipEvent = false; // skipping the rest of a discarded XML event
+
+    /**
+     * Create a framer with the default maximum event size.
+     *
+     * @param handler the handler that receives the complete events
+     */
+    public CoTeventFramer(Handler handler) {
+        this(handler, DEFAULT_MAX_EVENT_SIZE);
+    }//CoTeventFramer(Handler handler)
+
+    /**
+     * Create a framer.
+     *
+     * @param handler the handler that receives the complete events
+     * @param maxEventSize the maximum number of bytes of a single event
+     */
+    public CoTeventFramer(Handler handler, int maxEventSize) {
+        this.handler = handler;
+        this.maxEventSize = maxEventSize;
+    }//CoTeventFramer(Handler handler, int maxEventSize)
+
+    /**
+     * Feed received bytes to the framer. Every event completed by these bytes
+     * is handed to the handler before the method returns. The buffer is
+     * consumed.
+     *
+     * @param bytes the received bytes between position and limit
+     */
+    public void feed(ByteBuffer bytes) {
+        int count = bytes.remaining();
+        ensureCapacity(count);
+        bytes.get(buffer, limit, count);
+        limit += count;
+        frame();
+    }//feed(ByteBuffer bytes)
+
+    /**
+     * Feed received bytes to the framer. Every event completed by these bytes
+     * is handed to the handler before the method returns.
+     *
+     * @param bytes an array holding the received bytes
+     * @param offset the position of the first received byte
+     * @param length the number of received bytes
+     */
+    public void feed(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, limit, length);
+        limit += length;
+        frame();
+    }//feed(byte[] bytes, int offset, int length)
+
+    /**
+     * Called when the sender closed the connection. Any bytes that did not
+     * form a complete event are handed to the handler as they are, which
+     * matches senders that mark the end of a message by closing the
+     * connection. An incomplete TAK message is discarded.
+     */
+    public void flush() {
+        skipWhitespace();
+        if (skipEvent) {
+            // the rest of a discarded event, never hand on a part
+            discardedBytes += limit - start;
+        } else if (start < limit && buffer[start] == CoTtakProtocol.MAGIC) {
+            // a TAK message always has its length, never hand on a part
+            discardedBytes += limit - start;
+        } else if (start < limit) {
+            eventCount++;
+            handler.onEvent(buffer, start, limit - start);
+        }
+        start = 0;
+        limit = 0;
+        scan = 0;
+        skipBytes = 0;
+        skipEvent = false;
+    }//flush
+
+    /**
+     *
+     * @return the number of events handed to the handler
+     */
+    public long getEventCount() {
+        return eventCount;
+    }//getEventCount
+
+    /**
+     *
+     * @return the number of bytes discarded because an event exceeded the
+     * maximum event size
+     */
+    public long getDiscardedBytes() {
+        return discardedBytes;
+    }//getDiscardedBytes
+
+    private void frame() {
+        while (true) {
+            if (skipBytes > 0) {
+                int count = (int) Math.min(skipBytes, limit - start);
+                start += count;
+                skipBytes -= count;
+                discardedBytes += count;
+            }
+            if (skipEvent && !skipEventRest()) {
+                return;
+            }
+            skipWhitespace();
+            if (scan < start) {
+                scan = start;
+            }
+            if (start < limit && buffer[start] == CoTtakProtocol.MAGIC) {
+                int end = findTakMessageEnd();
+                if (end < 0) {
+                    return;
+                }
+                if (end > start) {
+                    eventCount++;
+                    handler.onEvent(buffer, start, end - start);
+                    start = end;
+                    scan = end;
+                }
+                continue;
+            }
+            int end = findEventEnd();
+            if (end < 0) {
+                if (limit - start > maxEventSize) {
+                    discard();
+                }
+                return;
+            }
+            if (end - start > maxEventSize) {
+                // received in one read, discard it as a whole
+                Logger.getLogger(CoTeventFramer.class.getName()).log(Level.WARNING,
+                        "CoT event exceeds {0} bytes and is discarded", maxEventSize);
+                discardedBytes += end - start;
+            } else {
+                eventCount++;
+                handler.onEvent(buffer, start, end - start);
+            }
+            start = end;
+            scan = end;
+        }//while
+    }//frame
+
+    /**
+     * Drop the bytes of a discarded event up to and including its closing
+     * event tag. Only the bytes of a closing tag that may be incomplete are
+     * kept.
+     *
+     * @return true if the closing tag was found and framing resumes after it
+     */
+    private boolean skipEventRest() {
+        if (scan < start) {
+            scan = start;
+        }
+        int end = findEventEnd();
+        if (end < 0) {
+            discardedBytes += scan - start;
+            start = scan;
+            if (limit - start > maxEventSize) {
+                // not a closing tag, only white space after "</event"
+                discardedBytes += limit - start;
+                start = limit;
+                scan = limit;
+            }
+            return false;
+        }
+        discardedBytes += end - start;
+        start = end;
+        scan = end;
+        skipEvent = false;
+        return true;
+    }//skipEventRest
+
+    /**
+     * Search for the closing event tag, "&lt;/event" followed by optional
+     * white space and "&gt;".
+     *
+     * @return the position after the closing tag or -1 if the event is not
+     * complete yet
+     */
+    private int findEventEnd() {
+        int last = limit - END_TAG.length;
+        for (int i = scan; i <= last; i++) {
+            if (buffer[i] != '<' || !matchesEndTag(i)) {
+                continue;
+            }
+            int j = i + END_TAG.length;
+            while (j < limit && isWhitespace(buffer[j])) {
+                j++;
+            }
+            if (j == limit) {
+                scan = i; // the rest of the tag has not been received yet
+                return -1;
+            }
+            if (buffer[j] == '>') {
+                return j + 1;
+            }
+        }
+        scan = Math.max(start, last + 1);
+        return -1;
+    }//findEventEnd
+
+    /**
+     * Read the stream header of a TAK message. A message that exceeds the
+     * maximum event size is skipped.
+     *
+     * @return the position after the message, start if the message is
+     * skipped, or -1 if the message is not complete yet
+     */
+    private int findTakMessageEnd() {
+        long length = 0;
+        int i = start + 1;
+        for (int shift = 0; i < limit; shift += 7) {
+            byte b = buffer[i++];
+            length |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+            if (shift >= 28) {
+                // not a varint of a message length, skip the magic byte
+                Logger.getLogger(CoTeventFramer.class.getName()).log(Level.WARNING,
+                        "Malformed TAK message header is discarded");
+                discardedBytes++;
+                start++;
+                return start;
+            }
+        }
+        if (i == limit && buffer[i - 1] < 0) {
+            return -1; // the rest of the header has not been received yet
+        }
+        long total = i - start + length;
+        if (length > maxEventSize) {
+            Logger.getLogger(CoTeventFramer.class.getName()).log(Level.WARNING,
+                    "TAK message exceeds {0} bytes and is discarded", maxEventSize);
+            skipBytes = total;
+            return start;
+        }
+        return total <= limit - start ? (int) (start + total) : -1;
+    }//findTakMessageEnd
+
+    private boolean matchesEndTag(int position) {
+        for (int k = 1; k < END_TAG.length; k++) {
+            if (buffer[position + k] != END_TAG[k]) {
+                return false;
+            }
+        }
+        return true;
+    }//matchesEndTag
+
+    private void skipWhitespace() {
+        while (start < limit && (isWhitespace(buffer[start]) || buffer[start] == 0)) {
+            start++;
+        }
+        if (start == limit) {
+            start = 0;
+            limit = 0;
+            scan = 0;
+        }
+    }//skipWhitespace
+
+    /**
+     * Discard the received bytes of an oversized event and skip the rest of it
+     * until its closing event tag.
+     */
+    private void discard() {
+        Logger.getLogger(CoTeventFramer.class.getName()).log(Level.WARNING,
+                "CoT event exceeds {0} bytes and is discarded", maxEventSize);
+        // findEventEnd() left scan at a closing tag that may be incomplete
+        discardedBytes += scan - start;
+        start = scan;
+        skipEvent = true;
+    }//discard
+
+    private void ensureCapacity(int count) {
+        if (limit + count <= buffer.length) {
+            return;
+        }
+        if (start > 0) {
+            // move the event being assembled to the front of the buffer
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            scan -= start;
+            start = 0;
+        }
+        if (limit + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, limit + count));
+        }
+    }//ensureCapacity
+
+    static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }//isWhitespace
+}// class CoTeventFramer
@@ -0,0 +1,642 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A flyweight scanner that reads the core attributes of a CoT event directly
+ * from the received bytes, without parsing the XML into a document. The
+ * attributes of the event element are recorded as offsets into the buffer
+ * and the point is converted to primitive doubles, so handlers that only need
+ * the uid, type, time or position of an event do not create any objects.
+ *
+ * TAK protocol messages are scanned as well: the uid, type and how are
+ * recorded as offsets of their UTF-8 bytes in the protobuf TakMessage, the
+ * times are kept as milliseconds and only have a String value, no offset.
+ *
+ * A scanner is reused for one event after the other and must not be shared
+ * between threads. The values are only valid until the next scan and while
+ * the scanned buffer is not changed. See CoTparser.scanCoTevent().
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTeventScanner {
+
+    /**
+     * The attributes of the event element the scanner records.
+     */
+    public enum Attribute {
+        UID("uid"), TYPE("type"), HOW("how"), TIME("time"), START("start"), STALE("stale");
+
+        private final byte[] name;
+
+        Attribute(String name) {
+            this.name = name.getBytes(StandardCharsets.US_ASCII);
+        }
+    }//enum Attribute
+
+    private static final Attribute[] ATTRIBUTES = Attribute.values();
+    private static final byte[] EVENT_TAG = {'<', 'e', 'v', 'e', 'n', 't'};
+    private static final byte[] POINT_TAG = {'<', 'p', 'o', 'i', 'n', 't'};
+    private static final byte[] LAT = {'l', 'a', 't'};
+    private static final byte[] LON = {'l', 'o', 'n'};
+    private static final byte[] HAE = {'h', 'a', 'e'};
+    private static final byte[] CE = {'c', 'e'};
+    private static final byte[] LE = {'l', 'e'};
+    // Powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private ByteBuffer event;
+    private final int[] starts = new int[ATTRIBUTES.length];
+    private final int[] ends = new int[ATTRIBUTES.length];
+    private boolean takMessage;
+    private final long[] millis = new long[ATTRIBUTES.length];
+    private int cursor;
+    private boolean point;
+    private double lat;
+    private double lon;
+    private double hae;
+    private double ce;
+    private double le;
+
+    /**
+     * Scan the event element and the point of a CoT event. The position and
+     * limit of the buffer are not changed.
+     *
+     * @param event the bytes of the CoT XML between position and limit
+     * @return true if an event element with a type attribute was found
+     */
+    public boolean scan(ByteBuffer event) {
+        this.event = event;
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = -1;
+            ends[i] = -1;
+        }
+        point = false;
+        lat = lon = hae = ce = le = Double.NaN;
+        takMessage = CoTtakProtocol.isTakMessage(event);
+        if (takMessage) {
+            try {
+                return scanTakMessage();
+            } catch (IndexOutOfBoundsException ex) {
+                return false; // a malformed message
+            }
+        }
+        int limit = event.limit();
+        int i = findTag(EVENT_TAG, event.position(), limit);
+        if (i < 0) {
+            return false;
+        }
+        i = scanAttributes(i + EVENT_TAG.length, limit, false);
+        i = findTag(POINT_TAG, i, limit);
+        if (i >= 0) {
+            point = true;
+            scanAttributes(i + POINT_TAG.length, limit, true);
+        }
+        return starts[Attribute.TYPE.ordinal()] >= 0;
+    }//scan
+
+    /**
+     * Scan the CotEvent of a TakMessage, see CoTprotobuf for its fields.
+     */
+    private boolean scanTakMessage() {
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = Long.MIN_VALUE;
+        }
+        cursor = CoTtakProtocol.getPayloadOffset(event);
+        if (cursor < 0) {
+            return false;
+        }
+        int limit = event.limit();
+        while (cursor < limit) {
+            int key = (int) readVarint(limit);
+            if (key >>> 3 != 2 || (key & 7) != 2) {
+                skipField(key & 7, limit);
+                continue;
+            }
+            int end = fieldEnd(limit);
+            // a TAK event always has a point, missing values are 0
+            point = true;
+            lat = lon = hae = ce = le = 0;
+            while (cursor < end) {
+                key = (int) readVarint(end);
+                switch (key >>> 3) {
+                    case 1:
+                        recordField(Attribute.TYPE, end);
+                        break;
+                    case 5:
+                        recordField(Attribute.UID, end);
+                        break;
+                    case 9:
+                        recordField(Attribute.HOW, end);
+                        break;
+                    case 6:
+                        millis[Attribute.TIME.ordinal()] = readVarint(end);
+                        break;
+                    case 7:
+                        millis[Attribute.START.ordinal()] = readVarint(end);
+                        break;
+                    case 8:
+                        millis[Attribute.STALE.ordinal()] = readVarint(end);
+                        break;
+                    case 10:
+                        lat = readDouble(end);
+                        break;
+                    case 11:
+                        lon = readDouble(end);
+                        break;
+                    case 12:
+                        hae = readDouble(end);
+                        break;
+                    case 13:
+                        ce = readDouble(end);
+                        break;
+                    case 14:
+                        le = readDouble(end);
+                        break;
+                    default:
+                        skipField(key & 7, end);
+                }
+            }//while event fields
+            break;
+        }//while message fields
+        return starts[Attribute.TYPE.ordinal()] >= 0;
+    }//scanTakMessage
+
+    private long readVarint(int limit) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (cursor >= limit) {
+                throw new IndexOutOfBoundsException();
+            }
+            byte b = event.get(cursor++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IndexOutOfBoundsException();
+    }//readVarint
+
+    /**
+     * Read the length of a length delimited field.
+     *
+     * @return the index after the field
+     */
+    private int fieldEnd(int limit) {
+        long length = readVarint(limit);
+        if (length < 0 || length > limit - cursor) {
+            throw new IndexOutOfBoundsException();
+        }
+        return cursor + (int) length;
+    }//fieldEnd
+
+    private void recordField(Attribute attribute, int limit) {
+        int end = fieldEnd(limit);
+        starts[attribute.ordinal()] = cursor;
+        ends[attribute.ordinal()] = end;
+        cursor = end;
+    }//recordField
+
+    private double readDouble(int limit) {
+        if (limit - cursor < 8) {
+            throw new IndexOutOfBoundsException();
+        }
+        long bits = 0;
+        for (int shift = 0; shift < 64; shift += 8) {
+            bits |= (long) (event.get(cursor++) & 0xFF) << shift;
+        }
+        return Double.longBitsToDouble(bits);
+    }//readDouble
+
+    private void skipField(int wireType, int limit) {
+        switch (wireType) {
+            case 0:
+                readVarint(limit);
+                break;
+            case 1:
+                cursor += 8;
+                break;
+            case 2:
+                cursor = fieldEnd(limit);
+                break;
+            case 5:
+                cursor += 4;
+                break;
+            default:
+                throw new IndexOutOfBoundsException();
+        }
+    }//skipField
+
+    /**
+     * Read the name="value" pairs up to the end of a start tag.
+     *
+     * @return the index after the start tag
+     */
+    private int scanAttributes(int i, int limit, boolean pointTag) {
+        while (i < limit) {
+            byte b = event.get(i);
+            if (b == '>' || b == '/') {
+                break;
+            }
+            if (isWhitespace(b)) {
+                i++;
+                continue;
+            }
+            int nameStart = i;
+            while (i < limit && event.get(i) != '=' && !isWhitespace(event.get(i))) {
+                i++;
+            }
+            int nameEnd = i;
+            while (i < limit && event.get(i) != '\'' && event.get(i) != '"') {
+                i++;
+            }
+            if (i >= limit) {
+                break;
+            }
+            byte quote = event.get(i++);
+            int valueStart = i;
+            while (i < limit && event.get(i) != quote) {
+                i++;
+            }
+            if (i >= limit) {
+                break;
+            }
+            if (pointTag) {
+                pointAttribute(nameStart, nameEnd, valueStart, i);
+            } else {
+                eventAttribute(nameStart, nameEnd, valueStart, i);
+            }
+            i++;
+        }//while
+        return i;
+    }//scanAttributes
+
+    private void eventAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        for (Attribute attribute : ATTRIBUTES) {
+            if (matches(nameStart, nameEnd, attribute.name)) {
+                starts[attribute.ordinal()] = valueStart;
+                ends[attribute.ordinal()] = valueEnd;
+                return;
+            }
+        }
+    }//eventAttribute
+
+    private void pointAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (matches(nameStart, nameEnd, LAT)) {
+            lat = parseDouble(valueStart, valueEnd);
+        } else if (matches(nameStart, nameEnd, LON)) {
+            lon = parseDouble(valueStart, valueEnd);
+        } else if (matches(nameStart, nameEnd, HAE)) {
+            hae = parseDouble(valueStart, valueEnd);
+        } else if (matches(nameStart, nameEnd, CE)) {
+            ce = parseDouble(valueStart, valueEnd);
+        } else if (matches(nameStart, nameEnd, LE)) {
+            le = parseDouble(valueStart, valueEnd);
+        }
+    }//pointAttribute
+
+    /**
+     * Convert a decimal number without creating a String. Numbers with up to
+     * 18 significant digits and a small exponent, which covers every point
+     * value seen in CoT, are converted exactly, others fall back to
+     * Double.parseDouble().
+     */
+    private double parseDouble(int start, int end) {
+        int i = start;
+        while (i < end && isWhitespace(event.get(i))) {
+            i++;
+        }
+        boolean negative = false;
+        if (i < end && (event.get(i) == '-' || event.get(i) == '+')) {
+            negative = event.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        boolean any = false;
+        for (; i < end; i++) {
+            byte b = event.get(i);
+            if (b >= '0' && b <= '9') {
+                any = true;
+                if (mantissa == 0 && b == '0') {
+                    // leading zeros are not significant
+                    if (fraction) {
+                        scale++;
+                    }
+                    continue;
+                }
+                if (++digits > 18) {
+                    return parseDoubleSlow(start, end);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (fraction) {
+                    scale++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else if (b == 'e' || b == 'E') {
+                return parseDoubleSlow(start, end);
+            } else if (isWhitespace(b)) {
+                break;
+            } else {
+                return Double.NaN;
+            }
+        }//for
+        if (!any) {
+            return Double.NaN;
+        }
+        double value;
+        if (scale == 0) {
+            value = mantissa;
+        } else if (scale < POWERS_OF_TEN.length && mantissa < (1L << 53)) {
+            // both operands are exact, so the division is correctly rounded
+            value = mantissa / POWERS_OF_TEN[scale];
+        } else {
+            return parseDoubleSlow(start, end);
+        }
+        return negative ? -value : value;
+    }//parseDouble
+
+    private double parseDoubleSlow(int start, int end) {
+        try {
+            return Double.parseDouble(string(start, end).trim());
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }//parseDoubleSlow
+
+    /**
+     *
+     * @return true if the scanned event is a TAK protocol message
+     */
+    public boolean isTakMessage() {
+        return takMessage;
+    }//isTakMessage
+
+    /**
+     *
+     * @return true if the event has a point element
+     */
+    public boolean hasPoint() {
+        return point;
+    }//hasPoint
+
+    /**
+     *
+     * @return the latitude of the point, NaN if there is none
+     */
+    public double getLatitude() {
+        return lat;
+    }//getLatitude
+
+    /**
+     *
+     * @return the longitude of the point, NaN if there is none
+     */
+    public double getLongitude() {
+        return lon;
+    }//getLongitude
+
+    /**
+     *
+     * @return the height above the ellipsoid of the point, NaN if there is none
+     */
+    public double getHae() {
+        return hae;
+    }//getHae
+
+    /**
+     *
+     * @return the circular error of the point, NaN if there is none
+     */
+    public double getCircularError() {
+        return ce;
+    }//getCircularError
+
+    /**
+     *
+     * @return the linear error of the point, NaN if there is none
+     */
+    public double getLinearError() {
+        return le;
+    }//getLinearError
+
+    /**
+     * @param attribute an attribute of the event element
+     * @return the absolute index of the value in the scanned buffer, or -1 if
+     * the event does not have the attribute or it is a time of a TAK message
+     */
+    public int getOffset(Attribute attribute) {
+        return starts[attribute.ordinal()];
+    }//getOffset
+
+    /**
+     * @param attribute an attribute of the event element
+     * @return the number of bytes of the value, or -1 if the event does not
+     * have the attribute
+     */
+    public int getLength(Attribute attribute) {
+        int start = starts[attribute.ordinal()];
+        return start < 0 ? -1 : ends[attribute.ordinal()] - start;
+    }//getLength
+
+    /**
+     * @param attribute an attribute of the event element
+     * @param value the ASCII bytes to compare to
+     * @return true if the value of the attribute equals the bytes
+     */
+    public boolean equals(Attribute attribute, byte[] value) {
+        int start = starts[attribute.ordinal()];
+        return start >= 0 && matches(start, ends[attribute.ordinal()], value);
+    }//equals
+
+    /**
+     * @param attribute an attribute of the event element
+     * @param prefix the ASCII bytes of a prefix, e.g. "a-f-G"
+     * @return true if the value of the attribute starts with the prefix
+     */
+    public boolean startsWith(Attribute attribute, byte[] prefix) {
+        int start = starts[attribute.ordinal()];
+        return start >= 0 && ends[attribute.ordinal()] - start >= prefix.length
+                && matches(start, start + prefix.length, prefix);
+    }//startsWith
+
+    /**
+     * A hash of the bytes of an attribute value that does not create a
+     * String, e.g. to partition the events by uid.
+     *
+     * @param attribute an attribute of the event element
+     * @return the hash of the value, 0 if the event does not have the
+     * attribute
+     */
+    public int getHash(Attribute attribute) {
+        int start = starts[attribute.ordinal()];
+        if (start < 0) {
+            return 0;
+        }
+        int hash = 0;
+        for (int i = start, end = ends[attribute.ordinal()]; i < end; i++) {
+            hash = 31 * hash + event.get(i);
+        }
+        return hash;
+    }//getHash
+
+    /**
+     * The milliseconds of a time since the epoch, parsed from the bytes of an
+     * XML event with CoTtime without creating objects.
+     *
+     * @param attribute a time attribute of the event element
+     * @return the milliseconds, or Long.MIN_VALUE if the event does not have
+     * the time or it is malformed
+     */
+    public long getMillis(Attribute attribute) {
+        if (takMessage) {
+            return millis[attribute.ordinal()];
+        }
+        int start = starts[attribute.ordinal()];
+        if (start < 0) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return CoTtime.parse(event, start, ends[attribute.ordinal()]);
+        } catch (IllegalArgumentException ex) {
+            return Long.MIN_VALUE;
+        }
+    }//getMillis
+
+    /**
+     * Convenience method that creates a String of an attribute value. The
+     * times of a TAK message are formatted from their milliseconds. The uid,
+     * type and how are the shared instances of the CoTstringPool.
+     *
+     * @param attribute an attribute of the event element
+     * @return the value, or null if the event does not have the attribute
+     */
+    public String getString(Attribute attribute) {
+        int start = starts[attribute.ordinal()];
+        if (start < 0 && takMessage && millis[attribute.ordinal()] != Long.MIN_VALUE) {
+            return CoTtime.format(millis[attribute.ordinal()]);
+        }
+        if (start < 0) {
+            return null;
+        }
+        switch (attribute) {
+            case UID:
+            case TYPE:
+            case HOW:
+                return CoTstringPool.getDefault().get(event, start, ends[attribute.ordinal()]);
+            default:
+                return string(start, ends[attribute.ordinal()]);
+        }
+    }//getString
+
+    /**
+     * @param prefix the ASCII bytes of a type prefix, e.g. "a-f-G"
+     * @return true if the scanned type starts with the prefix
+     */
+    public boolean typeStartsWith(byte[] prefix) {
+        return startsWith(Attribute.TYPE, prefix);
+    }//typeStartsWith
+
+    /**
+     *
+     * @return the number of bytes of the scanned type, or -1 if there is none
+     */
+    public int getTypeLength() {
+        return getLength(Attribute.TYPE);
+    }//getTypeLength
+
+    /**
+     * @param index the index of a byte of the type
+     * @return the byte of the scanned type at the index
+     */
+    public byte getTypeByte(int index) {
+        return event.get(starts[Attribute.TYPE.ordinal()] + index);
+    }//getTypeByte
+
+    /**
+     * Convenience method that creates a String of the scanned type.
+     *
+     * @return the type of the event, or null if there is none
+     */
+    public String getType() {
+        return getString(Attribute.TYPE);
+    }//getType
+
+    /**
+     * Convenience method that creates a String of the scanned uid.
+     *
+     * @return the uid of the event, or null if there is none
+     */
+    public String getUid() {
+        return getString(Attribute.UID);
+    }//getUid
+
+    private String string(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = event.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }//string
+
+    private boolean matches(int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (event.get(start + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }//matches
+
+    /**
+     * Find a start tag, e.g. "&lt;event", that is followed by white space,
+     * '&gt;' or '/'.
+     */
+    private int findTag(byte[] tag, int from, int limit) {
+        int last = limit - tag.length;
+        for (int i = from; i < last; i++) {
+            if (event.get(i) == '<' && matches(i, i + tag.length, tag)) {
+                byte after = event.get(i + tag.length);
+                if (isWhitespace(after) || after == '>' || after == '/') {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }//findTag
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }//isWhitespace
+}// class CoTeventScanner
@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A stage the listeners hand every received CoT event to. The CoTparser is
+ * the last stage and calls the CoT event handler, other stages such as the
+ * CoTringBuffer pass the events on to the next stage.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public interface CoTeventSink {
+
+    /**
+     * Handle the bytes of one received CoT event. The buffer holds the bytes
+     * between its position and limit and is only valid for the duration of
+     * the call, a stage that keeps the event must copy the bytes.
+     *
+     * @param event the bytes of the CoT event
+     * @param source the address the event was received from, or null if it
+     * is not known
+     */
+    void onCoTevent(ByteBuffer event, SocketAddress source);
+}// interface CoTeventSink
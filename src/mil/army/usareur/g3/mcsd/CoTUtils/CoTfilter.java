@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTeventScanner.Attribute;
+
+/**
+ * Drops the events a node does not care about before they are parsed, e.g.
+ * everything outside its area of operations or of other affiliations. The
+ * filter reads the uid, type, how and point of every event with the
+ * CoTeventScanner from the received bytes and hands on the events that pass
+ * all rules unchanged. No String is created for an event.
+ *
+ * The rules are checked in the order of the Rule enum, every dropped event
+ * is counted by the first rule it fails:
+ * <ul>
+ * <li>UID_DENIED - the uid is in the deny set.
+ * <li>UID_NOT_ALLOWED - an allow set is configured and the uid is not in it.
+ * <li>TYPE - type prefixes are configured and the type matches none of them.
+ * <li>HOW - how prefixes are configured and the how matches none of them.
+ * <li>AREA - an area is configured and the point is outside of it. Events
+ * without a point pass.
+ * </ul>
+ * Rules without configuration pass every event. Events the scanner cannot
+ * read are handed on, the parser reports them.
+ *
+ * Usage:
+ * <pre>
+ * CoTfilter filter = new CoTfilter(cp);
+ * filter.addType("a-f-*");
+ * filter.addType("a-h-*");
+ * filter.setArea(49.0, 8.0, 50.0, 9.5);
+ * connectors.setEventSink(filter);
+ * </pre>
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTfilter implements CoTeventSink {
+
+    /**
+     * The filter rules, in the order they are checked.
+     */
+    public enum Rule {
+        UID_DENIED, UID_NOT_ALLOWED, TYPE, HOW, AREA
+    }//enum Rule
+
+    private static final byte[][] NONE = new byte[0][];
+
+    /**
+     * A set of uids that is looked up by the hash of the uid bytes, see
+     * CoTeventScanner.getHash(), without boxing the hash. It is never
+     * changed, adding a uid creates a new set.
+     */
+    private static final class UidSet {
+
+        static final UidSet EMPTY = new UidSet(new int[0], new byte[0][][]);
+
+        // sorted hashes and the uids with each hash
+        final int[] hashes;
+        final byte[][][] buckets;
+
+        UidSet(int[] hashes, byte[][][] buckets) {
+            this.hashes = hashes;
+            this.buckets = buckets;
+        }
+
+        boolean isEmpty() {
+            return hashes.length == 0;
+        }
+
+        UidSet add(String uid) {
+            byte[] bytes = uid.getBytes(StandardCharsets.UTF_8);
+            int hash = 0;
+            for (byte b : bytes) {
+                hash = 31 * hash + b;
+            }
+            int index = Arrays.binarySearch(hashes, hash);
+            if (index >= 0) {
+                byte[][][] copy = buckets.clone();
+                copy[index] = CoTfilter.add(buckets[index], bytes);
+                return new UidSet(hashes, copy);
+            }
+            index = -index - 1;
+            int[] newHashes = new int[hashes.length + 1];
+            byte[][][] newBuckets = new byte[hashes.length + 1][][];
+            System.arraycopy(hashes, 0, newHashes, 0, index);
+            System.arraycopy(buckets, 0, newBuckets, 0, index);
+            newHashes[index] = hash;
+            newBuckets[index] = new byte[][]{bytes};
+            System.arraycopy(hashes, index, newHashes, index + 1, hashes.length - index);
+            System.arraycopy(buckets, index, newBuckets, index + 1, hashes.length - index);
+            return new UidSet(newHashes, newBuckets);
+        }//add
+
+        boolean contains(int hash, CoTeventScanner scanner) {
+            int index = Arrays.binarySearch(hashes, hash);
+            if (index >= 0) {
+                for (byte[] uid : buckets[index]) {
+                    if (scanner.equals(Attribute.UID, uid)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }//contains
+    }// class UidSet
+
+    private final CoTeventSink sink;
+    private volatile UidSet deniedUids = UidSet.EMPTY;
+    private volatile UidSet allowedUids = UidSet.EMPTY;
+    private volatile byte[][] types = NONE;
+    private volatile byte[][] hows = NONE;
+    // minLat, minLon, maxLat, maxLon, or null
+    private volatile double[] area;
+    private final AtomicLong passedCount = new AtomicLong();
+    private final AtomicLongArray dropped = new AtomicLongArray(Rule.values().length);
+    private final ThreadLocal<CoTeventScanner> scanners = new ThreadLocal<CoTeventScanner>() {
+        @Override
+        protected CoTeventScanner initialValue() {
+            return new CoTeventScanner();
+        }
+    };
+
+    /**
+     * Create a filter that passes every event until rules are added.
+     *
+     * @param sink the next stage of the events that pass, e.g. a CoTparser
+     */
+    public CoTfilter(CoTeventSink sink) {
+        this.sink = sink;
+    }//CoTfilter
+
+    /**
+     * Drop the events of a uid.
+     *
+     * @param uid the uid
+     */
+    public synchronized void denyUid(String uid) {
+        deniedUids = deniedUids.add(uid);
+    }//denyUid
+
+    /**
+     * Pass only the events of the allowed uids. Until the first uid is
+     * allowed the events of all uids pass.
+     *
+     * @param uid the uid
+     */
+    public synchronized void allowUid(String uid) {
+        allowedUids = allowedUids.add(uid);
+    }//allowUid
+
+    /**
+     * Pass the events of a type. Until the first type is added the events of
+     * all types pass.
+     *
+     * @param type a CoT type prefix, the trailing "*" is optional, i.e.
+     * "a-f-G-*" and "a-f-G-" are equivalent
+     */
+    public synchronized void addType(String type) {
+        types = add(types, type);
+    }//addType
+
+    /**
+     * Pass the events of a how. Until the first how is added the events of
+     * all hows pass.
+     *
+     * @param how a how prefix, e.g. "m-g" for GPS or "h-*" for human entered
+     */
+    public synchronized void addHow(String how) {
+        hows = add(hows, how);
+    }//addHow
+
+    /**
+     * Pass only the events with a point in the area, or without a point. An
+     * area that crosses the 180th meridian has a minLon greater than maxLon.
+     *
+     * @param minLat the southern latitude in degrees
+     * @param minLon the western longitude in degrees
+     * @param maxLat the northern latitude in degrees
+     * @param maxLon the eastern longitude in degrees
+     */
+    public void setArea(double minLat, double minLon, double maxLat, double maxLon) {
+        area = new double[]{minLat, minLon, maxLat, maxLon};
+    }//setArea
+
+    /**
+     * Remove the area rule.
+     */
+    public void clearArea() {
+        area = null;
+    }//clearArea
+
+    private static byte[][] add(byte[][] prefixes, String prefix) {
+        if (prefix.endsWith("*")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+        return add(prefixes, prefix.getBytes(StandardCharsets.US_ASCII));
+    }//add
+
+    private static byte[][] add(byte[][] values, byte[] value) {
+        byte[][] copy = Arrays.copyOf(values, values.length + 1);
+        copy[values.length] = value;
+        return copy;
+    }//add
+
+    @Override
+    public void onCoTevent(ByteBuffer event, SocketAddress source) {
+        CoTeventScanner scanner = scanners.get();
+        if (scanner.scan(event)) {
+            Rule rule = check(scanner);
+            if (rule != null) {
+                dropped.incrementAndGet(rule.ordinal());
+                return;
+            }
+        }
+        passedCount.incrementAndGet();
+        sink.onCoTevent(event, source);
+    }//onCoTevent
+
+    /**
+     * @return the first rule the scanned event fails, or null if it passes
+     */
+    private Rule check(CoTeventScanner scanner) {
+        UidSet denied = deniedUids;
+        UidSet allowed = allowedUids;
+        if (!denied.isEmpty() || !allowed.isEmpty()) {
+            int hash = scanner.getHash(Attribute.UID);
+            if (denied.contains(hash, scanner)) {
+                return Rule.UID_DENIED;
+            }
+            if (!allowed.isEmpty() && !allowed.contains(hash, scanner)) {
+                return Rule.UID_NOT_ALLOWED;
+            }
+        }
+        if (!startsWithAny(scanner, Attribute.TYPE, types)) {
+            return Rule.TYPE;
+        }
+        if (!startsWithAny(scanner, Attribute.HOW, hows)) {
+            return Rule.HOW;
+        }
+        double[] box = area;
+        if (box != null && scanner.hasPoint()) {
+            double lat = scanner.getLatitude();
+            double lon = scanner.getLongitude();
+            boolean inLon = box[1] <= box[3] ? lon >= box[1] && lon <= box[3] : lon >= box[1] || lon <= box[3];
+            if (!(lat >= box[0] && lat <= box[2] && inLon)) {
+                return Rule.AREA;
+            }
+        }
+        return null;
+    }//check
+
+    private static boolean startsWithAny(CoTeventScanner scanner, Attribute attribute, byte[][] prefixes) {
+        if (prefixes.length == 0) {
+            return true;
+        }
+        for (byte[] prefix : prefixes) {
+            if (scanner.startsWith(attribute, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }//startsWithAny
+
+    /**
+     *
+     * @return the number of events handed to the next stage
+     */
+    public long getPassedCount() {
+        return passedCount.get();
+    }//getPassedCount
+
+    /**
+     *
+     * @param rule a filter rule
+     * @return the number of events dropped by the rule
+     */
+    public long getDroppedCount(Rule rule) {
+        return dropped.get(rule.ordinal());
+    }//getDroppedCount
+}// class CoTfilter
@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * An incremental gzip decoder for a client connection that compresses its
+ * CoT events. Unlike a GZIPInputStream it is fed the bytes as they arrive, so
+ * it also works on the non-blocking I/O threads, and hands the inflated bytes
+ * to the event framer of the connection. A client may send one gzip stream or
+ * a new gzip member for every event, the members simply follow each other.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+class CoTgzipDecoder {
+
+    private static final int HEADER = 0;
+    private static final int DATA = 1;
+    private static final int TRAILER = 2;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int TRAILER_SIZE = 8;
+
+    private final CoTeventFramer framer;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] output = new byte[16 * 1024];
+    private byte[] input = new byte[16 * 1024];
+    private int position = 0;   // first byte not decoded yet
+    private int limit = 0;      // end of the received bytes
+    private int state = HEADER;
+
+    /**
+     * Create a gzip decoder.
+     *
+     * @param framer the framer the inflated bytes are fed to
+     */
+    CoTgzipDecoder(CoTeventFramer framer) {
+        this.framer = framer;
+    }//CoTgzipDecoder
+
+    /**
+     * Feed received bytes to the decoder. The bytes inflated so far are fed
+     * to the framer before the method returns. The buffer is consumed.
+     *
+     * @param bytes the received bytes between position and limit
+     * @throws ZipException if the bytes are not a valid gzip stream
+     */
+    void feed(ByteBuffer bytes) throws ZipException {
+        append(bytes);
+        while (true) {
+            if (state == HEADER) {
+                int length = headerLength();
+                if (length < 0) {
+                    break;
+                }
+                position += length;
+                state = DATA;
+            } else if (state == DATA) {
+                if (!inflate()) {
+                    break;
+                }
+                state = TRAILER;
+            } else {
+                if (limit - position < TRAILER_SIZE) {
+                    break;
+                }
+                checkTrailer();
+                position += TRAILER_SIZE;
+                inflater.reset();
+                crc.reset();
+                state = HEADER;
+            }
+        }//while
+    }//feed
+
+    /**
+     *
+     * @return true if the last gzip member received is complete
+     */
+    boolean isComplete() {
+        return state == HEADER && position == limit;
+    }//isComplete
+
+    /**
+     * Release the native memory of the inflater.
+     */
+    void end() {
+        inflater.end();
+    }//end
+
+    private void append(ByteBuffer bytes) {
+        int count = bytes.remaining();
+        if (limit + count > input.length) {
+            System.arraycopy(input, position, input, 0, limit - position);
+            limit -= position;
+            position = 0;
+            if (limit + count > input.length) {
+                input = Arrays.copyOf(input, Math.max(input.length * 2, limit + count));
+            }
+        }
+        bytes.get(input, limit, count);
+        limit += count;
+    }//append
+
+    /**
+     * Inflate the received bytes of the current member.
+     *
+     * @return true if the member is complete
+     */
+    private boolean inflate() throws ZipException {
+        inflater.setInput(input, position, limit - position);
+        try {
+            int count;
+            while ((count = inflater.inflate(output)) > 0) {
+                crc.update(output, 0, count);
+                framer.feed(output, 0, count);
+            }
+        } catch (DataFormatException ex) {
+            throw new ZipException(ex.getMessage());
+        }
+        if (inflater.needsDictionary()) {
+            throw new ZipException("gzip stream requires a preset dictionary");
+        }
+        position = limit - inflater.getRemaining();
+        return inflater.finished();
+    }//inflate
+
+    /**
+     * Measure the header of the next member.
+     *
+     * @return the length of the header or -1 if it has not been received
+     * completely
+     */
+    private int headerLength() throws ZipException {
+        int available = limit - position;
+        if (available < 10) {
+            return -1;
+        }
+        if ((input[position] & 0xFF) != 0x1F || (input[position + 1] & 0xFF) != 0x8B) {
+            throw new ZipException("Not in gzip format");
+        }
+        if (input[position + 2] != 8) {
+            throw new ZipException("Unsupported gzip compression method");
+        }
+        int flags = input[position + 3] & 0xFF;
+        int length = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (available < length + 2) {
+                return incompleteHeader(available);
+            }
+            length += 2 + ((input[position + length] & 0xFF) | (input[position + length + 1] & 0xFF) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            length = skipString(length);
+            if (length < 0) {
+                return incompleteHeader(available);
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            length = skipString(length);
+            if (length < 0) {
+                return incompleteHeader(available);
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            length += 2;
+        }
+        return length <= available ? length : incompleteHeader(available);
+    }//headerLength
+
+    private static int incompleteHeader(int available) throws ZipException {
+        if (available > MAX_HEADER_SIZE) {
+            throw new ZipException("gzip header exceeds " + MAX_HEADER_SIZE + " bytes");
+        }
+        return -1;
+    }//incompleteHeader
+
+    /**
+     * @return the header length after the zero terminated string at offset,
+     * or -1 if the string has not been received completely
+     */
+    private int skipString(int offset) {
+        for (int i = position + offset; i < limit; i++) {
+            if (input[i] == 0) {
+                return i - position + 1;
+            }
+        }
+        return -1;
+    }//skipString
+
+    private void checkTrailer() throws ZipException {
+        if (readInt(position) != (int) crc.getValue()) {
+            throw new ZipException("Corrupt gzip trailer, CRC mismatch");
+        }
+        if (readInt(position + 4) != (int) inflater.getBytesWritten()) {
+            throw new ZipException("Corrupt gzip trailer, size mismatch");
+        }
+    }//checkTrailer
+
+    private int readInt(int offset) {
+        return (input[offset] & 0xFF) | (input[offset + 1] & 0xFF) << 8
+                | (input[offset + 2] & 0xFF) << 16 | (input[offset + 3] & 0xFF) << 24;
+    }//readInt
+}// class CoTgzipDecoder
@@ -0,0 +1,718 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONException;
+
+/**
+ * Converts a CoT event to JSON while it reads the XML bytes. The JSON has the
+ * layout of org.json.XML.toJSONObject(): attributes become members, repeated
+ * child elements become arrays and text next to attributes or child elements
+ * becomes a "content" member. The 2525B symbol code and the type description
+ * are written into the event as it is converted, like CoTparser.parseToJSON()
+ * always did. No XML document or JSONObject tree is built, the JSON is
+ * written into buffers that every thread reuses.
+ *
+ * Numbers keep the digits they were sent with, e.g. "1.0" is written as 1.0
+ * where org.json writes 1. DTDs and entities other than the predefined XML
+ * entities and character references are not supported.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTjsonEncoder {
+
+    private static final byte[] EVENT = {'e', 'v', 'e', 'n', 't'};
+    private static final byte[] DETAIL = {'d', 'e', 't', 'a', 'i', 'l'};
+    private static final byte[] TYPE = {'t', 'y', 'p', 'e'};
+
+    /**
+     * The children and text of one element while it is converted.
+     */
+    private static final class Frame {
+
+        final StringBuilder children = new StringBuilder(256);
+        final StringBuilder text = new StringBuilder();
+        // offsets of the child names in the XML, a start of -1 marks a child
+        // that was already written as part of an array
+        int[] nameStarts = new int[8];
+        int[] nameEnds = new int[8];
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        int count;
+
+        void clear() {
+            children.setLength(0);
+            text.setLength(0);
+            count = 0;
+        }
+
+        void add(int nameStart, int nameEnd, int start, int end) {
+            if (count == starts.length) {
+                nameStarts = Arrays.copyOf(nameStarts, count * 2);
+                nameEnds = Arrays.copyOf(nameEnds, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            nameStarts[count] = nameStart;
+            nameEnds[count] = nameEnd;
+            starts[count] = start;
+            ends[count++] = end;
+        }
+    }// class Frame
+
+    /**
+     * The reusable buffers of a thread and the XML being converted.
+     */
+    private static final class State {
+
+        final List<Frame> frames = new ArrayList<>();
+        final StringBuilder json = new StringBuilder(1024);
+        final StringBuilder indented = new StringBuilder(2048);
+        final StringBuilder value = new StringBuilder(64);
+        byte[] copy = new byte[1024];
+        byte[] xml;
+        int limit;
+        String type;
+
+        Frame frame(int depth) {
+            while (frames.size() <= depth) {
+                frames.add(new Frame());
+            }
+            Frame frame = frames.get(depth);
+            frame.clear();
+            return frame;
+        }
+    }// class State
+
+    private final CoTparser cotParser;
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * @param cotParser the parser that provides the 2525B symbol code and the
+     * description of the CoT types
+     */
+    public CoTjsonEncoder(CoTparser cotParser) {
+        this.cotParser = cotParser;
+    }//CoTjsonEncoder
+
+    /**
+     * Convert a CoT event to JSON.
+     *
+     * @param xmlEvent String of CoT XML
+     * @param indentFactor the number of spaces to indent the JSON, 0 for
+     * compact JSON on a single line
+     * @return a string JSON representation of the CoT event
+     */
+    public String encode(String xmlEvent, int indentFactor) {
+        byte[] xml = xmlEvent.getBytes(StandardCharsets.UTF_8);
+        return encode(xml, 0, xml.length, indentFactor);
+    }//encode(String xmlEvent, int indentFactor)
+
+    /**
+     * Convert the bytes of a CoT event to JSON. The position of the buffer is
+     * not changed.
+     *
+     * @param xmlEvent the bytes of the CoT XML between position and limit
+     * @param indentFactor the number of spaces to indent the JSON, 0 for
+     * compact JSON on a single line
+     * @return a string JSON representation of the CoT event
+     */
+    public String encode(ByteBuffer xmlEvent, int indentFactor) {
+        if (xmlEvent.hasArray()) {
+            int offset = xmlEvent.arrayOffset() + xmlEvent.position();
+            return encode(xmlEvent.array(), offset, offset + xmlEvent.remaining(), indentFactor);
+        }
+        byte[] copy = copy(xmlEvent);
+        return encode(copy, 0, xmlEvent.remaining(), indentFactor);
+    }//encode(ByteBuffer xmlEvent, int indentFactor)
+
+    /**
+     * Append the compact JSON of a CoT event to a buffer, e.g. one that is
+     * reused for every event sent downstream. The position of the event
+     * buffer is not changed.
+     *
+     * @param xmlEvent the bytes of the CoT XML between position and limit
+     * @param json the buffer the JSON is appended to
+     */
+    public void encode(ByteBuffer xmlEvent, StringBuilder json) {
+        if (xmlEvent.hasArray()) {
+            int offset = xmlEvent.arrayOffset() + xmlEvent.position();
+            write(state.get(), xmlEvent.array(), offset, offset + xmlEvent.remaining(), json);
+        } else {
+            write(state.get(), copy(xmlEvent), 0, xmlEvent.remaining(), json);
+        }
+    }//encode(ByteBuffer xmlEvent, StringBuilder json)
+
+    /**
+     * Copy the bytes of a direct buffer into the reusable array of the thread.
+     */
+    private byte[] copy(ByteBuffer xmlEvent) {
+        State current = state.get();
+        if (current.copy.length < xmlEvent.remaining()) {
+            current.copy = new byte[xmlEvent.remaining()];
+        }
+        xmlEvent.duplicate().get(current.copy, 0, xmlEvent.remaining());
+        return current.copy;
+    }//copy
+
+    private String encode(byte[] xml, int offset, int limit, int indentFactor) {
+        State current = state.get();
+        StringBuilder json = current.json;
+        json.setLength(0);
+        write(current, xml, offset, limit, json);
+        if (indentFactor <= 0) {
+            return json.toString();
+        }
+        current.indented.setLength(0);
+        indent(json, indentFactor, current.indented);
+        return current.indented.toString();
+    }//encode(byte[] xml, int offset, int limit, int indentFactor)
+
+    /**
+     * Write the document element as the only member of the JSON object.
+     */
+    private void write(State current, byte[] xml, int offset, int limit, StringBuilder json) {
+        current.xml = xml;
+        current.limit = limit;
+        current.type = null;
+        try {
+            // skip the prolog, comments and white space
+            int i = offset;
+            while (true) {
+                i = find(current, '<', i);
+                if (at(current, i + 1) != '?' && at(current, i + 1) != '!') {
+                    break;
+                }
+                i = skipMarkup(current, i);
+            }
+            json.append('{');
+            member(current, i + 1, nameEnd(current, i + 1), true, json);
+            writeElement(current, i, 0, json);
+            json.append('}');
+        } finally {
+            current.xml = null;
+        }
+    }//write
+
+    /**
+     * Write the JSON value of the element that starts at the given index.
+     *
+     * @return the index after the end tag of the element
+     */
+    private int writeElement(State current, int start, int depth, StringBuilder out) {
+        byte[] xml = current.xml;
+        Frame frame = current.frame(depth);
+        int nameStart = start + 1;
+        int nameEnd = nameEnd(current, nameStart);
+        boolean event = depth == 0 && equals(xml, nameStart, nameEnd, EVENT);
+        boolean detail = depth == 1 && current.type != null && equals(xml, nameStart, nameEnd, DETAIL);
+        boolean object = false;
+        boolean first = true;
+        // attributes
+        int i = nameEnd;
+        while (true) {
+            while (isWhitespace(at(current, i))) {
+                i++;
+            }
+            if (at(current, i) == '>' || at(current, i) == '/') {
+                break;
+            }
+            int attributeStart = i;
+            while (at(current, i) != '=' && !isWhitespace(at(current, i))) {
+                i++;
+            }
+            int attributeEnd = i;
+            while (at(current, i) != '"' && at(current, i) != '\'') {
+                i++;
+            }
+            byte quote = at(current, i++);
+            int valueStart = i;
+            i = find(current, quote, i);
+            if (!object) {
+                out.append('{');
+                object = true;
+            }
+            first = member(current, attributeStart, attributeEnd, first, out);
+            StringBuilder value = current.value;
+            value.setLength(0);
+            decode(current, valueStart, i, true, value);
+            if (event && equals(xml, attributeStart, attributeEnd, TYPE)) {
+                current.type = value.toString();
+            }
+            value(value, 0, value.length(), out);
+            i++;
+        }//while attributes
+        if (at(current, i) == '/') {
+            // an empty element
+            i = find(current, '>', i) + 1;
+        } else {
+            i = content(current, frame, i + 1, depth);
+        }
+        StringBuilder text = frame.text;
+        int textStart = 0;
+        int textEnd = text.length();
+        while (textStart < textEnd && Character.isWhitespace(text.charAt(textStart))) {
+            textStart++;
+        }
+        while (textEnd > textStart && Character.isWhitespace(text.charAt(textEnd - 1))) {
+            textEnd--;
+        }
+        if (!object && frame.count == 0 && !detail) {
+            // an element with text only is a plain value
+            value(text, textStart, textEnd, out);
+            return i;
+        }
+        if (!object) {
+            out.append('{');
+        }
+        boolean hasDetail = false;
+        for (int c = 0; c < frame.count; c++) {
+            int childStart = frame.nameStarts[c];
+            int childEnd = frame.nameEnds[c];
+            if (childStart < 0) {
+                continue;
+            }
+            hasDetail |= equals(xml, childStart, childEnd, DETAIL);
+            first = member(current, childStart, childEnd, first, out);
+            boolean repeated = false;
+            for (int r = c + 1; r < frame.count && !repeated; r++) {
+                repeated = sameName(xml, frame, c, r);
+            }
+            if (!repeated) {
+                out.append(frame.children, frame.starts[c], frame.ends[c]);
+                continue;
+            }
+            // repeated children are grouped into an array in document order
+            out.append('[').append(frame.children, frame.starts[c], frame.ends[c]);
+            for (int r = c + 1; r < frame.count; r++) {
+                if (sameName(xml, frame, c, r)) {
+                    out.append(',').append(frame.children, frame.starts[r], frame.ends[r]);
+                    frame.nameStarts[r] = -1;
+                }
+            }
+            out.append(']');
+        }//for children
+        if (textStart < textEnd) {
+            first = member("content", first, out);
+            value(text, textStart, textEnd, out);
+        }
+        if (detail) {
+            member("symbolCode", first, out);
+            quote(cotParser.convertTypeTo2525B(current.type), out);
+        } else if (event && current.type != null) {
+            if (hasDetail) {
+                member("description", first, out);
+                quote(cotParser.getCotTypeDescription(current.type), out);
+            } else {
+                member("detail", first, out);
+                out.append('{');
+                member("symbolcode", true, out);
+                quote(cotParser.convertTypeTo2525B(current.type), out);
+                member("description", false, out);
+                quote(cotParser.getCotTypeDescription(current.type), out);
+                out.append('}');
+            }
+        }
+        out.append('}');
+        return i;
+    }//writeElement
+
+    /**
+     * Read the content of an element into its frame up to the end tag.
+     *
+     * @return the index after the end tag
+     */
+    private int content(State current, Frame frame, int i, int depth) {
+        while (true) {
+            int tag = find(current, '<', i);
+            decode(current, i, tag, true, frame.text);
+            byte next = at(current, tag + 1);
+            if (next == '/') {
+                return find(current, '>', tag) + 1;
+            }
+            if (next == '!' && at(current, tag + 2) == '[') {
+                // CDATA section
+                int end = tag + 9;
+                while (at(current, end) != ']' || at(current, end + 1) != ']' || at(current, end + 2) != '>') {
+                    end++;
+                }
+                decode(current, tag + 9, end, false, frame.text);
+                i = end + 3;
+            } else if (next == '!' || next == '?') {
+                i = skipMarkup(current, tag);
+            } else {
+                int start = frame.children.length();
+                int nameEnd = nameEnd(current, tag + 1);
+                i = writeElement(current, tag, depth + 1, frame.children);
+                // the child used the frames below this one only
+                frame.add(tag + 1, nameEnd, start, frame.children.length());
+            }
+        }//while
+    }//content
+
+    /**
+     * Skip a comment, processing instruction or declaration.
+     *
+     * @return the index after it
+     */
+    private static int skipMarkup(State current, int start) {
+        if (at(current, start + 1) == '!' && at(current, start + 2) == '-') {
+            int i = start + 4;
+            while (at(current, i) != '-' || at(current, i + 1) != '-' || at(current, i + 2) != '>') {
+                i++;
+            }
+            return i + 3;
+        }
+        return find(current, '>', start) + 1;
+    }//skipMarkup
+
+    private static int find(State current, int b, int from) {
+        byte[] xml = current.xml;
+        for (int i = from; i < current.limit; i++) {
+            if (xml[i] == b) {
+                return i;
+            }
+        }
+        throw new JSONException("Unexpected end of the CoT event");
+    }//find
+
+    // every scan reads through here, the array may go on past the event
+    private static byte at(State current, int i) {
+        if (i >= current.limit) {
+            throw new JSONException("Unexpected end of the CoT event");
+        }
+        return current.xml[i];
+    }//at
+
+    private static int nameEnd(State current, int i) {
+        while (!isWhitespace(at(current, i)) && at(current, i) != '>' && at(current, i) != '/') {
+            i++;
+        }
+        return i;
+    }//nameEnd
+
+    /**
+     * Decode UTF-8 bytes to chars and resolve entity and character
+     * references.
+     */
+    private static void decode(State current, int start, int end, boolean references, StringBuilder out) {
+        byte[] xml = current.xml;
+        int i = start;
+        while (i < end) {
+            int b = at(current, i);
+            if (b >= 0) {
+                if (b == '&' && references) {
+                    int semicolon = find(current, ';', i);
+                    reference(xml, i + 1, semicolon, out);
+                    i = semicolon + 1;
+                } else {
+                    out.append((char) b);
+                    i++;
+                }
+            } else if ((b & 0xE0) == 0xC0) {
+                out.append((char) (((b & 0x1F) << 6) | (at(current, i + 1) & 0x3F)));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                out.append((char) (((b & 0x0F) << 12) | ((at(current, i + 1) & 0x3F) << 6) | (at(current, i + 2) & 0x3F)));
+                i += 3;
+            } else {
+                out.appendCodePoint(((b & 0x07) << 18) | ((at(current, i + 1) & 0x3F) << 12)
+                        | ((at(current, i + 2) & 0x3F) << 6) | (at(current, i + 3) & 0x3F));
+                i += 4;
+            }
+        }//while
+    }//decode
+
+    private static void reference(byte[] xml, int start, int end, StringBuilder out) {
+        if (xml[start] == '#') {
+            boolean hex = xml[start + 1] == 'x';
+            int codePoint = 0;
+            for (int i = start + (hex ? 2 : 1); i < end; i++) {
+                codePoint = codePoint * (hex ? 16 : 10) + Character.digit(xml[i], hex ? 16 : 10);
+            }
+            out.appendCodePoint(codePoint);
+            return;
+        }
+        String name = new String(xml, start, end - start, StandardCharsets.US_ASCII);
+        switch (name) {
+            case "lt":
+                out.append('<');
+                break;
+            case "gt":
+                out.append('>');
+                break;
+            case "amp":
+                out.append('&');
+                break;
+            case "quot":
+                out.append('"');
+                break;
+            case "apos":
+                out.append('\'');
+                break;
+            default:
+                // unknown entities are kept as they were
+                out.append('&').append(name).append(';');
+        }
+    }//reference
+
+    private static boolean sameName(byte[] xml, Frame frame, int a, int b) {
+        int start = frame.nameStarts[b];
+        if (start < 0 || frame.nameEnds[b] - start != frame.nameEnds[a] - frame.nameStarts[a]) {
+            return false;
+        }
+        for (int i = 0; i < frame.nameEnds[a] - frame.nameStarts[a]; i++) {
+            if (xml[frame.nameStarts[a] + i] != xml[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }//sameName
+
+    private static boolean equals(byte[] xml, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (xml[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }//equals
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }//isWhitespace
+
+    /**
+     * Write the name of a member from the XML.
+     *
+     * @return false, the next member is not the first
+     */
+    private static boolean member(State current, int start, int end, boolean first, StringBuilder out) {
+        if (!first) {
+            out.append(',');
+        }
+        StringBuilder name = current.value;
+        name.setLength(0);
+        decode(current, start, end, false, name);
+        quote(name, 0, name.length(), out);
+        out.append(':');
+        return false;
+    }//member
+
+    private static boolean member(String name, boolean first, StringBuilder out) {
+        if (!first) {
+            out.append(',');
+        }
+        quote(name, out);
+        out.append(':');
+        return false;
+    }//member
+
+    /**
+     * Write a value the way org.json converts XML values: numbers and the
+     * literals true, false and null without quotes, everything else as a
+     * string.
+     */
+    private static void value(CharSequence value, int start, int end, StringBuilder out) {
+        if (isNumber(value, start, end) || regionEquals(value, start, end, "true")
+                || regionEquals(value, start, end, "false") || regionEquals(value, start, end, "null")) {
+            out.append(value, start, end);
+        } else {
+            quote(value, start, end, out);
+        }
+    }//value
+
+    private static boolean regionEquals(CharSequence value, int start, int end, String literal) {
+        if (end - start != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (value.charAt(start + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }//regionEquals
+
+    /**
+     * @return true if the value is a JSON number without leading zeros
+     */
+    private static boolean isNumber(CharSequence value, int start, int end) {
+        int i = start;
+        if (i < end && value.charAt(i) == '-') {
+            i++;
+        }
+        int digits = i;
+        while (i < end && isDigit(value.charAt(i))) {
+            i++;
+        }
+        if (i == digits || (value.charAt(digits) == '0' && i - digits > 1)) {
+            return false;
+        }
+        if (i < end && value.charAt(i) == '.') {
+            int fraction = ++i;
+            while (i < end && isDigit(value.charAt(i))) {
+                i++;
+            }
+            if (i == fraction) {
+                return false;
+            }
+        }
+        if (i < end && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+                i++;
+            }
+            int exponent = i;
+            while (i < end && isDigit(value.charAt(i))) {
+                i++;
+            }
+            if (i == exponent) {
+                return false;
+            }
+        }
+        return i == end;
+    }//isNumber
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }//isDigit
+
+    private static void quote(String value, StringBuilder out) {
+        quote(value, 0, value.length(), out);
+    }//quote
+
+    /**
+     * Write a JSON string.
+     */
+    private static void quote(CharSequence value, int start, int end, StringBuilder out) {
+        out.append('"');
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '/':
+                    // "</" must not appear in JSON embedded in HTML
+                    if (i > start && value.charAt(i - 1) == '<') {
+                        out.append('\\');
+                    }
+                    out.append(c);
+                    break;
+                default:
+                    if (c < ' ') {
+                        String hex = Integer.toHexString(c);
+                        out.append("\\u0000", 0, 6 - hex.length()).append(hex);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }//quote
+
+    /**
+     * Indent compact JSON the way org.json does.
+     */
+    private static void indent(CharSequence json, int indentFactor, StringBuilder out) {
+        int level = 0;
+        boolean string = false;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (string) {
+                out.append(c);
+                if (c == '\\') {
+                    out.append(json.charAt(++i));
+                } else if (c == '"') {
+                    string = false;
+                }
+                continue;
+            }
+            switch (c) {
+                case '"':
+                    string = true;
+                    out.append(c);
+                    break;
+                case '{':
+                case '[':
+                    out.append(c);
+                    char close = c == '{' ? '}' : ']';
+                    if (i + 1 < json.length() && json.charAt(i + 1) == close) {
+                        out.append(close);
+                        i++;
+                    } else {
+                        newLine(++level * indentFactor, out);
+                    }
+                    break;
+                case '}':
+                case ']':
+                    newLine(--level * indentFactor, out);
+                    out.append(c);
+                    break;
+                case ',':
+                    out.append(c);
+                    newLine(level * indentFactor, out);
+                    break;
+                case ':':
+                    out.append(": ");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }//for
+    }//indent
+
+    private static void newLine(int spaces, StringBuilder out) {
+        out.append('\n');
+        for (int i = 0; i < spaces; i++) {
+            out.append(' ');
+        }
+    }//newLine
+}// class CoTjsonEncoder
@@ -0,0 +1,347 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * A CoT event whose detail sub elements are decoded on demand. Reading the
+ * event only records the core attributes, see CoTeventScanner, and where each
+ * detail sub element starts and ends. A Track, Contact, Remarks, etc. is
+ * unmarshalled the first time it is asked for and then kept, so handlers that
+ * only need the position of an event never pay for its details.
+ *
+ * The event holds a copy of the received bytes and may be kept after the
+ * CoT event handler returns. It is not thread safe.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTlazyEvent {
+
+    private static final byte[] DETAIL_TAG = {'<', 'd', 'e', 't', 'a', 'i', 'l'};
+    private static final byte[][] DETAIL_NAMES;
+    private static final Class<?>[] DETAIL_CLASSES;
+
+    static {
+        DETAIL_NAMES = new byte[CoTstaxParser.DETAILS.size()][];
+        DETAIL_CLASSES = new Class<?>[CoTstaxParser.DETAILS.size()];
+        int i = 0;
+        for (Map.Entry<String, Class<?>> detail : CoTstaxParser.DETAILS.entrySet()) {
+            DETAIL_NAMES[i] = detail.getKey().getBytes(StandardCharsets.US_ASCII);
+            DETAIL_CLASSES[i++] = detail.getValue();
+        }
+    }
+
+    private final byte[] xml;
+    private final CoTeventScanner header = new CoTeventScanner();
+    private int detailCount = 0;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int[] nameEnds = new int[8];
+    private Class<?>[] classes = new Class<?>[8];
+    private Object[] decoded = new Object[8];
+
+    /**
+     * Read a CoT event. The bytes are copied, the position of the buffer is
+     * not changed.
+     *
+     * @param xmlEvent the bytes of the CoT XML between position and limit
+     */
+    public CoTlazyEvent(ByteBuffer xmlEvent) {
+        xml = new byte[xmlEvent.remaining()];
+        xmlEvent.duplicate().get(xml);
+        header.scan(ByteBuffer.wrap(xml));
+        scanDetails();
+    }//CoTlazyEvent
+
+    /**
+     *
+     * @return the scanner holding the uid, type, time and point of the event
+     */
+    public CoTeventScanner getHeader() {
+        return header;
+    }//getHeader
+
+    /**
+     *
+     * @return the uid of the event, or null if there is none
+     */
+    public String getUid() {
+        return header.getUid();
+    }//getUid
+
+    /**
+     *
+     * @return the type of the event, or null if there is none
+     */
+    public String getType() {
+        return header.getType();
+    }//getType
+
+    /**
+     *
+     * @return the latitude of the point, NaN if there is none
+     */
+    public double getLatitude() {
+        return header.getLatitude();
+    }//getLatitude
+
+    /**
+     *
+     * @return the longitude of the point, NaN if there is none
+     */
+    public double getLongitude() {
+        return header.getLongitude();
+    }//getLongitude
+
+    /**
+     *
+     * @return the height above the ellipsoid of the point, NaN if there is none
+     */
+    public double getHae() {
+        return header.getHae();
+    }//getHae
+
+    /**
+     *
+     * @return the number of detail sub elements, including those without a
+     * CotBindings class
+     */
+    public int getDetailCount() {
+        return detailCount;
+    }//getDetailCount
+
+    /**
+     * @param index the index of a detail sub element
+     * @return the element name of the sub element, e.g. "track" or "__group"
+     */
+    public String getDetailName(int index) {
+        return new String(xml, starts[index] + 1, nameEnds[index] - starts[index] - 1, StandardCharsets.UTF_8);
+    }//getDetailName
+
+    /**
+     * @param index the index of a detail sub element
+     * @return the XML of the sub element as it was received
+     */
+    public String getDetailXml(int index) {
+        return new String(xml, starts[index], ends[index] - starts[index], StandardCharsets.UTF_8);
+    }//getDetailXml
+
+    /**
+     * Get a detail sub element, it is unmarshalled on the first call.
+     *
+     * @param index the index of a detail sub element
+     * @return the CotBindings object of the sub element, or null if there is
+     * no CotBindings class for it
+     * @throws XMLStreamException if the sub element is not well formed
+     * @throws JAXBException if the sub element cannot be unmarshalled
+     */
+    public Object getDetail(int index) throws XMLStreamException, JAXBException {
+        if (decoded[index] == null && classes[index] != null) {
+            decoded[index] = CoTstaxParser.unmarshalDetail(xml, starts[index], ends[index] - starts[index]);
+        }
+        return decoded[index];
+    }//getDetail(int index)
+
+    /**
+     * Get the first detail sub element of a type, it is unmarshalled on the
+     * first call.
+     *
+     * @param <T> the CotBindings class
+     * @param detailClass the CotBindings class, e.g. Track.class
+     * @return the first detail of the class, or null if the event has none
+     * @throws XMLStreamException if the sub element is not well formed
+     * @throws JAXBException if the sub element cannot be unmarshalled
+     */
+    public <T> T getDetail(Class<T> detailClass) throws XMLStreamException, JAXBException {
+        for (int i = 0; i < detailCount; i++) {
+            if (classes[i] == detailClass) {
+                return detailClass.cast(getDetail(i));
+            }
+        }
+        return null;
+    }//getDetail(Class<T> detailClass)
+
+    /**
+     * Record the byte range of every child element of the detail element.
+     */
+    private void scanDetails() {
+        int i = findDetail();
+        if (i < 0) {
+            return;
+        }
+        while (i < xml.length) {
+            if (xml[i] != '<') {
+                i++;
+                continue;
+            }
+            if (i + 1 < xml.length && xml[i + 1] == '/') {
+                // the end of the detail element
+                return;
+            }
+            if (i + 1 < xml.length && (xml[i + 1] == '!' || xml[i + 1] == '?')) {
+                i = skipMarkup(i);
+                continue;
+            }
+            int end = elementEnd(i);
+            if (end < 0) {
+                return;
+            }
+            addDetail(i, end);
+            i = end;
+        }//while
+    }//scanDetails
+
+    /**
+     * @return the index after the start tag of the detail element, or -1 if
+     * there is no detail or it is empty
+     */
+    private int findDetail() {
+        int last = xml.length - DETAIL_TAG.length;
+        for (int i = 0; i < last; i++) {
+            if (xml[i] == '<' && regionMatches(i, DETAIL_TAG) && isNameEnd(xml[i + DETAIL_TAG.length])) {
+                int end = tagEnd(i);
+                if (end < 0 || xml[end - 2] == '/') {
+                    return -1;
+                }
+                return end;
+            }
+        }
+        return -1;
+    }//findDetail
+
+    /**
+     * @return the index after the element that starts at the given index
+     */
+    private int elementEnd(int start) {
+        int depth = 0;
+        int i = start;
+        while (i < xml.length) {
+            if (xml[i] != '<') {
+                i++;
+                continue;
+            }
+            if (i + 1 < xml.length && (xml[i + 1] == '!' || xml[i + 1] == '?')) {
+                i = skipMarkup(i);
+                continue;
+            }
+            int end = tagEnd(i);
+            if (end < 0) {
+                return -1;
+            }
+            if (xml[i + 1] == '/') {
+                depth--;
+            } else if (xml[end - 2] != '/') {
+                depth++;
+            }
+            if (depth == 0) {
+                return end;
+            }
+            i = end;
+        }//while
+        return -1;
+    }//elementEnd
+
+    /**
+     * @return the index after the '&gt;' of the tag that starts at the given
+     * index, quoted attribute values may contain '&gt;'
+     */
+    private int tagEnd(int start) {
+        byte quote = 0;
+        for (int i = start + 1; i < xml.length; i++) {
+            byte b = xml[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }//tagEnd
+
+    /**
+     * Skip a comment, CDATA section or processing instruction.
+     */
+    private int skipMarkup(int start) {
+        byte[] terminator = xml[start + 1] == '?' ? new byte[]{'?', '>'}
+                : start + 3 < xml.length && xml[start + 2] == '-' ? new byte[]{'-', '-', '>'}
+                : new byte[]{']', ']', '>'};
+        for (int i = start + 2; i <= xml.length - terminator.length; i++) {
+            if (regionMatches(i, terminator)) {
+                return i + terminator.length;
+            }
+        }
+        return xml.length;
+    }//skipMarkup
+
+    private void addDetail(int start, int end) {
+        if (detailCount == starts.length) {
+            int size = detailCount * 2;
+            starts = Arrays.copyOf(starts, size);
+            ends = Arrays.copyOf(ends, size);
+            nameEnds = Arrays.copyOf(nameEnds, size);
+            classes = Arrays.copyOf(classes, size);
+            decoded = Arrays.copyOf(decoded, size);
+        }
+        int nameEnd = start + 1;
+        while (nameEnd < end && !isNameEnd(xml[nameEnd])) {
+            nameEnd++;
+        }
+        starts[detailCount] = start;
+        ends[detailCount] = end;
+        nameEnds[detailCount] = nameEnd;
+        for (int i = 0; i < DETAIL_NAMES.length; i++) {
+            if (nameEnd - start - 1 == DETAIL_NAMES[i].length && regionMatches(start + 1, DETAIL_NAMES[i])) {
+                classes[detailCount] = DETAIL_CLASSES[i];
+                break;
+            }
+        }
+        detailCount++;
+    }//addDetail
+
+    private boolean regionMatches(int start, byte[] expected) {
+        if (start + expected.length > xml.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (xml[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }//regionMatches
+
+    private static boolean isNameEnd(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '>' || b == '/';
+    }//isNameEnd
+}// class CoTlazyEvent
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTpriorities.Priority;
+
+/**
+ * Drops events by priority when the ring buffer in front of the parser fills
+ * up. Instead of dropping whatever arrives while the ring buffer is full, the
+ * shedder starts dropping routine position reports early, so there is always
+ * room for emergency alerts and tasking. Events of CRITICAL priority are never
+ * dropped, the listener waits for a free slot instead.
+ *
+ * The shedder sits between the listeners and a CoTringBuffer:
+ * <pre>
+ * CoTringBuffer ring = new CoTringBuffer(cotParser, 4096, 2, WaitStrategy.BLOCKING);
+ * CoTloadShedder shedder = new CoTloadShedder(ring, new CoTpriorities());
+ * connectors.setEventSink(shedder);
+ * </pre>
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTloadShedder implements CoTeventSink {
+
+    private final CoTringBuffer ring;
+    private final CoTpriorities priorities;
+    // fill level of the ring buffer from which each priority is dropped
+    private final double[] thresholds = new double[Priority.values().length];
+    private final AtomicLongArray passed = new AtomicLongArray(Priority.values().length);
+    private final AtomicLongArray dropped = new AtomicLongArray(Priority.values().length);
+    private final ThreadLocal<CoTeventScanner> scanners = new ThreadLocal<CoTeventScanner>() {
+        @Override
+        protected CoTeventScanner initialValue() {
+            return new CoTeventScanner();
+        }
+    };
+
+    /**
+     * Create a load shedder with the default thresholds: ROUTINE events are
+     * dropped once the ring buffer is half full, NORMAL events at 75% and
+     * HIGH events at 90%.
+     *
+     * @param ring the ring buffer the events that are not dropped go to
+     * @param priorities the priority table of the CoT types
+     */
+    public CoTloadShedder(CoTringBuffer ring, CoTpriorities priorities) {
+        this.ring = ring;
+        this.priorities = priorities;
+        thresholds[Priority.ROUTINE.ordinal()] = 0.5;
+        thresholds[Priority.NORMAL.ordinal()] = 0.75;
+        thresholds[Priority.HIGH.ordinal()] = 0.9;
+        thresholds[Priority.CRITICAL.ordinal()] = Double.MAX_VALUE;
+    }//CoTloadShedder
+
+    /**
+     * Set the fill level of the ring buffer from which events of a priority
+     * are dropped. CRITICAL events are never dropped.
+     *
+     * @param priority the priority class
+     * @param fraction the fill level between 0 and 1
+     */
+    public void setThreshold(Priority priority, double fraction) {
+        if (priority != Priority.CRITICAL) {
+            thresholds[priority.ordinal()] = fraction;
+        }
+    }//setThreshold
+
+    @Override
+    public void onCoTevent(ByteBuffer event, SocketAddress source) {
+        CoTeventScanner scanner = scanners.get();
+        scanner.scan(event);
+        Priority priority = priorities.getPriority(scanner);
+        if (priority == Priority.CRITICAL) {
+            if (ring.publish(event, source, true)) {
+                passed.incrementAndGet(priority.ordinal());
+            } else {
+                dropped.incrementAndGet(priority.ordinal());
+            }
+            return;
+        }
+        double fill = (double) ring.getDepth() / ring.getCapacity();
+        if (fill >= thresholds[priority.ordinal()] || !ring.publish(event, source, false)) {
+            dropped.incrementAndGet(priority.ordinal());
+        } else {
+            passed.incrementAndGet(priority.ordinal());
+        }
+    }//onCoTevent
+
+    /**
+     *
+     * @param priority the priority class
+     * @return the number of events of the priority handed to the ring buffer
+     */
+    public long getPassedCount(Priority priority) {
+        return passed.get(priority.ordinal());
+    }//getPassedCount
+
+    /**
+     *
+     * @param priority the priority class
+     * @return the number of events of the priority that were dropped
+     */
+    public long getDroppedCount(Priority priority) {
+        return dropped.get(priority.ordinal());
+    }//getDroppedCount
+}// class CoTloadShedder
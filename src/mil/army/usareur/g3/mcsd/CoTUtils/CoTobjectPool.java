@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free pool of objects that are costly to create and not thread safe,
+ * e.g. JAXB unmarshallers. Unlike a ThreadLocal the number of objects does
+ * not grow with the number of threads: a TCP listener in VIRTUAL_THREAD mode
+ * reads every connection on its own thread, and per thread state would be
+ * created again for every connection. When the pool is empty a new object is
+ * created, when it is full a returned object is left to the garbage
+ * collector, like the buffers of the CoTbufferPool.
+ *
+ * @param <T> the class of the pooled objects
+ * @author martin.c.dudel.civ@mail.mil
+ */
+abstract class CoTobjectPool<T> {
+
+    /**
+     * The default number of idle objects kept, enough for every processor to
+     * run a few threads that use the pool at the same time.
+     */
+    static final int DEFAULT_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final AtomicReferenceArray<T> objects;
+
+    /**
+     * Create an object pool.
+     *
+     * @param maxPooled the maximum number of idle objects the pool keeps
+     */
+    CoTobjectPool(int maxPooled) {
+        this.objects = new AtomicReferenceArray<>(Math.max(1, maxPooled));
+    }//CoTobjectPool
+
+    /**
+     * Create a new object when the pool is empty.
+     *
+     * @return a new object
+     */
+    protected abstract T create();
+
+    /**
+     * Take an object from the pool, or create one if the pool is empty.
+     *
+     * @return an object that only the calling thread uses until it is
+     * released
+     */
+    T acquire() {
+        for (int i = 0; i < objects.length(); i++) {
+            if (objects.get(i) != null) {
+                T object = objects.getAndSet(i, null);
+                if (object != null) {
+                    return object;
+                }
+            }
+        }
+        return create();
+    }//acquire
+
+    /**
+     * Give an object back to the pool. The object must not be used after it
+     * has been released.
+     *
+     * @param object an object taken from this pool
+     */
+    void release(T object) {
+        for (int i = 0; i < objects.length(); i++) {
+            if (objects.get(i) == null && objects.compareAndSet(i, null, object)) {
+                return;
+            }
+        }
+    }//release
+}// class CoTobjectPool
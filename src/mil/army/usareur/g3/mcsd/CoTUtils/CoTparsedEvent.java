@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.JAXBException;
+
+/**
+ * A CoT event as read by the CoTstaxParser: the attributes of the event, its
+ * point and the detail sub elements as objects of the CotBindings classes,
+ * e.g. Contact and Track. Point values the event does not have are NaN.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTparsedEvent {
+
+    String version;
+    String uid;
+    String type;
+    String how;
+    String time;
+    String start;
+    String stale;
+    String access;
+    String opex;
+    String qos;
+    double lat = Double.NaN;
+    double lon = Double.NaN;
+    double hae = Double.NaN;
+    double ce = Double.NaN;
+    double le = Double.NaN;
+    final List<Object> details = new ArrayList<>();
+    // the detail sub elements as XML, set for decoded TAK protocol messages
+    String detailXml;
+
+    /**
+     *
+     * @return the version attribute of the event, e.g. 2.0
+     */
+    public String getVersion() {
+        return version;
+    }//getVersion
+
+    /**
+     *
+     * @return the uid attribute, the unique id of the entity
+     */
+    public String getUid() {
+        return uid;
+    }//getUid
+
+    /**
+     *
+     * @return the type attribute, e.g. a-f-G-U-C
+     */
+    public String getType() {
+        return type;
+    }//getType
+
+    /**
+     *
+     * @return the how attribute, how the position was made, e.g. m-g
+     */
+    public String getHow() {
+        return how;
+    }//getHow
+
+    /**
+     *
+     * @return the time attribute, when the event was generated
+     */
+    public String getTime() {
+        return time;
+    }//getTime
+
+    /**
+     *
+     * @return the start attribute, when the event becomes valid
+     */
+    public String getStart() {
+        return start;
+    }//getStart
+
+    /**
+     *
+     * @return the stale attribute, when the event is no longer valid
+     */
+    public String getStale() {
+        return stale;
+    }//getStale
+
+    /**
+     *
+     * @return the access attribute or null
+     */
+    public String getAccess() {
+        return access;
+    }//getAccess
+
+    /**
+     *
+     * @return the opex attribute or null
+     */
+    public String getOpex() {
+        return opex;
+    }//getOpex
+
+    /**
+     *
+     * @return the qos attribute or null
+     */
+    public String getQos() {
+        return qos;
+    }//getQos
+
+    /**
+     *
+     * @return the lat attribute of the point in degrees
+     */
+    public double getLatitude() {
+        return lat;
+    }//getLatitude
+
+    /**
+     *
+     * @return the lon attribute of the point in degrees
+     */
+    public double getLongitude() {
+        return lon;
+    }//getLongitude
+
+    /**
+     *
+     * @return the hae attribute of the point, the height above the ellipsoid
+     * in meters
+     */
+    public double getHae() {
+        return hae;
+    }//getHae
+
+    /**
+     *
+     * @return the ce attribute of the point, the circular error in
+     * meters
+     */
+    public double getCircularError() {
+        return ce;
+    }//getCircularError
+
+    /**
+     *
+     * @return the le attribute of the point, the linear error in meters
+     */
+    public double getLinearError() {
+        return le;
+    }//getLinearError
+
+    /**
+     * The detail sub elements in document order. Sub elements without a
+     * CotBindings class are not included.
+     *
+     * @return a list of CotBindings objects, e.g. Contact and Track
+     */
+    public List<Object> getDetails() {
+        return details;
+    }//getDetails
+
+    /**
+     * Get the first detail sub element of a type.
+     *
+     * @param <T> the CotBindings class
+     * @param detailClass the CotBindings class, e.g. Track.class
+     * @return the first detail of the class, or null if the event has none
+     */
+    public <T> T getDetail(Class<T> detailClass) {
+        for (Object detail : details) {
+            if (detailClass.isInstance(detail)) {
+                return detailClass.cast(detail);
+            }
+        }
+        return null;
+    }//getDetail
+
+    /**
+     * Write the event as CoT XML, e.g. for handlers of XML that receive a TAK
+     * protocol message. The detail of a TAK protocol message is written as it
+     * was received, see CoTprotobuf. For an event parsed from XML detail sub
+     * elements without a CotBindings class are not part of the parsed event
+     * and are not written.
+     *
+     * @return a String of CoT XML
+     * @throws JAXBException if a detail sub element cannot be marshalled
+     */
+    public String toXml() throws JAXBException {
+        StringBuilder xml = new StringBuilder(512);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?><event");
+        attribute(xml, "version", version);
+        attribute(xml, "uid", uid);
+        attribute(xml, "type", type);
+        attribute(xml, "how", how);
+        attribute(xml, "time", time);
+        attribute(xml, "start", start);
+        attribute(xml, "stale", stale);
+        attribute(xml, "access", access);
+        attribute(xml, "opex", opex);
+        attribute(xml, "qos", qos);
+        xml.append('>');
+        if (!Double.isNaN(lat) || !Double.isNaN(lon)) {
+            xml.append("<point");
+            attribute(xml, "lat", lat);
+            attribute(xml, "lon", lon);
+            attribute(xml, "hae", hae);
+            attribute(xml, "ce", ce);
+            attribute(xml, "le", le);
+            xml.append("/>");
+        }
+        if (detailXml != null) {
+            xml.append("<detail>").append(detailXml).append("</detail>");
+        } else if (!details.isEmpty()) {
+            xml.append("<detail>").append(CoTstaxParser.marshalDetails(details)).append("</detail>");
+        }
+        return xml.append("</event>").toString();
+    }//toXml
+
+    static void attribute(StringBuilder xml, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        xml.append(' ').append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '"':
+                    xml.append("&quot;");
+                    break;
+                default:
+                    xml.append(c);
+            }
+        }
+        xml.append('"');
+    }//attribute
+
+    static void attribute(StringBuilder xml, String name, double value) {
+        if (!Double.isNaN(value)) {
+            xml.append(' ').append(name).append("=\"").append(value).append('"');
+        }
+    }//attribute
+}// class CoTparsedEvent
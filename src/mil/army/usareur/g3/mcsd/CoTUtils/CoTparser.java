@@ -23,8 +23,12 @@
  */
 package mil.army.usareur.g3.mcsd.CoTUtils;
 
-import java.io.StringReader;
-import java.util.Iterator;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -32,81 +36,145 @@ import java.util.logging.Logger;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.namespace.QName;
-import mil.af.cursorOnTarget.CotDetail;
-import mil.af.cursorOnTarget.CotEvent;
-import mil.af.cursorOnTarget.CotPoint;
-import mil.af.cursorOnTarget.DetailSubelement;
-import mil.af.cursorOnTarget.Remarks;
-import mil.af.cursorOnTarget.UnsupportedCotVersionException;
+import javax.xml.stream.XMLStreamException;
 import mil.army.usareur.g3.mcsd.CotBindings.Contact;
 import mil.army.usareur.g3.mcsd.CotBindings.FlowTags;
 import mil.army.usareur.g3.mcsd.CotBindings.Image;
 import mil.army.usareur.g3.mcsd.CotBindings.Link;
+import mil.army.usareur.g3.mcsd.CotBindings.Remarks;
 import mil.army.usareur.g3.mcsd.CotBindings.Sensor;
 import mil.army.usareur.g3.mcsd.CotBindings.Shape;
 import mil.army.usareur.g3.mcsd.CotBindings.Spatial;
 import mil.army.usareur.g3.mcsd.CotBindings.Track;
 import mil.army.usareur.g3.mcsd.CotBindings.Uid;
-import org.json.JSONObject;
-import org.json.XML;
 
 /**
  *
  * @author martin.c.dudel.civ@mail.mil
  */
-public class CoTparser {
+public class CoTparser implements CoTeventSink {
 
+    // Decoding state is kept per thread because listeners share one parser
+    // pooled, a thread per connection must not mean a decoder per connection
+    private static final CoTobjectPool<Utf8Decoder> DECODERS = new CoTobjectPool<Utf8Decoder>(CoTobjectPool.DEFAULT_SIZE) {
+        @Override
+        protected Utf8Decoder create() {
+            return new Utf8Decoder();
+        }
+    };
+
+    private static final ThreadLocal<CoTeventScanner> SCANNER = new ThreadLocal<CoTeventScanner>() {
+        @Override
+        protected CoTeventScanner initialValue() {
+            return new CoTeventScanner();
+        }
+    };
+
+    // The unmarshallers below are shared by all the listener threads but are
+    // not thread safe. They are kept for existing handlers, use the per
+    // thread getUnmarshaller() instead. All contexts are the shared context.
+    @Deprecated
     public JAXBContext jaxbContextContact;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerContact;
+    @Deprecated
     public JAXBContext jaxbContextFlowTags;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerFlowTags;
+    @Deprecated
     public JAXBContext jaxbContextImage;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerImage;
+    @Deprecated
     public JAXBContext jaxbContextLink;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerLink;
+    @Deprecated
     public JAXBContext jaxbContextRemarks;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerRemarks;
+    @Deprecated
     public JAXBContext jaxbContextSensor;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerSensor;
+    @Deprecated
     public JAXBContext jaxbContextShape;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerShape;
+    @Deprecated
     public JAXBContext jaxbContextSpatial;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerSpatial;
+    @Deprecated
     public JAXBContext jaxbContextTrack;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerTrack;
+    @Deprecated
     public JAXBContext jaxbContextUid;
+    @Deprecated
     public Unmarshaller jaxbUnmarshallerUid;
     public CoTtypes cotTypes = new CoTtypes();
+    private final CoTstaxParser staxParser = new CoTstaxParser();
+    private final CoTjsonEncoder jsonEncoder = new CoTjsonEncoder(this);
+    private final CoTcbor cbor = new CoTcbor();
+    private final CoTprotobuf protobuf = new CoTprotobuf();
 
     public CoTparser() {
-        // Create all the marshallers once at class construction
+        // All the CotBindings share one JAXB context that is created once
         try {
-            jaxbContextContact = JAXBContext.newInstance(Contact.class);
-            jaxbUnmarshallerContact = jaxbContextContact.createUnmarshaller();
-            jaxbContextFlowTags = JAXBContext.newInstance(FlowTags.class);
-            jaxbUnmarshallerFlowTags = jaxbContextFlowTags.createUnmarshaller();
-            jaxbContextImage = JAXBContext.newInstance(Image.class);
-            jaxbUnmarshallerImage = jaxbContextImage.createUnmarshaller();
-            jaxbContextLink = JAXBContext.newInstance(Link.class);
-            jaxbUnmarshallerLink = jaxbContextLink.createUnmarshaller();
-            jaxbContextRemarks = JAXBContext.newInstance(Remarks.class);
-            jaxbUnmarshallerRemarks = jaxbContextRemarks.createUnmarshaller();
-            jaxbContextSensor = JAXBContext.newInstance(Sensor.class);
-            jaxbUnmarshallerSensor = jaxbContextSensor.createUnmarshaller();
-            jaxbContextShape = JAXBContext.newInstance(Shape.class);
-            jaxbUnmarshallerShape = jaxbContextShape.createUnmarshaller();
-            jaxbContextSpatial = JAXBContext.newInstance(Spatial.class);
-            jaxbUnmarshallerSpatial = jaxbContextSpatial.createUnmarshaller();
-            jaxbContextTrack = JAXBContext.newInstance(Track.class);
-            jaxbUnmarshallerTrack = jaxbContextTrack.createUnmarshaller();
-            jaxbContextUid = JAXBContext.newInstance(Uid.class);
-            jaxbUnmarshallerUid = jaxbContextUid.createUnmarshaller();
+            JAXBContext jaxbContext = getJaxbContext();
+            jaxbContextContact = jaxbContext;
+            jaxbUnmarshallerContact = jaxbContext.createUnmarshaller();
+            jaxbContextFlowTags = jaxbContext;
+            jaxbUnmarshallerFlowTags = jaxbContext.createUnmarshaller();
+            jaxbContextImage = jaxbContext;
+            jaxbUnmarshallerImage = jaxbContext.createUnmarshaller();
+            jaxbContextLink = jaxbContext;
+            jaxbUnmarshallerLink = jaxbContext.createUnmarshaller();
+            jaxbContextRemarks = jaxbContext;
+            jaxbUnmarshallerRemarks = jaxbContext.createUnmarshaller();
+            jaxbContextSensor = jaxbContext;
+            jaxbUnmarshallerSensor = jaxbContext.createUnmarshaller();
+            jaxbContextShape = jaxbContext;
+            jaxbUnmarshallerShape = jaxbContext.createUnmarshaller();
+            jaxbContextSpatial = jaxbContext;
+            jaxbUnmarshallerSpatial = jaxbContext.createUnmarshaller();
+            jaxbContextTrack = jaxbContext;
+            jaxbUnmarshallerTrack = jaxbContext.createUnmarshaller();
+            jaxbContextUid = jaxbContext;
+            jaxbUnmarshallerUid = jaxbContext.createUnmarshaller();
         } catch (JAXBException ex) {
             Logger.getLogger(CoTparser.class.getName()).log(Level.SEVERE, null, ex);
         }
     }//CoTparser()
 
+    /**
+     * The JAXB context of all the CotBindings classes. It is created from the
+     * ObjectFactory once per JVM and is thread safe.
+     *
+     * @return the JAXB context of the CotBindings
+     * @throws JAXBException if the context cannot be created
+     */
+    public static JAXBContext getJaxbContext() throws JAXBException {
+        return CoTstaxParser.getJaxbContext();
+    }//getJaxbContext
+
+    /**
+     * An unmarshaller of the CotBindings for the calling thread. Unmarshallers
+     * are not thread safe, every listener thread gets its own, which it keeps
+     * for the following events:
+     * <pre>
+     * Track track = (Track) CoTparser.getUnmarshaller().unmarshal(xmlReader);
+     * </pre>
+     *
+     * @return an unmarshaller that only the calling thread may use
+     */
+    public static Unmarshaller getUnmarshaller() {
+        return CoTstaxParser.getUnmarshaller();
+    }//getUnmarshaller
+
     /**
      * Convert a Cursor on Target XML object to JSON.
      *
@@ -123,29 +191,31 @@ public class CoTparser {
      *
      * @param xmlEvent String of CoT XML
      * @param indentFactor int determining how many spaces to indent the JSON
-     * string
+     * string, 0 for compact JSON on a single line
      * @return a string JSON representation of the CoT object
      */
     public String parseToJSON(String xmlEvent, int indentFactor) {
         if (indentFactor < 0) {
             indentFactor = 3;
         }
-        JSONObject xmlJSONObj = XML.toJSONObject(xmlEvent);
-        String type = xmlJSONObj.getJSONObject("event").getString("type");
-        // check for event -> detail object
-        if (xmlJSONObj.getJSONObject("event").has("detail")) {
-            xmlJSONObj.getJSONObject("event").getJSONObject("detail").put("symbolCode", convertTypeTo2525B(type));
-            xmlJSONObj.getJSONObject("event").put("description", getCotTypeDescription(type));
-        } else {
-            JSONObject symbolObject = new JSONObject();
-            symbolObject.put("symbolcode", convertTypeTo2525B(type));
-            symbolObject.put("description", getCotTypeDescription(type));
-            xmlJSONObj.getJSONObject("event").put("detail", symbolObject);
-        }
-        String jsonCoT = xmlJSONObj.toString(indentFactor);
-        return jsonCoT;
+        return jsonEncoder.encode(xmlEvent, indentFactor);
     }//parseToJSON(String xmlEvent, int indentFactor)
 
+    /**
+     * Convert the bytes of a Cursor on Target XML object to compact JSON and
+     * append it to a buffer, e.g. one that is reused for every event sent
+     * downstream. No String of the XML or the JSON is created.
+     *
+     * @param xmlEvent the bytes of the CoT XML, the position is not changed
+     * @param json the buffer the JSON is appended to
+     */
+    public void parseToJSON(ByteBuffer xmlEvent, StringBuilder json) {
+        if (CoTtakProtocol.isTakMessage(xmlEvent)) {
+            xmlEvent = ByteBuffer.wrap(decodeCoTevent(xmlEvent).getBytes(StandardCharsets.UTF_8));
+        }
+        jsonEncoder.encode(xmlEvent, json);
+    }//parseToJSON(ByteBuffer xmlEvent, StringBuilder json)
+
     /**
      * Convert a CoT type to a 2525B symbol code
      *
@@ -215,29 +285,49 @@ public class CoTparser {
      * @return a String of the type's human readable description
      */
     public String getCotTypeDescription(String type) {
-        StringBuilder t = new StringBuilder(type);
-        // a-.- Atom
-        // b-g-. Tactical graphics
-        // b-r-. Intelligence
-        // b-x Non-CoT object
-        // b-w Weather
-        // b Bits
-        // c Capability
-        // t Tasking
-        // y Reply
-        // r CBRN
-        if (type.charAt(0) == 'a') {
-            // a atom
-            t.setCharAt(2, '.');
-        } else if (type.startsWith("b-g") || type.startsWith("b-r")) {
-            t.setCharAt(4, '.');
-        }
-        return cotTypes.getDescription(t.toString());
+        return cotTypes.getTypeDescription(type);
     }//getCotTypeDescription
 
+    /**
+     * The parsers, the scanner and the TAK protocol and CBOR decoders return
+     * the uid, type and how of the events as the shared instances of the
+     * default CoTstringPool.
+     *
+     * @return the string pool of the parsed values
+     */
+    public CoTstringPool getStringPool() {
+        return CoTstringPool.getDefault();
+    }//getStringPool
+
+    /**
+     * Convert a time, start or stale of a CoT event to milliseconds since the
+     * epoch, see CoTtime. The scanner reads the times of the received bytes
+     * with getMillis().
+     *
+     * @param time the xs:dateTime, e.g. "2018-09-24T11:34:28.000Z"
+     * @return the milliseconds since the epoch
+     * @throws IllegalArgumentException if the time is malformed
+     */
+    public long parseCoTtime(String time) {
+        return CoTtime.parse(time);
+    }//parseCoTtime
+
+    /**
+     * Convert milliseconds since the epoch to a CoT time in UTC, e.g. the
+     * stale time of an event that is sent.
+     *
+     * @param millis the milliseconds since the epoch
+     * @return the time, e.g. "2018-09-24T11:34:28.000Z"
+     */
+    public String formatCoTtime(long millis) {
+        return CoTtime.format(millis);
+    }//formatCoTtime
+
     /**
      * A stub CoT event handler that should be overriden with a developer
-     * specific implementation of a CoT event handler
+     * specific implementation of a CoT event handler. To handle the event
+     * types separately, subscribe one parser per type pattern to a CoTrouter
+     * instead of testing the type here.
      *
      * @param xmlEvent String of CoT XML
      */
@@ -247,9 +337,220 @@ public class CoTparser {
     }
 
     /**
-     * A debug method that dumps the CoT object to the console
+     * The CoT event handler the listeners call with the received bytes of an
+     * event. By default the bytes are decoded and handed to
+     * coTeventHandler(String). Override this method instead to handle the
+     * event bytes without building a String.
+     *
+     * The buffer holds the UTF-8 bytes of the event between its position and
+     * limit. It is owned by the listener and only valid for the duration of
+     * the call, copy any bytes that are needed later.
+     *
+     * Events received in TAK protocol version 1 take the same path: the
+     * buffer holds the protobuf TakMessage with its header, see
+     * CoTtakProtocol, and decodeCoTevent() converts it to XML. A handler that
+     * overrides this method reads both formats with scanCoTevent() and
+     * parseCoTevent(ByteBuffer), which decode a TakMessage much faster than
+     * XML.
+     *
+     * @param xmlEvent the bytes of the CoT XML or TAK protocol message
+     */
+    public void coTeventHandler(ByteBuffer xmlEvent) {
+        coTeventHandler(decodeCoTevent(xmlEvent));
+    }//coTeventHandler(ByteBuffer xmlEvent)
+
+    /**
+     * The listeners and stages such as the CoTringBuffer hand every received
+     * event to this method, which calls coTeventHandler(ByteBuffer).
+     *
+     * @param event the bytes of the CoT XML
+     * @param source the address the event was received from, or null
+     */
+    @Override
+    public void onCoTevent(ByteBuffer event, SocketAddress source) {
+        coTeventHandler(event);
+    }//onCoTevent
+
+    /**
+     * Decode the UTF-8 bytes of a CoT event. Only the bytes between position
+     * and limit are decoded, the position of the buffer is not changed. The
+     * decoder is taken from a small pool shared by all threads. A TAK protocol message is
+     * decoded and written as XML, see CoTparsedEvent.toXml().
+     *
+     * @param xmlEvent the bytes of the CoT XML or TAK protocol message
+     * @return a String of CoT XML
+     * @throws IllegalArgumentException if a TAK protocol message is malformed
+     */
+    public String decodeCoTevent(ByteBuffer xmlEvent) {
+        if (CoTtakProtocol.isTakMessage(xmlEvent)) {
+            try {
+                return protobuf.decode(CoTtakProtocol.getPayload(xmlEvent)).toXml();
+            } catch (XMLStreamException | JAXBException ex) {
+                throw new IllegalArgumentException("Malformed TAK message", ex);
+            }
+        }
+        Utf8Decoder utf8 = DECODERS.acquire();
+        try {
+            if (utf8.chars.capacity() < xmlEvent.remaining()) {
+                // a UTF-8 byte never decodes to more than one char
+                utf8.chars = CharBuffer.allocate(xmlEvent.remaining());
+            }
+            CharBuffer chars = utf8.chars;
+            chars.clear();
+            CharsetDecoder decoder = utf8.decoder;
+            decoder.reset();
+            int position = xmlEvent.position();
+            decoder.decode(xmlEvent, chars, true);
+            decoder.flush(chars);
+            xmlEvent.position(position);
+            chars.flip();
+            return chars.toString();
+        } finally {
+            DECODERS.release(utf8);
+        }
+    }//decodeCoTevent
+
+    // a decoder with the buffer it decodes into
+    private static final class Utf8Decoder {
+
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(1024);
+    }//Utf8Decoder
+
+    /**
+     * The fast path for handlers that only need the core attributes of an
+     * event: the uid, type, how, time, start and stale attributes and the
+     * point are read from the bytes without building a String or a document.
+     * A handler can call this from coTeventHandler(ByteBuffer) to decide
+     * whether the event needs a full parse:
+     * <pre>
+     * public void coTeventHandler(ByteBuffer xmlEvent) {
+     *     CoTeventScanner event = scanCoTevent(xmlEvent);
+     *     if (event.typeStartsWith(HOSTILE)) {
+     *         CoTparsedEvent parsed = parseCoTevent(xmlEvent);
+     *         ...
+     * </pre>
+     *
+     * The scanner belongs to the calling thread and is reused by the next
+     * call, its values are only valid while the buffer is.
+     *
+     * @param xmlEvent the bytes of the CoT XML or TAK protocol message, the
+     * position is not changed
+     * @return the scanner holding the attributes of the event
+     */
+    public CoTeventScanner scanCoTevent(ByteBuffer xmlEvent) {
+        CoTeventScanner scanner = SCANNER.get();
+        scanner.scan(xmlEvent);
+        return scanner;
+    }//scanCoTevent
+
+    /**
+     * Parse a CoT event in a single pass. The detail sub elements are
+     * unmarshalled to CotBindings objects, e.g. Contact and Track.
      *
      * @param xmlEvent String of CoT XML
+     * @return the parsed event
+     * @throws XMLStreamException if the XML is not well formed
+     * @throws JAXBException if a detail sub element cannot be unmarshalled
+     */
+    public CoTparsedEvent parseCoTevent(String xmlEvent) throws XMLStreamException, JAXBException {
+        return staxParser.parse(xmlEvent);
+    }//parseCoTevent(String xmlEvent)
+
+    /**
+     * Parse the bytes of a CoT event in a single pass, without decoding them
+     * to a String first. A TAK protocol message is decoded from protobuf. The
+     * position of the buffer is not changed.
+     *
+     * @param xmlEvent the bytes of the CoT XML or TAK protocol message
+     * @return the parsed event
+     * @throws XMLStreamException if the XML is not well formed
+     * @throws JAXBException if a detail sub element cannot be unmarshalled
+     */
+    public CoTparsedEvent parseCoTevent(ByteBuffer xmlEvent) throws XMLStreamException, JAXBException {
+        if (CoTtakProtocol.isTakMessage(xmlEvent)) {
+            return protobuf.decode(CoTtakProtocol.getPayload(xmlEvent));
+        }
+        return staxParser.parse(xmlEvent);
+    }//parseCoTevent(ByteBuffer xmlEvent)
+
+    /**
+     * Read a CoT event whose detail sub elements are only unmarshalled when
+     * the handler asks for them, e.g. getDetail(Track.class). Handlers that
+     * mostly need the position of an event save the decoding of details they
+     * never read. The bytes are copied, the event may be kept after the
+     * handler returns. A TAK protocol message is converted to XML first.
+     *
+     * @param xmlEvent the bytes of the CoT XML, the position is not changed
+     * @return the event
+     */
+    public CoTlazyEvent parseLazyCoTevent(ByteBuffer xmlEvent) {
+        if (CoTtakProtocol.isTakMessage(xmlEvent)) {
+            xmlEvent = ByteBuffer.wrap(decodeCoTevent(xmlEvent).getBytes(StandardCharsets.UTF_8));
+        }
+        return new CoTlazyEvent(xmlEvent);
+    }//parseLazyCoTevent
+
+    /**
+     * Encode a parsed event as CBOR, e.g. to forward it to other services. It
+     * is a fraction of the size of the XML or the JSON of the event. See
+     * CoTcbor for the layout.
+     *
+     * @param cotEvent the parsed event
+     * @return the CBOR of the event
+     * @throws JAXBException if a detail sub element cannot be marshalled
+     */
+    public byte[] toCBOR(CoTparsedEvent cotEvent) throws JAXBException {
+        return cbor.encode(cotEvent);
+    }//toCBOR
+
+    /**
+     * Decode an event encoded by toCBOR(). The position of the buffer is not
+     * changed.
+     *
+     * @param cborEvent the CBOR of the event
+     * @return the parsed event
+     * @throws XMLStreamException if the XML of a detail is not well formed
+     * @throws JAXBException if a detail sub element cannot be unmarshalled
+     */
+    public CoTparsedEvent parseCBOR(ByteBuffer cborEvent) throws XMLStreamException, JAXBException {
+        return cbor.decode(cborEvent);
+    }//parseCBOR
+
+    /**
+     * Encode a parsed event as a protobuf TakMessage of the TAK protocol.
+     * Times are sent in milliseconds. See CoTprotobuf for the layout.
+     *
+     * @param cotEvent the parsed event
+     * @return the TakMessage without the TAK protocol header
+     * @throws JAXBException if a detail sub element cannot be marshalled
+     */
+    public byte[] toProtobuf(CoTparsedEvent cotEvent) throws JAXBException {
+        return protobuf.encode(cotEvent);
+    }//toProtobuf
+
+    /**
+     * Decode a protobuf TakMessage. The position of the buffer is not
+     * changed.
+     *
+     * @param takMessage the TakMessage without the TAK protocol header
+     * @return the parsed event
+     * @throws XMLStreamException if the xmlDetail is not well formed
+     * @throws JAXBException if a detail sub element cannot be unmarshalled
+     */
+    public CoTparsedEvent parseProtobuf(ByteBuffer takMessage) throws XMLStreamException, JAXBException {
+        return protobuf.decode(takMessage);
+    }//parseProtobuf
+
+    /**
+     * A debug method that dumps the CoT object to the console. An event that
+     * cannot be parsed is not swallowed, the listeners hand it to their dead
+     * letters.
+     *
+     * @param xmlEvent String of CoT XML
+     * @throws IllegalArgumentException if the event cannot be parsed
      */
     public void dumpCoTevent(String xmlEvent) {
         // Dump the CoT XML to the console and parse the objects. This class is
@@ -258,148 +559,140 @@ public class CoTparser {
             xmlEvent = xmlEvent.substring(0, xmlEvent.lastIndexOf(">") + 1);
             System.out.println("========== Begin xml:\n" + xmlEvent + "\n========== End xml");
 
-            CotEvent cotEvent = CotEvent.parse(xmlEvent);
+            CoTparsedEvent cotEvent = parseCoTevent(xmlEvent);
             System.out.println("Access: " + cotEvent.getAccess());
             System.out.println("How: " + cotEvent.getHow());
             System.out.println("Opex: " + cotEvent.getOpex());
             System.out.println("Type: " + cotEvent.getType());
             System.out.println("Description: " + getCotTypeDescription(cotEvent.getType()));
             System.out.println("Calculated Symbol Code: " + convertTypeTo2525B(cotEvent.getType()));
-            System.out.println("UID: " + cotEvent.getUID());
+            System.out.println("UID: " + cotEvent.getUid());
             System.out.println("Stale: " + cotEvent.getStale());
             System.out.println("Start: " + cotEvent.getStart());
             System.out.println("Time: " + cotEvent.getTime());
             System.out.println("Version: " + cotEvent.getVersion());
             System.out.println("Quality of service: " + cotEvent.getQos());
 
-            CotPoint point = cotEvent.getPoint();
-            System.out.println("Point    CircularError: " + point.getCircularError());
-            System.out.println("Point    HAE: " + point.getHAE());
-            System.out.println("Point    Latitude: " + point.getLatitude());
-            System.out.println("Point    Longitude: " + point.getLongitude());
-            System.out.println("Point    LinearError: " + point.getLinearError());
-
-            CotDetail detail = cotEvent.getDetail();
-            System.out.println("Detail count: " + detail.size());
-            Iterator dit = detail.iterator();
-            while (dit.hasNext()) {
-                DetailSubelement subElement = (DetailSubelement) dit.next();
-                System.out.println("Detail    sub-element name: " + subElement.getName());
-                System.out.println("Detail    sub-element xml: " + subElement.toXml());
-                StringReader xmlReader = new StringReader(subElement.toXml());
-                if ("contact".equalsIgnoreCase(subElement.getName())) {
-                    Contact contact = (Contact) jaxbUnmarshallerContact.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Callsign: " + contact.getCallsign());
-                    System.out.println("Detail       " + subElement.getName() + "   Dsn: " + contact.getDsn());
-                    System.out.println("Detail       " + subElement.getName() + "   Email: " + contact.getEmail());
-                    System.out.println("Detail       " + subElement.getName() + "   Hostname: " + contact.getHostname());
-                    System.out.println("Detail       " + subElement.getName() + "   Modulation: " + contact.getModulation());
-                    System.out.println("Detail       " + subElement.getName() + "   Phone: " + contact.getPhone());
+            System.out.println("Point    CircularError: " + cotEvent.getCircularError());
+            System.out.println("Point    HAE: " + cotEvent.getHae());
+            System.out.println("Point    Latitude: " + cotEvent.getLatitude());
+            System.out.println("Point    Longitude: " + cotEvent.getLongitude());
+            System.out.println("Point    LinearError: " + cotEvent.getLinearError());
+
+            System.out.println("Detail count: " + cotEvent.getDetails().size());
+            for (Object subElement : cotEvent.getDetails()) {
+                String name = subElement.getClass().getAnnotation(XmlRootElement.class).name();
+                System.out.println("Detail    sub-element name: " + name);
+                if (subElement instanceof Contact) {
+                    Contact contact = (Contact) subElement;
+                    System.out.println("Detail       " + name + "   Callsign: " + contact.getCallsign());
+                    System.out.println("Detail       " + name + "   Dsn: " + contact.getDsn());
+                    System.out.println("Detail       " + name + "   Email: " + contact.getEmail());
+                    System.out.println("Detail       " + name + "   Hostname: " + contact.getHostname());
+                    System.out.println("Detail       " + name + "   Modulation: " + contact.getModulation());
+                    System.out.println("Detail       " + name + "   Phone: " + contact.getPhone());
                 }//contact
-                if ("uid".equalsIgnoreCase(subElement.getName())) {
-                    Uid uid = (Uid) jaxbUnmarshallerUid.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Version: " + uid.getVersion());
+                if (subElement instanceof Uid) {
+                    Uid uid = (Uid) subElement;
+                    System.out.println("Detail       " + name + "   Version: " + uid.getVersion());
                     Map<QName, String> uidMap = uid.getOtherAttributes();
                     for (QName key : uidMap.keySet()) {
-                        System.out.println("Detail       " + subElement.getName() + "   " + key.toString() + ": " + uidMap.get(key));
+                        System.out.println("Detail       " + name + "   " + key.toString() + ": " + uidMap.get(key));
                     }
                 }//uid    
-                if ("track".equalsIgnoreCase(subElement.getName())) {
-                    Track track = (Track) jaxbUnmarshallerTrack.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Course: " + track.getCourse());
-                    System.out.println("Detail       " + subElement.getName() + "   ECourse: " + track.getECourse());
-                    System.out.println("Detail       " + subElement.getName() + "   Slope: " + track.getSlope());
-                    System.out.println("Detail       " + subElement.getName() + "   ESlope: " + track.getESlope());
-                    System.out.println("Detail       " + subElement.getName() + "   Speed: " + track.getSpeed());
-                    System.out.println("Detail       " + subElement.getName() + "   ESpeed: " + track.getESpeed());
-                    System.out.println("Detail       " + subElement.getName() + "   Version: " + track.getVersion());
+                if (subElement instanceof Track) {
+                    Track track = (Track) subElement;
+                    System.out.println("Detail       " + name + "   Course: " + track.getCourse());
+                    System.out.println("Detail       " + name + "   ECourse: " + track.getECourse());
+                    System.out.println("Detail       " + name + "   Slope: " + track.getSlope());
+                    System.out.println("Detail       " + name + "   ESlope: " + track.getESlope());
+                    System.out.println("Detail       " + name + "   Speed: " + track.getSpeed());
+                    System.out.println("Detail       " + name + "   ESpeed: " + track.getESpeed());
+                    System.out.println("Detail       " + name + "   Version: " + track.getVersion());
                 }//track   
-                if ("spatial".equalsIgnoreCase(subElement.getName())) {
-                    Spatial spatial = (Spatial) jaxbUnmarshallerSpatial.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Spin: " + spatial.getSpin());
-                    System.out.println("Detail       " + subElement.getName() + "   Attitude: " + spatial.getAttitude());
-                    System.out.println("Detail       " + subElement.getName() + "   Version: " + spatial.getVersion());
+                if (subElement instanceof Spatial) {
+                    Spatial spatial = (Spatial) subElement;
+                    System.out.println("Detail       " + name + "   Spin: " + spatial.getSpin());
+                    System.out.println("Detail       " + name + "   Attitude: " + spatial.getAttitude());
+                    System.out.println("Detail       " + name + "   Version: " + spatial.getVersion());
                 }//spatial  
-                if ("shape".equalsIgnoreCase(subElement.getName())) {
-                    Shape shape = (Shape) jaxbUnmarshallerShape.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Dxf: " + shape.getDxf());
-                    System.out.println("Detail       " + subElement.getName() + "   Ellipse: " + shape.getEllipse());
-                    System.out.println("Detail       " + subElement.getName() + "   Polyline: " + shape.getPolyline());
-                    System.out.println("Detail       " + subElement.getName() + "   Version: " + shape.getVersion());
+                if (subElement instanceof Shape) {
+                    Shape shape = (Shape) subElement;
+                    System.out.println("Detail       " + name + "   Dxf: " + shape.getDxf());
+                    System.out.println("Detail       " + name + "   Ellipse: " + shape.getEllipse());
+                    System.out.println("Detail       " + name + "   Polyline: " + shape.getPolyline());
+                    System.out.println("Detail       " + name + "   Version: " + shape.getVersion());
                 }//shape    
-                if ("sensor".equalsIgnoreCase(subElement.getName())) {
-                    Sensor sensor = (Sensor) jaxbUnmarshallerSensor.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Model: " + sensor.getModel());
-                    System.out.println("Detail       " + subElement.getName() + "   Ellipse: " + sensor.getType());
-                    System.out.println("Detail       " + subElement.getName() + "   Azimuth: " + sensor.getAzimuth());
-                    System.out.println("Detail       " + subElement.getName() + "   Elevation: " + sensor.getElevation());
-                    System.out.println("Detail       " + subElement.getName() + "   Fov: " + sensor.getFov());
-                    System.out.println("Detail       " + subElement.getName() + "   North: " + sensor.getNorth());
-                    System.out.println("Detail       " + subElement.getName() + "   Range: " + sensor.getRange());
-                    System.out.println("Detail       " + subElement.getName() + "   Roll: " + sensor.getRoll());
-                    System.out.println("Detail       " + subElement.getName() + "   Vfov: " + sensor.getVfov());
-                    System.out.println("Detail       " + subElement.getName() + "   Version: " + sensor.getVersion());
+                if (subElement instanceof Sensor) {
+                    Sensor sensor = (Sensor) subElement;
+                    System.out.println("Detail       " + name + "   Model: " + sensor.getModel());
+                    System.out.println("Detail       " + name + "   Ellipse: " + sensor.getType());
+                    System.out.println("Detail       " + name + "   Azimuth: " + sensor.getAzimuth());
+                    System.out.println("Detail       " + name + "   Elevation: " + sensor.getElevation());
+                    System.out.println("Detail       " + name + "   Fov: " + sensor.getFov());
+                    System.out.println("Detail       " + name + "   North: " + sensor.getNorth());
+                    System.out.println("Detail       " + name + "   Range: " + sensor.getRange());
+                    System.out.println("Detail       " + name + "   Roll: " + sensor.getRoll());
+                    System.out.println("Detail       " + name + "   Vfov: " + sensor.getVfov());
+                    System.out.println("Detail       " + name + "   Version: " + sensor.getVersion());
                     List<Object> any = sensor.getAny();
                     // Todo: figure out what is in any
                 }//sensor      
-                if ("remarks".equalsIgnoreCase(subElement.getName())) {
-                    Remarks remarks = (Remarks) jaxbUnmarshallerRemarks.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Contents: " + remarks.getContents());
-                    System.out.println("Detail       " + subElement.getName() + "   Keywords: " + remarks.getKeywords());
-                    System.out.println("Detail       " + subElement.getName() + "   Name: " + remarks.getName());
-                    System.out.println("Detail       " + subElement.getName() + "   Source: " + remarks.getSource());
-                    System.out.println("Detail       " + subElement.getName() + "   To: " + remarks.getTo());
-                    System.out.println("Detail       " + subElement.getName() + "   Time: " + remarks.getTime());
-                    System.out.println("Detail       " + subElement.getName() + "   Version: " + remarks.getVersion());
+                if (subElement instanceof Remarks) {
+                    Remarks remarks = (Remarks) subElement;
+                    System.out.println("Detail       " + name + "   Contents: " + remarks.getContent());
+                    System.out.println("Detail       " + name + "   Keywords: " + remarks.getKeywords());
+                    System.out.println("Detail       " + name + "   Source: " + remarks.getSource());
+                    System.out.println("Detail       " + name + "   To: " + remarks.getTo());
+                    System.out.println("Detail       " + name + "   Time: " + remarks.getTime());
+                    System.out.println("Detail       " + name + "   Version: " + remarks.getVersion());
                 }//remarks    
-                if ("link".equalsIgnoreCase(subElement.getName())) {
-                    Link link = (Link) jaxbUnmarshallerLink.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Mime: " + link.getMime());
-                    System.out.println("Detail       " + subElement.getName() + "   Relation: " + link.getRelation());
-                    System.out.println("Detail       " + subElement.getName() + "   Remarks: " + link.getRemarks());
-                    System.out.println("Detail       " + subElement.getName() + "   Type: " + link.getType());
-                    System.out.println("Detail       " + subElement.getName() + "   Uid: " + link.getUid());
-                    System.out.println("Detail       " + subElement.getName() + "   Url: " + link.getUrl());
-                    System.out.println("Detail       " + subElement.getName() + "   Version: " + link.getVersion());
+                if (subElement instanceof Link) {
+                    Link link = (Link) subElement;
+                    System.out.println("Detail       " + name + "   Mime: " + link.getMime());
+                    System.out.println("Detail       " + name + "   Relation: " + link.getRelation());
+                    System.out.println("Detail       " + name + "   Remarks: " + link.getRemarks());
+                    System.out.println("Detail       " + name + "   Type: " + link.getType());
+                    System.out.println("Detail       " + name + "   Uid: " + link.getUid());
+                    System.out.println("Detail       " + name + "   Url: " + link.getUrl());
+                    System.out.println("Detail       " + name + "   Version: " + link.getVersion());
                     List<Object> any = link.getAny();
                     // Todo: figure out what is in any                    
                 }//link   
-                if ("image".equalsIgnoreCase(subElement.getName())) {
-                    Image image = (Image) jaxbUnmarshallerImage.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Mime: " + image.getMime());
-                    System.out.println("Detail       " + subElement.getName() + "   Mimecsv: " + image.getMimecsv());
-                    System.out.println("Detail       " + subElement.getName() + "   Quality: " + image.getQuality());
-                    System.out.println("Detail       " + subElement.getName() + "   Reason: " + image.getReason());
-                    System.out.println("Detail       " + subElement.getName() + "   Source: " + image.getSource());
-                    System.out.println("Detail       " + subElement.getName() + "   Type: " + image.getType());
-                    System.out.println("Detail       " + subElement.getName() + "   Url: " + image.getUrl());
-                    System.out.println("Detail       " + subElement.getName() + "   Bands: " + image.getBands());
-                    System.out.println("Detail       " + subElement.getName() + "   Fov: " + image.getFov());
-                    System.out.println("Detail       " + subElement.getName() + "   Height: " + image.getHeight());
-                    System.out.println("Detail       " + subElement.getName() + "   North: " + image.getNorth());
-                    System.out.println("Detail       " + subElement.getName() + "   Resolution: " + image.getResolution());
-                    System.out.println("Detail       " + subElement.getName() + "   Size: " + image.getSize());
-                    System.out.println("Detail       " + subElement.getName() + "   Version: " + image.getVersion());
-                    System.out.println("Detail       " + subElement.getName() + "   Width: " + image.getWidth());
+                if (subElement instanceof Image) {
+                    Image image = (Image) subElement;
+                    System.out.println("Detail       " + name + "   Mime: " + image.getMime());
+                    System.out.println("Detail       " + name + "   Mimecsv: " + image.getMimecsv());
+                    System.out.println("Detail       " + name + "   Quality: " + image.getQuality());
+                    System.out.println("Detail       " + name + "   Reason: " + image.getReason());
+                    System.out.println("Detail       " + name + "   Source: " + image.getSource());
+                    System.out.println("Detail       " + name + "   Type: " + image.getType());
+                    System.out.println("Detail       " + name + "   Url: " + image.getUrl());
+                    System.out.println("Detail       " + name + "   Bands: " + image.getBands());
+                    System.out.println("Detail       " + name + "   Fov: " + image.getFov());
+                    System.out.println("Detail       " + name + "   Height: " + image.getHeight());
+                    System.out.println("Detail       " + name + "   North: " + image.getNorth());
+                    System.out.println("Detail       " + name + "   Resolution: " + image.getResolution());
+                    System.out.println("Detail       " + name + "   Size: " + image.getSize());
+                    System.out.println("Detail       " + name + "   Version: " + image.getVersion());
+                    System.out.println("Detail       " + name + "   Width: " + image.getWidth());
                     List<Object> content = image.getContent();
                     // Todo: figure out what is in content                    
                 }//image   
-                if (subElement.getName().toLowerCase().contains("flow")) {
-                    FlowTags flowTags = (FlowTags) jaxbUnmarshallerFlowTags.unmarshal(xmlReader);
-                    System.out.println("Detail       " + subElement.getName() + "   Mime: " + flowTags.getVersion());
+                if (subElement instanceof FlowTags) {
+                    FlowTags flowTags = (FlowTags) subElement;
+                    System.out.println("Detail       " + name + "   Mime: " + flowTags.getVersion());
                     List<Object> content = flowTags.getAny();
                     // Todo: figure out what is in content  
                     Map<QName, String> flowTagMap = flowTags.getOtherAttributes();
                     for (QName key : flowTagMap.keySet()) {
-                        System.out.println("Detail       " + subElement.getName() + "   " + key.toString() + ": " + flowTagMap.get(key));
+                        System.out.println("Detail       " + name + "   " + key.toString() + ": " + flowTagMap.get(key));
                     }
                 }//flowTags                 
-            }//while details
+            }//for details
 
-        } catch (UnsupportedCotVersionException ex) {
-            Logger.getLogger(CoTparser.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (Exception ex) {
-            Logger.getLogger(CoTparser.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (XMLStreamException | JAXBException ex) {
+            throw new IllegalArgumentException("Malformed CoT event", ex);
         }
     }//dumpCoTevent
 }//class CoTparser
@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTeventScanner.Attribute;
+import mil.army.usareur.g3.mcsd.CoTUtils.CoTringBuffer.WaitStrategy;
+
+/**
+ * Spreads the CoT events of the listeners across several worker threads by
+ * the uid of the event, so one port can use more than one core. A
+ * CoTringBuffer with several consumers parses in parallel too, but may hand
+ * two updates of the same entity to different threads, which then overtake
+ * each other. Here all the events of one uid go to the same worker: updates of
+ * one entity are handled one after the other in the order they were
+ * received, different entities are handled in parallel.
+ *
+ * Every worker is a CoTringBuffer with a single consumer thread. The uid is
+ * read with the CoTeventScanner on the listener thread, no String is created
+ * and the event is not parsed before it reaches its worker. Events without a
+ * uid all go to the first worker.
+ *
+ * Usage:
+ * <pre>
+ * CoTpartitionedWorkers workers = new CoTpartitionedWorkers(cp, 4, 4096, WaitStrategy.BLOCKING);
+ * workers.start();
+ * connectors.setEventSink(workers);
+ * </pre>
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTpartitionedWorkers implements CoTeventSink {
+
+    private final CoTringBuffer[] workers;
+    private final ThreadLocal<CoTeventScanner> scanners = new ThreadLocal<CoTeventScanner>() {
+        @Override
+        protected CoTeventScanner initialValue() {
+            return new CoTeventScanner();
+        }
+    };
+
+    /**
+     * Create the workers. They still need to be started.
+     *
+     * @param sink the stage the workers hand the events to, usually a
+     * CoTparser; it is called from all the worker threads
+     * @param workerCount the number of worker threads, e.g. the number of
+     * cores
+     * @param capacity the number of slots of the ring buffer of each worker
+     * @param waitStrategy how threads wait for events or free slots
+     */
+    public CoTpartitionedWorkers(CoTeventSink sink, int workerCount, int capacity, WaitStrategy waitStrategy) {
+        workers = new CoTringBuffer[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new CoTringBuffer(sink, capacity, 1, waitStrategy);
+        }
+    }//CoTpartitionedWorkers
+
+    /**
+     * Set whether a listener thread waits for a free slot when the ring
+     * buffer of a worker is full instead of dropping the event, see
+     * CoTringBuffer.setBlockWhenFull(). The default is to drop.
+     *
+     * @param blockWhenFull true to wait for a free slot
+     */
+    public void setBlockWhenFull(boolean blockWhenFull) {
+        for (CoTringBuffer worker : workers) {
+            worker.setBlockWhenFull(blockWhenFull);
+        }
+    }//setBlockWhenFull
+
+    /**
+     * Set the dead letters that receive the events the sink failed on. By
+     * default the rejects are only counted and logged by every worker.
+     *
+     * @param deadLetters the dead letters shared by the workers
+     */
+    public void setDeadLetters(CoTdeadLetters deadLetters) {
+        for (CoTringBuffer worker : workers) {
+            worker.setDeadLetters(deadLetters);
+        }
+    }//setDeadLetters
+
+    /**
+     * Start the worker threads.
+     */
+    public void start() {
+        for (CoTringBuffer worker : workers) {
+            worker.start();
+        }
+    }//start
+
+    /**
+     * Stop the worker threads once the events already queued have been
+     * handled.
+     */
+    public void stop() {
+        for (CoTringBuffer worker : workers) {
+            worker.stop();
+        }
+    }//stop
+
+    @Override
+    public void onCoTevent(ByteBuffer event, SocketAddress source) {
+        CoTeventScanner scanner = scanners.get();
+        int hash = scanner.scan(event) ? scanner.getHash(Attribute.UID) : 0;
+        workers[getWorker(hash)].onCoTevent(event, source);
+    }//onCoTevent
+
+    /**
+     * @param uidHash the hash of the uid bytes, see CoTeventScanner.getHash()
+     * @return the index of the worker that handles the uid
+     */
+    int getWorker(int uidHash) {
+        // spread the high bits, uids often only differ in their last bytes
+        int hash = uidHash ^ (uidHash >>> 16);
+        return (hash & 0x7FFFFFFF) % workers.length;
+    }//getWorker
+
+    /**
+     *
+     * @return the number of worker threads
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }//getWorkerCount
+
+    /**
+     * @param worker the index of a worker
+     * @return the number of events waiting for the worker
+     */
+    public long getDepth(int worker) {
+        return workers[worker].getDepth();
+    }//getDepth
+
+    /**
+     * @param worker the index of a worker
+     * @return the number of events handed to the worker
+     */
+    public long getPublishedCount(int worker) {
+        return workers[worker].getPublishedCount();
+    }//getPublishedCount
+
+    /**
+     *
+     * @return the number of events handled by all the workers
+     */
+    public long getConsumedCount() {
+        long count = 0;
+        for (CoTringBuffer worker : workers) {
+            count += worker.getConsumedCount();
+        }
+        return count;
+    }//getConsumedCount
+
+    /**
+     *
+     * @return the number of events dropped because the ring buffer of their
+     * worker was full or stopped
+     */
+    public long getDroppedCount() {
+        long count = 0;
+        for (CoTringBuffer worker : workers) {
+            count += worker.getDroppedCount();
+        }
+        return count;
+    }//getDroppedCount
+}// class CoTpartitionedWorkers
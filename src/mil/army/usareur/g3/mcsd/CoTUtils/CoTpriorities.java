@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The priority classes of CoT types, used to decide which events are dropped
+ * first when ingest is saturated. The table maps type prefixes to a priority,
+ * the longest matching prefix wins. A trailing "*" on a prefix is optional,
+ * "a-f-G-*" and "a-f-G-" are the same entry.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTpriorities {
+
+    /**
+     * The priority classes, from the first to be dropped to never dropped.
+     */
+    public enum Priority {
+        ROUTINE, NORMAL, HIGH, CRITICAL
+    }
+
+    private static class Entry {
+
+        final String pattern;
+        final byte[] prefix;
+        final Priority priority;
+
+        Entry(String pattern, Priority priority) {
+            this.pattern = pattern.endsWith("*") ? pattern.substring(0, pattern.length() - 1) : pattern;
+            this.prefix = this.pattern.getBytes(StandardCharsets.US_ASCII);
+            this.priority = priority;
+        }
+    }// class Entry
+
+    private volatile Entry[] entries = new Entry[0];
+    private volatile Priority defaultPriority = Priority.NORMAL;
+
+    public CoTpriorities() {
+        // Emergency alerts and their cancellation are never dropped
+        setPriority("b-a-o-tbl", Priority.CRITICAL);  // 911 alert
+        setPriority("b-a-o-can", Priority.CRITICAL);  // cancel alert
+        setPriority("b-a-o-pan", Priority.CRITICAL);  // ring the bell
+        setPriority("b-a-o-opn", Priority.CRITICAL);  // troops in contact
+        setPriority("b-a-o-c", Priority.CRITICAL);    // custom alert
+        setPriority("t-*", Priority.CRITICAL);        // tasking
+        setPriority("a-h-*", Priority.HIGH);          // hostile tracks
+        setPriority("a-s-*", Priority.HIGH);          // suspect tracks
+        setPriority("b-r-*", Priority.HIGH);          // reports, e.g. medevac
+        setPriority("a-f-G-*", Priority.ROUTINE);     // friendly ground position reports
+    }
+
+    /**
+     * Add or replace the priority of a type prefix.
+     *
+     * @param pattern the type prefix, e.g. "a-f-G-*"
+     * @param priority the priority of types starting with the prefix
+     */
+    public synchronized void setPriority(String pattern, Priority priority) {
+        List<Entry> list = new ArrayList<>();
+        Entry added = new Entry(pattern, priority);
+        for (Entry entry : entries) {
+            if (!entry.pattern.equals(added.pattern)) {
+                list.add(entry);
+            }
+        }
+        list.add(added);
+        // Longest prefix first, so the first match is the best match
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return b.prefix.length - a.prefix.length;
+            }
+        });
+        entries = list.toArray(new Entry[list.size()]);
+    }//setPriority
+
+    /**
+     * @param priority the priority of types that match no prefix
+     */
+    public void setDefaultPriority(Priority priority) {
+        this.defaultPriority = priority;
+    }//setDefaultPriority
+
+    /**
+     *
+     * @param type a CoT type, e.g. "a-f-G-U-C"
+     * @return the priority of the type
+     */
+    public Priority getPriority(String type) {
+        if (type == null) {
+            return defaultPriority;
+        }
+        for (Entry entry : entries) {
+            if (type.startsWith(entry.pattern)) {
+                return entry.priority;
+            }
+        }
+        return defaultPriority;
+    }//getPriority
+
+    /**
+     * Look up the priority of the type found by a scanner without creating a
+     * String of the type.
+     *
+     * @param scanner a scanner that has scanned an event
+     * @return the priority of the scanned type
+     */
+    public Priority getPriority(CoTeventScanner scanner) {
+        if (scanner.getTypeLength() < 0) {
+            return defaultPriority;
+        }
+        for (Entry entry : entries) {
+            if (scanner.typeStartsWith(entry.prefix)) {
+                return entry.priority;
+            }
+        }
+        return defaultPriority;
+    }//getPriority
+}// class CoTpriorities
@@ -0,0 +1,511 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+import mil.army.usareur.g3.mcsd.CotBindings.Contact;
+import mil.army.usareur.g3.mcsd.CotBindings.Track;
+
+/**
+ * Encodes a parsed CoT event as a protobuf TakMessage of the TAK protocol
+ * version 1 and decodes such messages. The layout follows takmessage.proto,
+ * cotevent.proto, detail.proto, contact.proto and track.proto of TAK; no
+ * protobuf library is needed.
+ *
+ * A contact that only has a callsign and a track that only has course and
+ * speed are encoded as the Contact and Track messages, all other detail sub
+ * elements are marshalled into the xmlDetail string. As in TAK the times are
+ * milliseconds since the epoch and the version of the event is not sent, it
+ * is 2.0 when decoded. Point values that are missing in a message are 0.
+ * The detail of a decoded message is also kept as XML: the xmlDetail string
+ * verbatim, followed by the contact, __group, precisionlocation, status, takv
+ * and track elements rebuilt from the fields of the Detail message.
+ *
+ * The encoder may be shared between threads.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTprotobuf {
+
+    // wire types
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+    private static final int FIXED32 = 5;
+    // TakMessage
+    private static final int TAK_MESSAGE_COT_EVENT = 2;
+    // CotEvent
+    private static final int TYPE = 1;
+    private static final int ACCESS = 2;
+    private static final int QOS = 3;
+    private static final int OPEX = 4;
+    private static final int UID = 5;
+    private static final int SEND_TIME = 6;
+    private static final int START_TIME = 7;
+    private static final int STALE_TIME = 8;
+    private static final int HOW = 9;
+    private static final int LAT = 10;
+    private static final int LON = 11;
+    private static final int HAE = 12;
+    private static final int CE = 13;
+    private static final int LE = 14;
+    private static final int DETAIL = 15;
+    // Detail
+    private static final int XML_DETAIL = 1;
+    private static final int CONTACT = 2;
+    private static final int GROUP = 3;
+    private static final int PRECISION_LOCATION = 4;
+    private static final int STATUS = 5;
+    private static final int TAKV = 6;
+    private static final int TRACK = 7;
+    // Contact
+    private static final int ENDPOINT = 1;
+    private static final int CALLSIGN = 2;
+    // Status
+    private static final int BATTERY = 1;
+    // Track
+    private static final int SPEED = 1;
+    private static final int COURSE = 2;
+    // the size of a double field with a tag of one byte
+    private static final int DOUBLE_SIZE = 9;
+
+    private static final ThreadLocal<CoTbinaryWriter> WRITER = new ThreadLocal<CoTbinaryWriter>() {
+        @Override
+        protected CoTbinaryWriter initialValue() {
+            return new CoTbinaryWriter();
+        }
+    };
+
+    private final CoTstaxParser staxParser = new CoTstaxParser();
+
+    /**
+     * Encode a parsed event as a TakMessage.
+     *
+     * @param event the parsed CoT event
+     * @return the protobuf message without the TAK protocol header
+     * @throws JAXBException if a detail cannot be marshalled to xmlDetail
+     */
+    public byte[] encode(CoTparsedEvent event) throws JAXBException {
+        Contact contact = null;
+        Track track = null;
+        List<Object> xmlDetails = new ArrayList<>();
+        for (Object detail : event.details) {
+            if (contact == null && detail instanceof Contact && isCallsignOnly((Contact) detail)) {
+                contact = (Contact) detail;
+            } else if (track == null && detail instanceof Track && isCourseAndSpeedOnly((Track) detail)) {
+                track = (Track) detail;
+            } else {
+                xmlDetails.add(detail);
+            }
+        }
+        String xmlDetail = xmlDetails.isEmpty() ? null : CoTstaxParser.marshalDetails(xmlDetails);
+        int contactSize = contact == null ? 0 : stringSize(contact.getCallsign());
+        int detailSize = stringSize(xmlDetail);
+        if (contact != null) {
+            detailSize += 1 + CoTbinaryWriter.varintSize(contactSize) + contactSize;
+        }
+        if (track != null) {
+            detailSize += 2 + 2 * DOUBLE_SIZE;
+        }
+        long sendTime = toMillis(event.time);
+        long startTime = toMillis(event.start);
+        long staleTime = toMillis(event.stale);
+        int eventSize = stringSize(event.type) + stringSize(event.access) + stringSize(event.qos)
+                + stringSize(event.opex) + stringSize(event.uid) + timeSize(sendTime) + timeSize(startTime)
+                + timeSize(staleTime) + stringSize(event.how) + 5 * DOUBLE_SIZE;
+        if (detailSize > 0) {
+            eventSize += 1 + CoTbinaryWriter.varintSize(detailSize) + detailSize;
+        }
+
+        CoTbinaryWriter out = WRITER.get();
+        out.reset();
+        tag(out, TAK_MESSAGE_COT_EVENT, LENGTH_DELIMITED);
+        out.writeVarint(eventSize);
+        writeString(out, TYPE, event.type);
+        writeString(out, ACCESS, event.access);
+        writeString(out, QOS, event.qos);
+        writeString(out, OPEX, event.opex);
+        writeString(out, UID, event.uid);
+        writeTime(out, SEND_TIME, sendTime);
+        writeTime(out, START_TIME, startTime);
+        writeTime(out, STALE_TIME, staleTime);
+        writeString(out, HOW, event.how);
+        writeDouble(out, LAT, event.lat);
+        writeDouble(out, LON, event.lon);
+        writeDouble(out, HAE, event.hae);
+        writeDouble(out, CE, event.ce);
+        writeDouble(out, LE, event.le);
+        if (detailSize > 0) {
+            tag(out, DETAIL, LENGTH_DELIMITED);
+            out.writeVarint(detailSize);
+            writeString(out, XML_DETAIL, xmlDetail);
+            if (contact != null) {
+                tag(out, CONTACT, LENGTH_DELIMITED);
+                out.writeVarint(contactSize);
+                writeString(out, CALLSIGN, contact.getCallsign());
+            }
+            if (track != null) {
+                tag(out, TRACK, LENGTH_DELIMITED);
+                out.writeVarint(2 * DOUBLE_SIZE);
+                writeDouble(out, SPEED, track.getSpeed());
+                writeDouble(out, COURSE, track.getCourse());
+            }
+        }
+        return out.toByteArray();
+    }//encode
+
+    /**
+     * Decode a TakMessage. The TakControl of the message is skipped. The
+     * group, precision location, status and takv details have no CotBindings
+     * class, they are only part of the XML of the event, see
+     * CoTparsedEvent.toXml(). The position of the buffer is not changed.
+     *
+     * @param message the protobuf message between position and limit,
+     * without the TAK protocol header
+     * @return the parsed CoT event
+     * @throws XMLStreamException if the xmlDetail is not well formed
+     * @throws JAXBException if a sub element of the xmlDetail cannot be
+     * unmarshalled
+     */
+    public CoTparsedEvent decode(ByteBuffer message) throws XMLStreamException, JAXBException {
+        ByteBuffer in = message.duplicate();
+        CoTparsedEvent event = new CoTparsedEvent();
+        event.version = "2.0";
+        event.lat = 0;
+        event.lon = 0;
+        event.hae = 0;
+        event.ce = 0;
+        event.le = 0;
+        try {
+            while (in.hasRemaining()) {
+                int key = (int) readVarint(in);
+                if (key >>> 3 == TAK_MESSAGE_COT_EVENT && (key & 7) == LENGTH_DELIMITED) {
+                    int end = length(in);
+                    readEvent(in, end, event);
+                } else {
+                    skip(in, key & 7);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Malformed protobuf message", ex);
+        }
+        return event;
+    }//decode
+
+    private void readEvent(ByteBuffer in, int end, CoTparsedEvent event) throws XMLStreamException, JAXBException {
+        while (in.position() < end) {
+            int key = (int) readVarint(in);
+            switch (key >>> 3) {
+                case TYPE:
+                    event.type = readPooledString(in);
+                    break;
+                case ACCESS:
+                    event.access = readString(in);
+                    break;
+                case QOS:
+                    event.qos = readString(in);
+                    break;
+                case OPEX:
+                    event.opex = readString(in);
+                    break;
+                case UID:
+                    event.uid = readPooledString(in);
+                    break;
+                case SEND_TIME:
+                    event.time = CoTtime.format(readVarint(in));
+                    break;
+                case START_TIME:
+                    event.start = CoTtime.format(readVarint(in));
+                    break;
+                case STALE_TIME:
+                    event.stale = CoTtime.format(readVarint(in));
+                    break;
+                case HOW:
+                    event.how = readPooledString(in);
+                    break;
+                case LAT:
+                    event.lat = readDouble(in);
+                    break;
+                case LON:
+                    event.lon = readDouble(in);
+                    break;
+                case HAE:
+                    event.hae = readDouble(in);
+                    break;
+                case CE:
+                    event.ce = readDouble(in);
+                    break;
+                case LE:
+                    event.le = readDouble(in);
+                    break;
+                case DETAIL:
+                    readDetail(in, length(in), event);
+                    break;
+                default:
+                    skip(in, key & 7);
+            }
+        }//while
+    }//readEvent
+
+    private void readDetail(ByteBuffer in, int end, CoTparsedEvent event) throws XMLStreamException, JAXBException {
+        // the xmlDetail comes first, as in the XML TAK builds from a message
+        String xmlDetail = "";
+        StringBuilder xml = new StringBuilder();
+        while (in.position() < end) {
+            int key = (int) readVarint(in);
+            switch (key >>> 3) {
+                case XML_DETAIL:
+                    xmlDetail = readString(in);
+                    staxParser.readDetails(xmlDetail, event.details);
+                    break;
+                case CONTACT:
+                    Contact contact = new Contact();
+                    String endpoint = null;
+                    int contactEnd = length(in);
+                    while (in.position() < contactEnd) {
+                        int contactKey = (int) readVarint(in);
+                        if (contactKey >>> 3 == CALLSIGN) {
+                            contact.setCallsign(readString(in));
+                        } else if (contactKey >>> 3 == ENDPOINT) {
+                            // the endpoint has no place in the Contact binding
+                            endpoint = readString(in);
+                        } else {
+                            skip(in, contactKey & 7);
+                        }
+                    }
+                    event.details.add(contact);
+                    xml.append("<contact");
+                    CoTparsedEvent.attribute(xml, "endpoint", endpoint);
+                    CoTparsedEvent.attribute(xml, "callsign", contact.getCallsign());
+                    xml.append("/>");
+                    break;
+                case GROUP:
+                    readElement(in, xml, "__group", "name", "role");
+                    break;
+                case PRECISION_LOCATION:
+                    readElement(in, xml, "precisionlocation", "geopointsrc", "altsrc");
+                    break;
+                case STATUS:
+                    xml.append("<status");
+                    int statusEnd = length(in);
+                    while (in.position() < statusEnd) {
+                        int statusKey = (int) readVarint(in);
+                        if (statusKey >>> 3 == BATTERY && (statusKey & 7) == VARINT) {
+                            CoTparsedEvent.attribute(xml, "battery", Long.toString(readVarint(in)));
+                        } else {
+                            skip(in, statusKey & 7);
+                        }
+                    }
+                    xml.append("/>");
+                    break;
+                case TAKV:
+                    readElement(in, xml, "takv", "device", "platform", "os", "version");
+                    break;
+                case TRACK:
+                    Track track = new Track();
+                    int trackEnd = length(in);
+                    while (in.position() < trackEnd) {
+                        int trackKey = (int) readVarint(in);
+                        if (trackKey >>> 3 == SPEED) {
+                            track.setSpeed(readDouble(in));
+                        } else if (trackKey >>> 3 == COURSE) {
+                            track.setCourse(readDouble(in));
+                        } else {
+                            skip(in, trackKey & 7);
+                        }
+                    }
+                    event.details.add(track);
+                    xml.append("<track");
+                    CoTparsedEvent.attribute(xml, "speed", track.getSpeed());
+                    CoTparsedEvent.attribute(xml, "course", track.getCourse());
+                    xml.append("/>");
+                    break;
+                default:
+                    skip(in, key & 7);
+            }
+        }//while
+        event.detailXml = xmlDetail + xml;
+    }//readDetail
+
+    /**
+     * Read a detail message whose fields are strings and write it as an XML
+     * element, e.g. the Takv message as a takv element.
+     *
+     * @param names the attribute names of the fields 1, 2, ...
+     */
+    private static void readElement(ByteBuffer in, StringBuilder xml, String element, String... names) {
+        xml.append('<').append(element);
+        int end = length(in);
+        while (in.position() < end) {
+            int key = (int) readVarint(in);
+            int field = key >>> 3;
+            if (field >= 1 && field <= names.length && (key & 7) == LENGTH_DELIMITED) {
+                CoTparsedEvent.attribute(xml, names[field - 1], readString(in));
+            } else {
+                skip(in, key & 7);
+            }
+        }
+        xml.append("/>");
+    }//readElement
+
+    private static boolean isCallsignOnly(Contact contact) {
+        return contact.getCallsign() != null && contact.getFreq() == 0 && contact.getEmail() == null
+                && contact.getDsn() == null && contact.getPhone() == null && contact.getModulation() == null
+                && contact.getHostname() == null && contact.getVersion() == 0 && contact.getAny().isEmpty();
+    }//isCallsignOnly
+
+    private static boolean isCourseAndSpeedOnly(Track track) {
+        return track.getSlope() == 0 && track.getECourse() == 0 && track.getESpeed() == 0
+                && track.getESlope() == 0 && track.getVersion() == 0 && track.getAny().isEmpty();
+    }//isCourseAndSpeedOnly
+
+    /**
+     * Convert an xs:dateTime of CoT to milliseconds since the epoch.
+     *
+     * @param time the CoT time, may be null
+     * @return the milliseconds, 0 for no time
+     */
+    static long toMillis(String time) {
+        return time == null ? 0 : CoTtime.parse(time);
+    }//toMillis
+
+    private static void tag(CoTbinaryWriter out, int field, int wireType) {
+        out.write(field << 3 | wireType);
+    }//tag
+
+    private static int stringSize(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = CoTbinaryWriter.utf8Length(value);
+        return 1 + CoTbinaryWriter.varintSize(length) + length;
+    }//stringSize
+
+    private static int timeSize(long millis) {
+        return millis == 0 ? 0 : 1 + CoTbinaryWriter.varintSize(millis);
+    }//timeSize
+
+    private static void writeString(CoTbinaryWriter out, int field, String value) {
+        if (value != null) {
+            tag(out, field, LENGTH_DELIMITED);
+            out.writeVarint(CoTbinaryWriter.utf8Length(value));
+            out.writeUtf8(value);
+        }
+    }//writeString
+
+    private static void writeTime(CoTbinaryWriter out, int field, long millis) {
+        if (millis != 0) {
+            tag(out, field, VARINT);
+            out.writeVarint(millis);
+        }
+    }//writeTime
+
+    private static void writeDouble(CoTbinaryWriter out, int field, double value) {
+        tag(out, field, FIXED64);
+        out.writeLongLittleEndian(Double.doubleToRawLongBits(value));
+    }//writeDouble
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }//readVarint
+
+    /**
+     * Read the length of a length delimited field.
+     *
+     * @return the position after the field
+     */
+    private static int length(ByteBuffer in) {
+        int length = (int) readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Malformed protobuf length " + length);
+        }
+        return in.position() + length;
+    }//length
+
+    /**
+     * Read a uid, type or how as the shared instance of the CoTstringPool.
+     */
+    private static String readPooledString(ByteBuffer in) {
+        int end = length(in);
+        String value = CoTstringPool.getDefault().get(in, in.position(), end);
+        in.position(end);
+        return value;
+    }//readPooledString
+
+    private static String readString(ByteBuffer in) {
+        int end = length(in);
+        int length = end - in.position();
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(end);
+        return value;
+    }//readString
+
+    private static double readDouble(ByteBuffer in) {
+        long bits = 0;
+        for (int shift = 0; shift < 64; shift += 8) {
+            bits |= (long) (in.get() & 0xFF) << shift;
+        }
+        return Double.longBitsToDouble(bits);
+    }//readDouble
+
+    private static void skip(ByteBuffer in, int wireType) {
+        switch (wireType) {
+            case VARINT:
+                readVarint(in);
+                break;
+            case FIXED64:
+                in.position(in.position() + 8);
+                break;
+            case LENGTH_DELIMITED:
+                in.position(length(in));
+                break;
+            case FIXED32:
+                in.position(in.position() + 4);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported protobuf wire type " + wireType);
+        }
+    }//skip
+}// class CoTprotobuf
@@ -0,0 +1,457 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, lock-free ring buffer between the listener threads and the CoT
+ * parser. The listener thread copies every event into a pre-allocated slot
+ * and returns to its socket at once, while one or more consumer threads hand
+ * the events to the next stage, usually the CoTparser. A slow CoT event
+ * handler then no longer stalls the sockets.
+ *
+ * Every slot carries a sequence number, so publishing and consuming an event
+ * is a single compare-and-set on the tail or head position. Listeners with
+ * several receive threads may share one ring buffer. When the ring buffer is
+ * full an event is dropped and counted, or the publishing thread waits if
+ * setBlockWhenFull(true) was called. The queue depth and its high-water mark
+ * are exposed to size the ring buffer. A slot keeps its array for the next
+ * event unless it grew beyond 16 KB, so a burst of large events does not pin
+ * capacity times the largest event size.
+ *
+ * Usage:
+ *
+ * CoTringBuffer ring = new CoTringBuffer(cp, 4096, 2, CoTringBuffer.WaitStrategy.BLOCKING);
+ * ring.start();
+ * cotUdpListener.setEventSink(ring);
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTringBuffer implements CoTeventSink {
+
+    /**
+     * How consumer threads wait for events and publishing threads wait for
+     * free slots.
+     */
+    public enum WaitStrategy {
+        /**
+         * Spin without pausing. The lowest latency, but every consumer keeps a
+         * core busy.
+         */
+        BUSY_SPIN,
+        /**
+         * Spin briefly, then yield the core to other threads.
+         */
+        YIELDING,
+        /**
+         * Spin and yield briefly, then sleep for short periods.
+         */
+        SLEEPING,
+        /**
+         * Spin briefly, then block until an event is published. The lowest
+         * CPU use while idle.
+         */
+        BLOCKING
+    }//enum WaitStrategy
+
+    private static final int INITIAL_SLOT_SIZE = 2048;
+    // a slot that held a larger event gets a new array once it is consumed
+    private static final int MAX_RETAINED_SLOT_SIZE = 16 * 1024;
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+
+    private final CoTeventSink sink;
+    private final int capacity;
+    private final int mask;
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final WaitStrategy waitStrategy;
+    private final int consumerCount;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger sleepers = new AtomicInteger();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong();
+    // the threads inside publish(), stop() waits for them
+    private final AtomicInteger publishers = new AtomicInteger();
+    private volatile CoTdeadLetters deadLetters = new CoTdeadLetters();
+    private volatile boolean blockWhenFull = false;
+    private volatile boolean runFlag = false;
+    private volatile boolean stopped = false;
+    private Thread[] consumers;
+
+    /**
+     * One pre-allocated entry of the ring buffer. The byte array grows to the
+     * largest event stored in the slot and is then reused, up to 16 KB.
+     */
+    private static class Slot {
+
+        byte[] data = new byte[INITIAL_SLOT_SIZE];
+        ByteBuffer view = ByteBuffer.wrap(data);
+        int length;
+        SocketAddress source;
+    }//class Slot
+
+    /**
+     * Create a ring buffer. The ring buffer still needs to be started.
+     *
+     * @param sink the stage the consumer threads hand the events to, usually
+     * a CoTparser
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param consumerCount the number of consumer threads
+     * @param waitStrategy how threads wait for events or free slots
+     */
+    public CoTringBuffer(CoTeventSink sink, int capacity, int consumerCount, WaitStrategy waitStrategy) {
+        this.sink = sink;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new Slot[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        this.consumerCount = Math.max(1, consumerCount);
+        this.waitStrategy = waitStrategy;
+    }//CoTringBuffer
+
+    /**
+     * Set whether a publishing thread waits for a free slot when the ring
+     * buffer is full instead of dropping the event. Waiting suits TCP, where
+     * the sender is slowed down, dropping suits UDP, where a waiting receive
+     * thread makes the kernel drop datagrams instead. The default is to drop.
+     *
+     * @param blockWhenFull true to wait for a free slot
+     */
+    public void setBlockWhenFull(boolean blockWhenFull) {
+        this.blockWhenFull = blockWhenFull;
+    }//setBlockWhenFull
+
+    /**
+     * Set the dead letters that receive the events the next stage failed on.
+     * By default the rejects are only counted and logged.
+     *
+     * @param deadLetters the dead letters of the ring buffer
+     */
+    public void setDeadLetters(CoTdeadLetters deadLetters) {
+        this.deadLetters = deadLetters;
+    }//setDeadLetters
+
+    /**
+     *
+     * @return the dead letters of the ring buffer
+     */
+    public CoTdeadLetters getDeadLetters() {
+        return deadLetters;
+    }//getDeadLetters
+
+    /**
+     * Start the consumer threads.
+     */
+    public synchronized void start() {
+        if (consumers != null) {
+            return;
+        }
+        runFlag = true;
+        consumers = new Thread[consumerCount];
+        for (int i = 0; i < consumerCount; i++) {
+            consumers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    consume();
+                }
+            }, "CoT ring buffer consumer-" + i);
+            consumers[i].start();
+        }
+    }//start
+
+    /**
+     * Stop the consumer threads once the events already in the ring buffer
+     * have been handled. Events published afterwards are dropped.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        runFlag = false;
+        signalConsumers();
+        if (consumers != null) {
+            for (Thread consumer : consumers) {
+                try {
+                    consumer.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        // a publisher that did not see the stop yet finishes its slot first
+        while (publishers.get() > 0) {
+            Thread.yield();
+        }
+        discardRemaining();
+    }//stop
+
+    @Override
+    public void onCoTevent(ByteBuffer event, SocketAddress source) {
+        publish(event, source, blockWhenFull);
+    }//onCoTevent
+
+    /**
+     * Copy an event into the ring buffer.
+     *
+     * @param event the bytes of the CoT event between position and limit, the
+     * position is not changed
+     * @param source the address the event was received from, or null
+     * @param wait true to wait for a free slot if the ring buffer is full
+     * @return true if the event was published, false if it was dropped
+     */
+    public boolean publish(ByteBuffer event, SocketAddress source, boolean wait) {
+        publishers.incrementAndGet();
+        try {
+            if (stopped) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            return store(event, source, wait);
+        } finally {
+            publishers.decrementAndGet();
+        }
+    }//publish
+
+    private boolean store(ByteBuffer event, SocketAddress source, boolean wait) {
+        long position;
+        int index;
+        int tries = 0;
+        while (true) {
+            position = tail.get();
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                // the slot still holds an event that has not been consumed
+                if (!wait || !runFlag) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                waitForSlot(tries++);
+            }
+            // otherwise another thread claimed the position first, try again
+        }//while
+        Slot slot = slots[index];
+        int length = event.remaining();
+        if (slot.data.length < length) {
+            slot.data = new byte[length];
+            slot.view = ByteBuffer.wrap(slot.data);
+        }
+        int eventPosition = event.position();
+        event.get(slot.data, 0, length);
+        event.position(eventPosition);
+        slot.length = length;
+        slot.source = source;
+        sequences.set(index, position + 1);
+        published.incrementAndGet();
+        long depth = position + 1 - head.get();
+        if (depth > maxDepth.get()) {
+            maxDepth.set(depth);
+        }
+        if (sleepers.get() > 0) {
+            signalConsumers();
+        }
+        return true;
+    }//store
+
+    private void consume() {
+        int tries = 0;
+        while (true) {
+            long position = head.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    Slot slot = slots[index];
+                    try {
+                        slot.view.clear();
+                        slot.view.limit(slot.length);
+                        sink.onCoTevent(slot.view, slot.source);
+                    } catch (RuntimeException ex) {
+                        slot.view.clear();
+                        slot.view.limit(slot.length);
+                        deadLetters.reject(slot.view, slot.source, ex);
+                    } finally {
+                        release(slot);
+                        // hand the slot back to the publishers for the next lap
+                        sequences.set(index, position + capacity);
+                        consumed.incrementAndGet();
+                    }
+                    tries = 0;
+                }
+            } else if (difference < 0) {
+                // the ring buffer is empty
+                if (!runFlag) {
+                    return;
+                }
+                waitForEvent(tries++);
+            }
+        }//while
+    }//consume
+
+    private static void release(Slot slot) {
+        slot.source = null;
+        if (slot.data.length > MAX_RETAINED_SLOT_SIZE) {
+            slot.data = new byte[INITIAL_SLOT_SIZE];
+            slot.view = ByteBuffer.wrap(slot.data);
+        }
+    }//release
+
+    private void discardRemaining() {
+        // drop the events a publisher stored while the consumers were stopping
+        while (true) {
+            long position = head.get();
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                return;
+            }
+            release(slots[index]);
+            head.set(position + 1);
+            sequences.set(index, position + capacity);
+            dropped.incrementAndGet();
+        }//while
+    }//discardRemaining
+
+    private void waitForEvent(int tries) {
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || tries < SPIN_TRIES) {
+            return;
+        }
+        switch (waitStrategy) {
+            case YIELDING:
+                Thread.yield();
+                break;
+            case SLEEPING:
+                if (tries < YIELD_TRIES) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(100000L);
+                }
+                break;
+            default:
+                lock.lock();
+                try {
+                    sleepers.incrementAndGet();
+                    if (runFlag && getDepth() <= 0) {
+                        notEmpty.await(1, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    sleepers.decrementAndGet();
+                    lock.unlock();
+                }
+        }
+    }//waitForEvent
+
+    private void waitForSlot(int tries) {
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || tries < SPIN_TRIES) {
+            return;
+        }
+        if (waitStrategy == WaitStrategy.YIELDING || tries < YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(10000L);
+        }
+    }//waitForSlot
+
+    private void signalConsumers() {
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }//signalConsumers
+
+    /**
+     *
+     * @return the number of slots of the ring buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }//getCapacity
+
+    /**
+     *
+     * @return the number of events waiting in the ring buffer
+     */
+    public long getDepth() {
+        return Math.max(0, tail.get() - head.get());
+    }//getDepth
+
+    /**
+     *
+     * @return the highest number of events that waited in the ring buffer
+     * since it was created
+     */
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }//getMaxDepth
+
+    /**
+     *
+     * @return the number of events published to the ring buffer
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }//getPublishedCount
+
+    /**
+     *
+     * @return the number of events handed to the next stage
+     */
+    public long getConsumedCount() {
+        return consumed.get();
+    }//getConsumedCount
+
+    /**
+     *
+     * @return the number of events dropped because the ring buffer was full
+     * or stopped
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }//getDroppedCount
+}// class CoTringBuffer
@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes the CoT events to the handlers subscribed to their type, instead of
+ * a chain of type.startsWith() checks in one coTeventHandler(). A handler
+ * subscribes to a type pattern: a pattern with a trailing "*" matches every
+ * type that starts with the rest of the pattern, e.g. "a-h-*" or "b-m-p-*",
+ * "*" alone matches all types, and a pattern without "*" matches only that
+ * type, e.g. "t-x-c".
+ *
+ * The patterns are compiled into a prefix trie. Every node holds the handlers
+ * of all the patterns that match a type ending there or passing through it,
+ * so an event is routed by walking the bytes of its type once, in time
+ * proportional to the type length and without creating objects. The type is
+ * read with the CoTeventScanner; an event no handler is subscribed to is
+ * counted and dropped, or handed to the default handler, before it is ever
+ * parsed. A handler subscribed with several matching patterns receives the
+ * event once.
+ *
+ * Usage:
+ * <pre>
+ * CoTrouter router = new CoTrouter();
+ * router.subscribe("a-h-*", hostileTracks);
+ * router.subscribe("b-a-o-*", alerts);
+ * router.subscribe("t-x-c", chat);
+ * connectors.setEventSink(router);
+ * </pre>
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTrouter implements CoTeventSink {
+
+    private static final CoTeventSink[] NONE = new CoTeventSink[0];
+
+    /**
+     * A node of the compiled trie, reached by the bytes of a type prefix.
+     */
+    private static class Node {
+
+        final Node[] children = new Node[128];
+        // subscriptions ending at this node
+        final List<CoTeventSink> exact = new ArrayList<>();
+        final List<CoTeventSink> prefix = new ArrayList<>();
+        // handlers of a type that ends at this node
+        CoTeventSink[] typeHandlers = NONE;
+        // handlers of a longer type that leaves the trie at this node
+        CoTeventSink[] prefixHandlers = NONE;
+    }// class Node
+
+    /**
+     * One subscription, kept to rebuild the trie.
+     */
+    private static class Subscription {
+
+        final String pattern;
+        final CoTeventSink handler;
+
+        Subscription(String pattern, CoTeventSink handler) {
+            this.pattern = pattern;
+            this.handler = handler;
+        }
+    }// class Subscription
+
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private volatile Node root = new Node();
+    private volatile CoTeventSink defaultHandler;
+    private final AtomicLong routedCount = new AtomicLong();
+    private final AtomicLong unroutedCount = new AtomicLong();
+    private final ThreadLocal<CoTeventScanner> scanners = new ThreadLocal<CoTeventScanner>() {
+        @Override
+        protected CoTeventScanner initialValue() {
+            return new CoTeventScanner();
+        }
+    };
+
+    /**
+     * Subscribe a handler to a type pattern. The trie is compiled again, the
+     * events in flight are routed with the previous one.
+     *
+     * @param pattern a CoT type, or a type prefix followed by "*"
+     * @param handler the handler of the matching events, e.g. a CoTparser
+     * @throws IllegalArgumentException if the pattern is not ASCII or has a
+     * "*" other than at its end
+     */
+    public synchronized void subscribe(String pattern, CoTeventSink handler) {
+        int star = pattern.indexOf('*');
+        if (star >= 0 && star != pattern.length() - 1) {
+            throw new IllegalArgumentException("Only a trailing * is supported: " + pattern);
+        }
+        for (int i = 0; i < pattern.length(); i++) {
+            if (pattern.charAt(i) >= 128) {
+                throw new IllegalArgumentException("CoT types are ASCII: " + pattern);
+            }
+        }
+        subscriptions.add(new Subscription(pattern, handler));
+        root = compile(subscriptions);
+    }//subscribe
+
+    /**
+     * Remove the subscription of a handler to a type pattern.
+     *
+     * @param pattern the pattern the handler subscribed to
+     * @param handler the subscribed handler
+     */
+    public synchronized void unsubscribe(String pattern, CoTeventSink handler) {
+        for (int i = 0; i < subscriptions.size(); i++) {
+            Subscription subscription = subscriptions.get(i);
+            if (subscription.pattern.equals(pattern) && subscription.handler == handler) {
+                subscriptions.remove(i);
+                break;
+            }
+        }
+        root = compile(subscriptions);
+    }//unsubscribe
+
+    /**
+     * Set the handler of the events no handler is subscribed to. By default
+     * they are dropped.
+     *
+     * @param handler the default handler, or null to drop the events
+     */
+    public void setDefaultHandler(CoTeventSink handler) {
+        this.defaultHandler = handler;
+    }//setDefaultHandler
+
+    private static Node compile(List<Subscription> subscriptions) {
+        Node root = new Node();
+        for (Subscription subscription : subscriptions) {
+            String pattern = subscription.pattern;
+            boolean isPrefix = pattern.endsWith("*");
+            byte[] bytes = (isPrefix ? pattern.substring(0, pattern.length() - 1) : pattern)
+                    .getBytes(StandardCharsets.US_ASCII);
+            Node node = root;
+            for (byte b : bytes) {
+                if (node.children[b] == null) {
+                    node.children[b] = new Node();
+                }
+                node = node.children[b];
+            }
+            (isPrefix ? node.prefix : node.exact).add(subscription.handler);
+        }
+        link(root, new LinkedHashSet<CoTeventSink>());
+        return root;
+    }//compile
+
+    /**
+     * Collect the handlers of every node, the prefix handlers of its
+     * ancestors included.
+     */
+    private static void link(Node node, Set<CoTeventSink> inherited) {
+        Set<CoTeventSink> prefixes = new LinkedHashSet<>(inherited);
+        prefixes.addAll(node.prefix);
+        node.prefixHandlers = prefixes.toArray(NONE);
+        Set<CoTeventSink> handlers = new LinkedHashSet<>(prefixes);
+        handlers.addAll(node.exact);
+        node.typeHandlers = handlers.toArray(NONE);
+        for (Node child : node.children) {
+            if (child != null) {
+                link(child, prefixes);
+            }
+        }
+    }//link
+
+    @Override
+    public void onCoTevent(ByteBuffer event, SocketAddress source) {
+        CoTeventScanner scanner = scanners.get();
+        CoTeventSink[] handlers = NONE;
+        if (scanner.scan(event)) {
+            handlers = getHandlers(scanner);
+        }
+        if (handlers.length == 0) {
+            unroutedCount.incrementAndGet();
+            CoTeventSink handler = defaultHandler;
+            if (handler != null) {
+                handler.onCoTevent(event, source);
+            }
+            return;
+        }
+        routedCount.incrementAndGet();
+        int position = event.position();
+        for (CoTeventSink handler : handlers) {
+            event.position(position);
+            handler.onCoTevent(event, source);
+        }
+    }//onCoTevent
+
+    /**
+     * Walk the trie along the scanned type.
+     */
+    private CoTeventSink[] getHandlers(CoTeventScanner scanner) {
+        int length = scanner.getTypeLength();
+        if (length < 0) {
+            return NONE;
+        }
+        Node node = root;
+        for (int i = 0; i < length; i++) {
+            byte b = scanner.getTypeByte(i);
+            Node child = b >= 0 ? node.children[b] : null;
+            if (child == null) {
+                return node.prefixHandlers;
+            }
+            node = child;
+        }
+        return node.typeHandlers;
+    }//getHandlers
+
+    /**
+     * Find the handlers of a type, e.g. to check the subscriptions.
+     *
+     * @param type a CoT type
+     * @return the handlers an event of the type is routed to
+     */
+    public List<CoTeventSink> getHandlers(String type) {
+        Node node = root;
+        for (int i = 0; i < type.length(); i++) {
+            char c = type.charAt(i);
+            Node child = c < 128 ? node.children[c] : null;
+            if (child == null) {
+                return Arrays.asList(node.prefixHandlers);
+            }
+            node = child;
+        }
+        return Arrays.asList(node.typeHandlers);
+    }//getHandlers(String type)
+
+    /**
+     *
+     * @return the number of events routed to at least one handler
+     */
+    public long getRoutedCount() {
+        return routedCount.get();
+    }//getRoutedCount
+
+    /**
+     *
+     * @return the number of events no handler was subscribed to
+     */
+    public long getUnroutedCount() {
+        return unroutedCount.get();
+    }//getUnroutedCount
+}// class CoTrouter
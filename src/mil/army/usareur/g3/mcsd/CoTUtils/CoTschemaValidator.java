@@ -0,0 +1,353 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import org.xml.sax.SAXException;
+
+/**
+ * Validates a sample of the CoT events against the CoT schemas, e.g. to audit
+ * the feed of a partner in production. All the schemas of a directory, by
+ * default lib/xsd, are compiled once into a Schema that is cached and shared
+ * by all validators. The detail sub elements are validated against their
+ * schema when one is known, other detail sub elements are accepted.
+ *
+ * The validator is a stage in front of the next stage, usually the CoT
+ * parser. Every event is handed on unchanged on the listener thread. A
+ * configurable fraction of the events is copied and validated on the
+ * validator's own worker threads, so validation never slows the listener
+ * down; when the workers fall behind further samples are skipped and
+ * counted. Schema violations are counted per CoT type, for at most 4096
+ * types; violations of further types are counted together. TAK protocol
+ * messages are not XML and are not sampled.
+ *
+ * Usage:
+ * <pre>
+ * CoTschemaValidator validator = new CoTschemaValidator(cp, "lib/xsd", 0.01, 1);
+ * connectors.setEventSink(validator);
+ * ...
+ * System.out.println(validator.getViolationsByType());
+ * </pre>
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTschemaValidator implements CoTeventSink {
+
+    /**
+     * The directory of the CoT schemas shipped with the project.
+     */
+    public static final String DEFAULT_SCHEMA_DIRECTORY = "lib/xsd";
+
+    // XMLConstants.ACCESS_EXTERNAL_DTD and ACCESS_EXTERNAL_SCHEMA of JAXP 1.5
+    private static final String ACCESS_EXTERNAL_DTD = "http://javax.xml.XMLConstants/property/accessExternalDTD";
+    private static final String ACCESS_EXTERNAL_SCHEMA = "http://javax.xml.XMLConstants/property/accessExternalSchema";
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final String NO_TYPE = "(none)";
+    private static final String OTHER_TYPES = "(other)";
+    // the types come from the senders, bound the number counted separately
+    private static final int MAX_TYPES = 4096;
+    private static final ConcurrentHashMap<String, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+    private final CoTeventSink sink;
+    private final Schema schema;
+    private final ThreadPoolExecutor workers;
+    private volatile double sampleRate;
+    private final AtomicLong validatedCount = new AtomicLong();
+    private final AtomicLong violationCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> violationsByType = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> lastViolations = new ConcurrentHashMap<>();
+    private final ThreadLocal<Validator> validators = new ThreadLocal<Validator>() {
+        @Override
+        protected Validator initialValue() {
+            Validator validator = schema.newValidator();
+            try {
+                // events come from the network, never load what they refer to
+                validator.setProperty(ACCESS_EXTERNAL_DTD, "");
+                validator.setProperty(ACCESS_EXTERNAL_SCHEMA, "");
+            } catch (SAXException ex) {
+                // a validator without the JAXP 1.5 properties
+            }
+            return validator;
+        }
+    };
+    private final ThreadLocal<CoTeventScanner> scanners = new ThreadLocal<CoTeventScanner>() {
+        @Override
+        protected CoTeventScanner initialValue() {
+            return new CoTeventScanner();
+        }
+    };
+
+    /**
+     * Create a validator.
+     *
+     * @param sink the stage every event is handed to, usually a CoTparser
+     * @param schemaDirectory the directory of the CoT schemas, see
+     * DEFAULT_SCHEMA_DIRECTORY
+     * @param sampleRate the fraction of the events that is validated, between
+     * 0 and 1
+     * @param workerThreads the number of threads that validate the samples
+     * @throws IOException if the schema directory cannot be read
+     * @throws SAXException if the schemas cannot be compiled
+     */
+    public CoTschemaValidator(CoTeventSink sink, String schemaDirectory, double sampleRate, int workerThreads)
+            throws IOException, SAXException {
+        this.sink = sink;
+        this.schema = getSchema(schemaDirectory);
+        setSampleRate(sampleRate);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        int threads = Math.max(1, workerThreads);
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "CoT schema validator-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }//CoTschemaValidator
+
+    /**
+     * Get the compiled schema of all the schemas in a directory. A directory
+     * is compiled once, later calls return the cached Schema, which is
+     * thread-safe.
+     *
+     * @param schemaDirectory the directory of the CoT schemas
+     * @return the compiled schema
+     * @throws IOException if the schema directory cannot be read
+     * @throws SAXException if the schemas cannot be compiled
+     */
+    public static Schema getSchema(String schemaDirectory) throws IOException, SAXException {
+        File directory = new File(schemaDirectory).getCanonicalFile();
+        Schema schema = SCHEMAS.get(directory.getPath());
+        if (schema == null) {
+            schema = compileSchema(directory);
+            Schema compiled = SCHEMAS.putIfAbsent(directory.getPath(), schema);
+            if (compiled != null) {
+                schema = compiled;
+            }
+        }
+        return schema;
+    }//getSchema
+
+    /**
+     * Compile the schemas of a directory. The schemas have no target
+     * namespace, so they are included into one schema instead of being
+     * loaded side by side. Identical copies of a schema, like the base event
+     * schema that is shipped under two names, are included once.
+     */
+    private static Schema compileSchema(File directory) throws IOException, SAXException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".xsd");
+            }
+        });
+        if (files == null || files.length == 0) {
+            throw new IOException("No CoT schemas in " + directory);
+        }
+        Arrays.sort(files);
+        Set<ByteBuffer> contents = new HashSet<>();
+        StringBuilder schemas = new StringBuilder("<xs:schema xmlns:xs=\"" + XMLConstants.W3C_XML_SCHEMA_NS_URI + "\">");
+        for (File file : files) {
+            if (contents.add(ByteBuffer.wrap(Files.readAllBytes(file.toPath())))) {
+                schemas.append("<xs:include schemaLocation=\"").append(file.toURI()).append("\"/>");
+            }
+        }
+        schemas.append("</xs:schema>");
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        try {
+            factory.setProperty(ACCESS_EXTERNAL_DTD, "");
+            factory.setProperty(ACCESS_EXTERNAL_SCHEMA, "file");
+        } catch (SAXException ex) {
+            // a schema factory without the JAXP 1.5 properties
+        }
+        return factory.newSchema(new StreamSource(new StringReader(schemas.toString()), directory.toURI().toString()));
+    }//compileSchema
+
+    /**
+     * Set the fraction of the events that is validated.
+     *
+     * @param sampleRate the fraction between 0 (none) and 1 (every event)
+     */
+    public final void setSampleRate(double sampleRate) {
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+    }//setSampleRate
+
+    /**
+     * Stop the worker threads. Samples already queued are still validated,
+     * later events are only handed on.
+     */
+    public void stop() {
+        workers.shutdown();
+    }//stop
+
+    @Override
+    public void onCoTevent(ByteBuffer event, SocketAddress source) {
+        double rate = sampleRate;
+        if (rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate)
+                && !CoTtakProtocol.isTakMessage(event)) {
+            final byte[] sample = new byte[event.remaining()];
+            event.duplicate().get(sample);
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        validateSample(sample);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // the workers fall behind or were stopped
+                skippedCount.incrementAndGet();
+            }
+        }
+        sink.onCoTevent(event, source);
+    }//onCoTevent
+
+    /**
+     * Validate an event on the calling thread.
+     *
+     * @param event the bytes of the CoT XML between position and limit, the
+     * position is not changed
+     * @return null if the event is valid, otherwise the description of the
+     * first violation
+     */
+    public String validate(ByteBuffer event) {
+        ByteArrayInputStream input;
+        if (event.hasArray()) {
+            input = new ByteArrayInputStream(event.array(), event.arrayOffset() + event.position(), event.remaining());
+        } else {
+            byte[] bytes = new byte[event.remaining()];
+            event.duplicate().get(bytes);
+            input = new ByteArrayInputStream(bytes);
+        }
+        try {
+            validators.get().validate(new StreamSource(input));
+            return null;
+        } catch (SAXException | IOException ex) {
+            return ex.getMessage();
+        }
+    }//validate
+
+    private void validateSample(byte[] sample) {
+        ByteBuffer event = ByteBuffer.wrap(sample);
+        String violation = validate(event);
+        validatedCount.incrementAndGet();
+        if (violation == null) {
+            return;
+        }
+        violationCount.incrementAndGet();
+        CoTeventScanner scanner = scanners.get();
+        String type = scanner.scan(event) ? scanner.getType() : null;
+        if (type == null) {
+            type = NO_TYPE;
+        }
+        AtomicLong count = violationsByType.get(type);
+        if (count == null && violationsByType.size() >= MAX_TYPES) {
+            type = OTHER_TYPES;
+            count = violationsByType.get(type);
+        }
+        if (count == null) {
+            AtomicLong added = violationsByType.putIfAbsent(type, count = new AtomicLong());
+            if (added != null) {
+                count = added;
+            }
+        }
+        count.incrementAndGet();
+        lastViolations.put(type, violation);
+    }//validateSample
+
+    /**
+     *
+     * @return the number of sampled events that were validated
+     */
+    public long getValidatedCount() {
+        return validatedCount.get();
+    }//getValidatedCount
+
+    /**
+     *
+     * @return the number of sampled events that violate the schemas
+     */
+    public long getViolationCount() {
+        return violationCount.get();
+    }//getViolationCount
+
+    /**
+     *
+     * @return the number of samples skipped because the workers fell behind
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }//getSkippedCount
+
+    /**
+     *
+     * @return the number of schema violations per CoT type, "(none)" for
+     * events without a type and "(other)" for the types beyond the first 4096
+     */
+    public Map<String, Long> getViolationsByType() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : violationsByType.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }//getViolationsByType
+
+    /**
+     * @param type a CoT type
+     * @return the description of the latest violation of an event of the
+     * type, or null if there was none
+     */
+    public String getLastViolation(String type) {
+        return lastViolations.get(type);
+    }//getLastViolation
+}// class CoTschemaValidator
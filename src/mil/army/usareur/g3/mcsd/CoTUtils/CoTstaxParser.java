@@ -0,0 +1,383 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.JAXBIntrospector;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import mil.army.usareur.g3.mcsd.CotBindings.Contact;
+import mil.army.usareur.g3.mcsd.CotBindings.FlowTags;
+import mil.army.usareur.g3.mcsd.CotBindings.Image;
+import mil.army.usareur.g3.mcsd.CotBindings.Link;
+import mil.army.usareur.g3.mcsd.CotBindings.ObjectFactory;
+import mil.army.usareur.g3.mcsd.CotBindings.Remarks;
+import mil.army.usareur.g3.mcsd.CotBindings.Request;
+import mil.army.usareur.g3.mcsd.CotBindings.Sensor;
+import mil.army.usareur.g3.mcsd.CotBindings.Shape;
+import mil.army.usareur.g3.mcsd.CotBindings.Spatial;
+import mil.army.usareur.g3.mcsd.CotBindings.Track;
+import mil.army.usareur.g3.mcsd.CotBindings.Uid;
+
+/**
+ * A streaming CoT parser that reads an event in a single pass. The event and
+ * point attributes are read from the StAX stream and every detail sub element
+ * that has a CotBindings class is unmarshalled by JAXB straight from the same
+ * stream, other detail sub elements are skipped. Unlike CotEvent.parse() no
+ * DOM is built and no detail is serialized and parsed a second time.
+ *
+ * The parser may be shared between threads.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTstaxParser {
+
+    private static final Class<?>[] DETAIL_CLASSES = {Contact.class, FlowTags.class, Image.class, Link.class,
+        Remarks.class, Request.class, Sensor.class, Shape.class, Spatial.class, Track.class, Uid.class};
+    // The CotBindings class of each detail sub element name
+    static final Map<String, Class<?>> DETAILS = new HashMap<>();
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    // The events keep the shared instances of the uid, type and how
+    private static final CoTstringPool STRING_POOL = CoTstringPool.getDefault();
+    private static JAXBContext jaxbContext;
+
+    static {
+        for (Class<?> detailClass : DETAIL_CLASSES) {
+            DETAILS.put(detailClass.getAnnotation(XmlRootElement.class).name(), detailClass);
+        }
+        // CoT events carry no DTD, never resolve one
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    // Unmarshallers are not thread safe. The parser takes them from a pool,
+    // so a thread per connection does not create one per connection.
+    private static final CoTobjectPool<Unmarshaller> UNMARSHALLERS = new CoTobjectPool<Unmarshaller>(CoTobjectPool.DEFAULT_SIZE) {
+        @Override
+        protected Unmarshaller create() {
+            return newUnmarshaller();
+        }
+    };
+
+    private static final CoTobjectPool<Marshaller> MARSHALLERS = new CoTobjectPool<Marshaller>(CoTobjectPool.DEFAULT_SIZE) {
+        @Override
+        protected Marshaller create() {
+            try {
+                Marshaller marshaller = getJaxbContext().createMarshaller();
+                marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+                return marshaller;
+            } catch (JAXBException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+    // the unmarshallers handed to the handlers by getUnmarshaller()
+    private static final ThreadLocal<Unmarshaller> UNMARSHALLER = new ThreadLocal<Unmarshaller>() {
+        @Override
+        protected Unmarshaller initialValue() {
+            return newUnmarshaller();
+        }
+    };
+
+    /**
+     * The JAXB context of all the CotBindings classes, created once.
+     *
+     * @return the JAXB context of the CotBindings
+     * @throws JAXBException if the context cannot be created
+     */
+    static synchronized JAXBContext getJaxbContext() throws JAXBException {
+        if (jaxbContext == null) {
+            jaxbContext = JAXBContext.newInstance(ObjectFactory.class);
+        }
+        return jaxbContext;
+    }//getJaxbContext
+
+    private static Unmarshaller newUnmarshaller() {
+        try {
+            return getJaxbContext().createUnmarshaller();
+        } catch (JAXBException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }//newUnmarshaller
+
+    /**
+     * The unmarshaller of the calling thread, created from the shared JAXB
+     * context. The parser itself uses pooled unmarshallers.
+     *
+     * @return an unmarshaller that only the calling thread may use
+     */
+    static Unmarshaller getUnmarshaller() {
+        return UNMARSHALLER.get();
+    }//getUnmarshaller
+
+    /**
+     * Unmarshal a single detail sub element, e.g. a track element.
+     *
+     * @param xml the bytes of the sub element
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     * @return the CotBindings object of the sub element
+     * @throws XMLStreamException if the XML is not well formed
+     * @throws JAXBException if the sub element cannot be unmarshalled
+     */
+    static Object unmarshalDetail(byte[] xml, int offset, int length) throws XMLStreamException, JAXBException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml, offset, length));
+        Unmarshaller unmarshaller = UNMARSHALLERS.acquire();
+        try {
+            reader.nextTag();
+            return JAXBIntrospector.getValue(unmarshaller.unmarshal(reader));
+        } finally {
+            UNMARSHALLERS.release(unmarshaller);
+            reader.close();
+        }
+    }//unmarshalDetail
+
+    /**
+     * Marshal detail sub elements to XML without an XML declaration, e.g. for
+     * the xmlDetail of a TAK protobuf message.
+     *
+     * @param details CotBindings objects
+     * @return the XML of the sub elements in the order of the list
+     * @throws JAXBException if a sub element cannot be marshalled
+     */
+    static String marshalDetails(List<Object> details) throws JAXBException {
+        StringWriter xml = new StringWriter();
+        Marshaller marshaller = MARSHALLERS.acquire();
+        try {
+            for (Object detail : details) {
+                marshaller.marshal(detail, xml);
+            }
+        } finally {
+            MARSHALLERS.release(marshaller);
+        }
+        return xml.toString();
+    }//marshalDetails
+
+    /**
+     * Unmarshal the detail sub elements of an XML fragment, e.g. the
+     * xmlDetail of a TAK protobuf message. Sub elements without a CotBindings
+     * class are skipped.
+     *
+     * @param xml the sub elements without the enclosing detail element
+     * @param details the list the CotBindings objects are added to
+     * @throws XMLStreamException if the XML is not well formed
+     * @throws JAXBException if a sub element cannot be unmarshalled
+     */
+    void readDetails(String xml, List<Object> details) throws XMLStreamException, JAXBException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(
+                new StringReader("<detail>" + xml + "</detail>"));
+        try {
+            reader.nextTag();
+            readDetail(reader, details);
+        } finally {
+            reader.close();
+        }
+    }//readDetails
+
+    /**
+     * Parse the bytes of a CoT event. The position of the buffer is not
+     * changed.
+     *
+     * @param xmlEvent the bytes of the CoT XML between position and limit
+     * @return the parsed event
+     * @throws XMLStreamException if the XML is not well formed
+     * @throws JAXBException if a detail sub element cannot be unmarshalled
+     */
+    public CoTparsedEvent parse(ByteBuffer xmlEvent) throws XMLStreamException, JAXBException {
+        InputStream input;
+        if (xmlEvent.hasArray()) {
+            input = new ByteArrayInputStream(xmlEvent.array(), xmlEvent.arrayOffset() + xmlEvent.position(),
+                    xmlEvent.remaining());
+        } else {
+            byte[] bytes = new byte[xmlEvent.remaining()];
+            xmlEvent.duplicate().get(bytes);
+            input = new ByteArrayInputStream(bytes);
+        }
+        return parse(XML_INPUT_FACTORY.createXMLStreamReader(input));
+    }//parse(ByteBuffer xmlEvent)
+
+    /**
+     * Parse a CoT event.
+     *
+     * @param xmlEvent String of CoT XML
+     * @return the parsed event
+     * @throws XMLStreamException if the XML is not well formed
+     * @throws JAXBException if a detail sub element cannot be unmarshalled
+     */
+    public CoTparsedEvent parse(String xmlEvent) throws XMLStreamException, JAXBException {
+        return parse(XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(xmlEvent)));
+    }//parse(String xmlEvent)
+
+    private CoTparsedEvent parse(XMLStreamReader reader) throws XMLStreamException, JAXBException {
+        CoTparsedEvent event = new CoTparsedEvent();
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "event":
+                        readEvent(reader, event);
+                        break;
+                    case "point":
+                        readPoint(reader, event);
+                        break;
+                    case "detail":
+                        readDetail(reader, event.details);
+                        break;
+                    default:
+                        skip(reader);
+                }
+            }//while
+        } finally {
+            reader.close();
+        }
+        return event;
+    }//parse(XMLStreamReader reader)
+
+    private static void readEvent(XMLStreamReader reader, CoTparsedEvent event) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String value = reader.getAttributeValue(i);
+            switch (reader.getAttributeLocalName(i)) {
+                case "version":
+                    event.version = value;
+                    break;
+                case "uid":
+                    event.uid = STRING_POOL.get(value);
+                    break;
+                case "type":
+                    event.type = STRING_POOL.get(value);
+                    break;
+                case "how":
+                    event.how = STRING_POOL.get(value);
+                    break;
+                case "time":
+                    event.time = value;
+                    break;
+                case "start":
+                    event.start = value;
+                    break;
+                case "stale":
+                    event.stale = value;
+                    break;
+                case "access":
+                    event.access = value;
+                    break;
+                case "opex":
+                    event.opex = value;
+                    break;
+                case "qos":
+                    event.qos = value;
+                    break;
+                default:
+                    // not part of the event schema
+            }
+        }
+    }//readEvent
+
+    private static void readPoint(XMLStreamReader reader, CoTparsedEvent event) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            // only the point attributes are numbers, extensions are ignored
+            switch (reader.getAttributeLocalName(i)) {
+                case "lat":
+                    event.lat = Double.parseDouble(reader.getAttributeValue(i));
+                    break;
+                case "lon":
+                    event.lon = Double.parseDouble(reader.getAttributeValue(i));
+                    break;
+                case "hae":
+                    event.hae = Double.parseDouble(reader.getAttributeValue(i));
+                    break;
+                case "ce":
+                    event.ce = Double.parseDouble(reader.getAttributeValue(i));
+                    break;
+                case "le":
+                    event.le = Double.parseDouble(reader.getAttributeValue(i));
+                    break;
+                default:
+                    // not part of the point schema
+            }
+        }
+    }//readPoint
+
+    /**
+     * Unmarshal the known detail sub elements and skip the others. Returns at
+     * the end of the detail element.
+     */
+    private void readDetail(XMLStreamReader reader, List<Object> details) throws XMLStreamException, JAXBException {
+        Unmarshaller unmarshaller = null;
+        try {
+            int next = reader.next();
+            while (next != XMLStreamConstants.END_ELEMENT) {
+                if (next == XMLStreamConstants.START_ELEMENT) {
+                    if (DETAILS.containsKey(reader.getLocalName())) {
+                        if (unmarshaller == null) {
+                            unmarshaller = UNMARSHALLERS.acquire();
+                        }
+                        // JAXB leaves the reader on the event after the sub element
+                        details.add(JAXBIntrospector.getValue(unmarshaller.unmarshal(reader)));
+                        next = reader.getEventType();
+                        continue;
+                    }
+                    skip(reader);
+                }
+                next = reader.next();
+            }//while
+        } finally {
+            if (unmarshaller != null) {
+                UNMARSHALLERS.release(unmarshaller);
+            }
+        }
+    }//readDetail
+
+    /**
+     * Skip the element the reader is on, including all its children.
+     */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int next = reader.next();
+            if (next == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (next == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }//skip
+}// class CoTstaxParser
@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Returns one shared String instance per distinct uid, type or how value.
+ * At steady state a few thousand uids and a few hundred types and hows repeat
+ * in millions of events; with the pool the parsers create a String only for
+ * a value they have not seen recently, and the track stores of the handlers
+ * retain one instance per value instead of one per event.
+ *
+ * Values are looked up straight from the received bytes, without an
+ * intermediate String. The pool is bounded: it has a fixed number of 2-way
+ * buckets, and a new value replaces the older entry of its bucket. Lookups
+ * are lock-free, the entries are immutable, so a racing lookup at worst
+ * creates one more String. Values longer than MAX_LENGTH are not pooled.
+ *
+ * The parsers share the default pool, see getDefault().
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTstringPool {
+
+    /**
+     * The default number of entries, enough for several thousand uids.
+     */
+    public static final int DEFAULT_CAPACITY = 16384;
+    /**
+     * The length in bytes of the longest pooled value.
+     */
+    public static final int MAX_LENGTH = 128;
+    private static final CoTstringPool DEFAULT = new CoTstringPool(DEFAULT_CAPACITY);
+
+    private static class Entry {
+
+        final int hash;
+        final byte[] bytes;
+        final String value;
+
+        Entry(int hash, byte[] bytes, String value) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.value = value;
+        }
+    }// class Entry
+
+    // plain array, the final fields of the entries make racy reads safe
+    private final Entry[] entries;
+    private final int shift;
+    private final AtomicLong createdCount = new AtomicLong();
+
+    /**
+     * @param capacity the number of entries, rounded up to a power of two
+     */
+    public CoTstringPool(int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        entries = new Entry[size];
+        shift = 32 - Integer.numberOfTrailingZeros(size);
+    }//CoTstringPool
+
+    /**
+     *
+     * @return the pool shared by the parsers and the CoTeventScanner
+     */
+    public static CoTstringPool getDefault() {
+        return DEFAULT;
+    }//getDefault
+
+    /**
+     * Get the String of UTF-8 bytes. The hash of the bytes is the one of
+     * CoTeventScanner.getHash().
+     *
+     * @param buffer the buffer holding the bytes, its position is not changed
+     * @param start the index of the first byte
+     * @param end the index after the last byte
+     * @return the shared String of the bytes
+     */
+    public String get(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (length > MAX_LENGTH) {
+            return decode(buffer, start, end);
+        }
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        int bucket = bucket(hash);
+        Entry entry = entries[bucket];
+        if (matches(entry, hash, buffer, start, length)) {
+            return entry.value;
+        }
+        Entry other = entries[bucket + 1];
+        if (matches(other, hash, buffer, start, length)) {
+            return other.value;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        put(bucket, new Entry(hash, bytes, value));
+        return value;
+    }//get(ByteBuffer buffer, int start, int end)
+
+    /**
+     * Get the shared instance of a String, e.g. of an attribute value read by
+     * an XML parser. Only ASCII values are pooled.
+     *
+     * @param value a String, or null
+     * @return the shared String equal to the value, or the value itself
+     */
+    public String get(String value) {
+        if (value == null || value.length() > MAX_LENGTH) {
+            return value;
+        }
+        int hash = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 128) {
+                return value;
+            }
+            hash = 31 * hash + c;
+        }
+        int bucket = bucket(hash);
+        Entry entry = entries[bucket];
+        if (entry != null && entry.hash == hash && entry.value.equals(value)) {
+            return entry.value;
+        }
+        Entry other = entries[bucket + 1];
+        if (other != null && other.hash == hash && other.value.equals(value)) {
+            return other.value;
+        }
+        put(bucket, new Entry(hash, value.getBytes(StandardCharsets.US_ASCII), value));
+        return value;
+    }//get(String value)
+
+    /**
+     * Fibonacci hashing spreads the similar hashes of uids that only differ
+     * in their last digits over the buckets.
+     *
+     * @return the index of the first entry of the bucket of the hash
+     */
+    private int bucket(int hash) {
+        return (hash * 0x9E3779B9) >>> shift & -2;
+    }//bucket
+
+    /**
+     * Store a new entry first in its bucket, the previous first entry
+     * replaces the second.
+     */
+    private void put(int bucket, Entry entry) {
+        entries[bucket + 1] = entries[bucket];
+        entries[bucket] = entry;
+        createdCount.incrementAndGet();
+    }//put
+
+    private static boolean matches(Entry entry, int hash, ByteBuffer buffer, int start, int length) {
+        if (entry == null || entry.hash != hash || entry.bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (entry.bytes[i] != buffer.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }//matches
+
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }//decode
+
+    /**
+     *
+     * @return the number of entries
+     */
+    public int getCapacity() {
+        return entries.length;
+    }//getCapacity
+
+    /**
+     *
+     * @return the number of Strings added to the pool, it grows with the
+     * distinct values and with values evicted and seen again
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }//getCreatedCount
+}// class CoTstringPool
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The headers of TAK protocol version 1, which carries a protobuf TakMessage
+ * instead of CoT XML. Mesh networks (UDP) send the message after the header
+ * 0xbf 0x01 0xbf. Streaming connections (TCP) send the magic byte 0xbf and
+ * the length of the message as a varint before every message.
+ *
+ * The listeners hand TAK messages to the event sinks with their header, so
+ * XML and TAK messages take the same path. The magic byte never starts CoT
+ * XML, which tells the two apart.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTtakProtocol {
+
+    /**
+     * The magic byte that starts every TAK protocol message.
+     */
+    public static final byte MAGIC = (byte) 0xBF;
+    /**
+     * The TAK protocol version of the protobuf TakMessage.
+     */
+    public static final int VERSION = 1;
+
+    private CoTtakProtocol() {
+        // static helpers only
+    }
+
+    /**
+     * @param event the bytes of an event between position and limit
+     * @return true if the event starts with the TAK protocol magic byte
+     */
+    public static boolean isTakMessage(ByteBuffer event) {
+        return event.hasRemaining() && event.get(event.position()) == MAGIC;
+    }//isTakMessage
+
+    /**
+     * Find the TakMessage after a mesh or stream header.
+     *
+     * @param event the bytes of a TAK protocol message between position and
+     * limit
+     * @return the absolute index of the first byte of the TakMessage, or -1 if
+     * the header is not a version 1 mesh header or a stream header whose
+     * length matches the message
+     */
+    public static int getPayloadOffset(ByteBuffer event) {
+        int position = event.position();
+        int limit = event.limit();
+        if (limit - position < 2 || event.get(position) != MAGIC) {
+            return -1;
+        }
+        if (limit - position >= 3 && event.get(position + 1) == VERSION && event.get(position + 2) == MAGIC) {
+            // mesh header, the version between two magic bytes; a TakMessage
+            // never starts with the magic byte, so this is no stream header
+            return position + 3;
+        }
+        // stream header, the length of the message follows the magic byte
+        int i = position + 1;
+        long length = 0;
+        for (int shift = 0; i < limit && shift < 35; shift += 7) {
+            byte b = event.get(i++);
+            length |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return length == limit - i ? i : -1;
+            }
+        }
+        return -1;
+    }//getPayloadOffset
+
+    /**
+     * Get the TakMessage of a TAK protocol message without its header.
+     *
+     * @param event the bytes of a TAK protocol message between position and
+     * limit, the position is not changed
+     * @return a buffer that shares the bytes of the TakMessage
+     * @throws IllegalArgumentException if the header is not supported
+     */
+    public static ByteBuffer getPayload(ByteBuffer event) {
+        int offset = getPayloadOffset(event);
+        if (offset < 0) {
+            throw new IllegalArgumentException("Unsupported TAK protocol header");
+        }
+        ByteBuffer payload = event.duplicate();
+        payload.position(offset);
+        return payload;
+    }//getPayload
+
+    /**
+     * Add the mesh header to a TakMessage, e.g. to send it over UDP.
+     *
+     * @param takMessage the protobuf TakMessage
+     * @return the message with the mesh header
+     */
+    public static byte[] toMeshMessage(byte[] takMessage) {
+        byte[] message = new byte[takMessage.length + 3];
+        message[0] = MAGIC;
+        message[1] = VERSION;
+        message[2] = MAGIC;
+        System.arraycopy(takMessage, 0, message, 3, takMessage.length);
+        return message;
+    }//toMeshMessage
+
+    /**
+     * Add the stream header to a TakMessage, e.g. to send it over TCP.
+     *
+     * @param takMessage the protobuf TakMessage
+     * @return the message with the stream header
+     */
+    public static byte[] toStreamMessage(byte[] takMessage) {
+        int header = 1 + CoTbinaryWriter.varintSize(takMessage.length);
+        byte[] message = new byte[header + takMessage.length];
+        message[0] = MAGIC;
+        int i = 1;
+        long length = takMessage.length;
+        while ((length & ~0x7FL) != 0) {
+            message[i++] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        message[i] = (byte) length;
+        System.arraycopy(takMessage, 0, message, header, takMessage.length);
+        return message;
+    }//toStreamMessage
+}// class CoTtakProtocol
@@ -23,13 +23,33 @@
  */
 package mil.army.usareur.g3.mcsd.CoTUtils;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.SocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
 
 /**
  *
@@ -37,22 +57,70 @@ import java.util.logging.Logger;
  */
 public class CoTtcpListener extends Thread {
 
+    /**
+     * The way a TCP listener services its client connections.
+     */
+    public enum Mode {
+        /**
+         * Accept one connection, read it until the sender closes it and only
+         * then accept the next connection. This is the default mode.
+         */
+        BLOCKING,
+        /**
+         * Service all connections concurrently from one or a few non-blocking
+         * I/O threads, see setIoThreads().
+         */
+        SELECTOR,
+        /**
+         * Read every connection on its own virtual thread so the CoT event
+         * handler may block without holding up other connections. Virtual
+         * threads require Java 21, on older runtimes a pool of platform
+         * threads is used instead. The parser takes its unmarshallers and
+         * decoders from bounded pools, so a connection only costs its read
+         * buffer and a small event scanner.
+         */
+        VIRTUAL_THREAD,
+        /**
+         * Service TLS connections, e.g. of TAK clients on port 8089, from
+         * non-blocking I/O threads like SELECTOR mode. Requires an SSLContext,
+         * see setSslContext().
+         */
+        TLS
+    }//enum Mode
+
+    // Pending connections the operating system queues while the listener is busy
+    private static final int ACCEPT_BACKLOG = 1024;
+    // Pause after a failed accept, e.g. when the process ran out of file handles
+    static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private ServerSocketChannel cotChannel;
     private ServerSocket cotSocket;
     private int cotPort = 9998;
+    private Mode mode = Mode.BLOCKING;
+    private int ioThreads = 1;
+    private int maxEventSize = CoTeventFramer.DEFAULT_MAX_EVENT_SIZE;
+    private volatile CoTtcpSelector[] selectors;
+    private volatile ExecutorService connectionExecutor;
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final Set<CoTconnectionStats> connectionStats
+            = Collections.newSetFromMap(new ConcurrentHashMap<CoTconnectionStats, Boolean>());
+    private final AtomicLongArray formatCounts = new AtomicLongArray(CoTconnectionStats.Format.values().length);
     private boolean debug = false;
     private volatile boolean runFlag = true;
     private CoTparser cotParser;
     private boolean customParserSet = false;
+    private CoTeventSink eventSink;
+    private CoTdeadLetters deadLetters = new CoTdeadLetters();
+    private SSLContext sslContext;
+    private boolean needClientAuth = false;
+    private int sessionCacheSize = 0;
+    private int sessionTimeout = 86400;
 
     /**
      * Create a CoT TCP socket listener on the default port of 9998
      */
     public CoTtcpListener() {
-        try {
-            cotSocket = new ServerSocket(cotPort);
-        } catch (IOException ex) {
-            Logger.getLogger(CoTtcpListener.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        openSocket();
     }//CotTcpListener
 
     /**
@@ -67,6 +135,36 @@ public class CoTtcpListener extends Thread {
         customParserSet = true;
     }
 
+    /**
+     * Set the stage the received CoT events are handed to, e.g. a
+     * CoTringBuffer that decouples the listener thread from the CoT parser.
+     * By default the events are handed straight to the CoT parser.
+     *
+     * @param sink the stage that receives the CoT events
+     */
+    public void setEventSink(CoTeventSink sink) {
+        this.eventSink = sink;
+    }//setEventSink
+
+    /**
+     * Set the dead letters that receive the messages the event handler
+     * failed on. By default the rejects are only counted and logged.
+     *
+     * @param deadLetters the dead letters of the listener
+     */
+    public void setDeadLetters(CoTdeadLetters deadLetters) {
+        this.deadLetters = deadLetters;
+    }//setDeadLetters
+
+    /**
+     *
+     * @return the dead letters of the listener, e.g. to read the rejects per
+     * second
+     */
+    public CoTdeadLetters getDeadLetters() {
+        return deadLetters;
+    }//getDeadLetters
+
     /**
      * Create a CoT TCP socket listener on the desired port.
      *
@@ -74,11 +172,7 @@ public class CoTtcpListener extends Thread {
      */
     public CoTtcpListener(int port) {
         cotPort = port;
-        try {
-            cotSocket = new ServerSocket(cotPort);
-        } catch (IOException ex) {
-            Logger.getLogger(CoTtcpListener.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        openSocket();
     }//CotTcpListener(int port)
 
     /**
@@ -92,12 +186,183 @@ public class CoTtcpListener extends Thread {
         cotPort = port;
         this.debug = debug;
         debugToConsole("CoT Listener port: " + cotPort);
+        openSocket();
+    }//CotTcpListener(int port, boolean debug)
+
+    /**
+     * Create a CoT TCP listener on the desired port that services its client
+     * connections in the given mode.
+     *
+     * @param port an integer port number
+     * @param mode the connection handling mode
+     */
+    public CoTtcpListener(int port, Mode mode) {
+        cotPort = port;
+        this.mode = mode;
+        openSocket();
+    }//CotTcpListener(int port, Mode mode)
+
+    /**
+     * Create a CoT TCP listener on the desired port that services its client
+     * connections in the given mode and set the debug statement option. Debug
+     * statements are not printed by default.
+     *
+     * @param port an integer port number
+     * @param mode the connection handling mode
+     * @param debug a boolean indicating whether to print out debug statements
+     */
+    public CoTtcpListener(int port, Mode mode, boolean debug) {
+        cotPort = port;
+        this.mode = mode;
+        this.debug = debug;
+        debugToConsole("CoT Listener port: " + cotPort + " mode: " + mode);
+        openSocket();
+    }//CotTcpListener(int port, Mode mode, boolean debug)
+
+    private void openSocket() {
         try {
-            cotSocket = new ServerSocket(cotPort);
+            cotChannel = ServerSocketChannel.open();
+            cotSocket = cotChannel.socket();
+            cotSocket.bind(new InetSocketAddress(cotPort), ACCEPT_BACKLOG);
         } catch (IOException ex) {
             Logger.getLogger(CoTtcpListener.class.getName()).log(Level.SEVERE, null, ex);
         }
-    }//CotTcpListener(int port)
+    }//openSocket
+
+    /**
+     * Set the number of non-blocking I/O threads used in SELECTOR mode. One
+     * thread is able to service thousands of connections, more threads only
+     * help when the CoT event handler is the bottleneck. The default is 1.
+     * Must be set before the listener is started.
+     *
+     * @param ioThreads an integer number of I/O threads, at least 1
+     */
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = Math.max(1, ioThreads);
+    }//setIoThreads
+
+    /**
+     * Set the maximum size of a single CoT event. Clients keep their
+     * connection open and stream events, an event that grows beyond this size
+     * is discarded. The default is 1 MB.
+     *
+     * @param maxEventSize an integer number of bytes
+     */
+    public void setMaxEventSize(int maxEventSize) {
+        this.maxEventSize = maxEventSize;
+    }//setMaxEventSize
+
+    /**
+     * Set the TLS context used in TLS mode. It holds the certificate of the
+     * listener and the certificates of the trusted clients, see
+     * newSslContext(). Must be set before the listener is started.
+     *
+     * @param sslContext an initialized SSLContext
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }//setSslContext
+
+    /**
+     * Set whether clients must authenticate with a certificate signed by a
+     * trusted authority (mutual TLS), as TAK clients do. Not required by
+     * default.
+     *
+     * @param needClientAuth true to reject clients without a trusted
+     * certificate
+     */
+    public void setNeedClientAuth(boolean needClientAuth) {
+        this.needClientAuth = needClientAuth;
+    }//setNeedClientAuth
+
+    /**
+     * Set the cache of TLS sessions that reconnecting clients resume without
+     * a full handshake. By default the cache size is not limited and sessions
+     * are kept for 24 hours.
+     *
+     * @param size the number of cached sessions, 0 for no limit
+     * @param timeoutSeconds the time a session can be resumed
+     */
+    public void setSessionCache(int size, int timeoutSeconds) {
+        this.sessionCacheSize = size;
+        this.sessionTimeout = timeoutSeconds;
+    }//setSessionCache
+
+    /**
+     * Create a TLS context from key store files, e.g. the server certificate
+     * and the certificate authority of the TAK clients.
+     *
+     * @param keyStore the file name of the key store with the certificate and
+     * private key of the listener
+     * @param keyPassword the password of the key store and its key
+     * @param trustStore the file name of the key store with the trusted client
+     * certificates, or null to use the default trust store
+     * @param trustPassword the password of the trust store
+     * @return an initialized SSLContext
+     * @throws GeneralSecurityException if a key store cannot be used
+     * @throws IOException if a key store file cannot be read
+     */
+    public static SSLContext newSslContext(String keyStore, char[] keyPassword, String trustStore, char[] trustPassword)
+            throws GeneralSecurityException, IOException {
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(loadKeyStore(keyStore, keyPassword), keyPassword);
+        TrustManagerFactory trustManagers = null;
+        if (trustStore != null) {
+            trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(loadKeyStore(trustStore, trustPassword));
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers == null ? null : trustManagers.getTrustManagers(), null);
+        return context;
+    }//newSslContext
+
+    private static KeyStore loadKeyStore(String file, char[] password) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream input = new FileInputStream(file)) {
+            keyStore.load(input, password);
+        }
+        return keyStore;
+    }//loadKeyStore
+
+    /**
+     * Create the server side SSLEngine of a client connection in TLS mode.
+     *
+     * @return a new SSLEngine
+     */
+    SSLEngine newSslEngine() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(needClientAuth);
+        return engine;
+    }//newSslEngine
+
+    /**
+     *
+     * @return the connection handling mode of the listener
+     */
+    public Mode getMode() {
+        return this.mode;
+    }//getMode
+
+    /**
+     * The statistics of the open client connections, e.g. to see which
+     * clients speak which format.
+     *
+     * @return a snapshot of the open connections
+     */
+    public Collection<CoTconnectionStats> getConnectionStats() {
+        return new ArrayList<>(connectionStats);
+    }//getConnectionStats
+
+    /**
+     *
+     * @param format a connection format
+     * @return the number of connections detected with the format since the
+     * listener was started
+     */
+    public long getConnectionCount(CoTconnectionStats.Format format) {
+        return formatCounts.get(format.ordinal());
+    }//getConnectionCount
 
     private void debugToConsole(String msg) {
         if (this.debug) {
@@ -112,11 +377,26 @@ public class CoTtcpListener extends Thread {
     public void stopThread() {
         debugToConsole("CoT Listener received stop request, port:" + cotPort);
         this.runFlag = false;
+        if (selectors != null) {
+            for (CoTtcpSelector selector : selectors) {
+                selector.stop();
+            }
+        }
         try {
             cotSocket.close();
         } catch (IOException ex) {
             Logger.getLogger(CoTtcpListener.class.getName()).log(Level.SEVERE, null, ex);
         }
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdown();
+        }
+        for (Socket connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException ex) {
+                // the connection thread finishes once its socket is closed
+            }
+        }
     }//stopThread
 
     /**
@@ -127,37 +407,272 @@ public class CoTtcpListener extends Thread {
         return this.cotPort;
     }//getPort
 
+    /**
+     * Create the framer that splits the byte stream of one client connection
+     * into CoT events and dispatches them.
+     *
+     * @param source the address of the client
+     * @return a new framer for a client connection
+     */
+    CoTeventFramer newFramer(final SocketAddress source) {
+        return new CoTeventFramer(new CoTeventFramer.Handler() {
+            @Override
+            public void onEvent(byte[] buffer, int offset, int length) {
+                dispatch(ByteBuffer.wrap(buffer, offset, length), source);
+            }
+        }, maxEventSize);
+    }//newFramer
+
+    /**
+     * Open the input side of a client connection, it detects the format of
+     * the connection from its first bytes. Must be closed with
+     * closeConnection().
+     *
+     * @param source the address of the client
+     * @return a new decoder for a client connection
+     */
+    CoTconnectionDecoder openConnection(SocketAddress source) {
+        CoTconnectionStats stats = new CoTconnectionStats(source);
+        connectionStats.add(stats);
+        return new CoTconnectionDecoder(newFramer(source), stats, formatCounts);
+    }//openConnection
+
+    /**
+     * Release a client connection opened with openConnection().
+     *
+     * @param connection the decoder of the connection
+     */
+    void closeConnection(CoTconnectionDecoder connection) {
+        connection.close();
+        connectionStats.remove(connection.getStats());
+    }//closeConnection
+
+    /**
+     * Hand a complete CoT message to the event sink, by default the byte
+     * oriented CoT event handler of the parser. A message the event sink
+     * fails on is handed to the dead letters, the connection stays open.
+     *
+     * @param cotMessage the bytes of the CoT XML
+     * @param source the address of the client
+     */
+    void dispatch(ByteBuffer cotMessage, SocketAddress source) {
+        int position = cotMessage.position();
+        int limit = cotMessage.limit();
+        if (this.debug) {
+            dumpCoTevent(cotMessage);
+        }
+        try {
+            // The CoT message is handled here
+            eventSink.onCoTevent(cotMessage, source);
+        } catch (RuntimeException ex) {
+            cotMessage.limit(limit).position(position);
+            deadLetters.reject(cotMessage, source, ex);
+        }
+    }//dispatch
+
+    /**
+     * Print an event in debug mode. An event the dump cannot handle is only
+     * logged, it still goes to the event sink.
+     */
+    private void dumpCoTevent(ByteBuffer cotMessage) {
+        int position = cotMessage.position();
+        int limit = cotMessage.limit();
+        try {
+            String cotXml = cotParser.decodeCoTevent(cotMessage);
+            debugToConsole("TCP ========== Begin message:\n" + cotXml + "\nTCP ========== End message");
+            cotParser.dumpCoTevent(cotXml);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(CoTtcpListener.class.getName()).log(Level.WARNING, "CoT event cannot be dumped, port:" + cotPort, ex);
+        } finally {
+            cotMessage.limit(limit).position(position);
+        }
+    }//dumpCoTevent
+
     @Override
     public void run() {
         debugToConsole("CoT Listener thread started, port:" + cotPort);
-        Socket accept = null;
         if (!this.customParserSet) {
             cotParser = new CoTparser();  // Create a default Cursor on Target parser
         }
-        String cotLine;
-        StringBuilder cotMessage = new StringBuilder();
+        if (eventSink == null) {
+            eventSink = cotParser;
+        }
+        if (mode == Mode.TLS) {
+            if (sslContext == null) {
+                Logger.getLogger(CoTtcpListener.class.getName()).log(Level.SEVERE,
+                        "TLS mode requires an SSLContext, port:" + cotPort);
+                return;
+            }
+            SSLSessionContext sessions = sslContext.getServerSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+            runSelectors();
+        } else if (mode == Mode.SELECTOR) {
+            runSelectors();
+        } else if (mode == Mode.VIRTUAL_THREAD) {
+            runVirtualThreads();
+        } else {
+            runBlocking();
+        }
+    }//run
+
+    /**
+     * Create an executor that starts a new virtual thread for every task.
+     * Virtual threads exist since Java 21 and are looked up at runtime so the
+     * listener still runs on older Java versions, where a cached pool of
+     * platform threads is used instead.
+     *
+     * @return an executor for the client connections
+     */
+    static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            Logger.getLogger(CoTtcpListener.class.getName()).log(Level.WARNING,
+                    "Virtual threads require Java 21, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }//newConnectionExecutor
+
+    private void runVirtualThreads() {
+        connectionExecutor = newConnectionExecutor();
         while (this.runFlag) {
+            final Socket accept = acceptConnection();
+            if (accept == null) {
+                continue;
+            }
             try {
-                accept = cotSocket.accept();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(accept.getInputStream()));
-
-                while ((cotLine = reader.readLine()) != null) {
-                    cotMessage.append(cotLine);
-                }
-                debugToConsole("TCP ========== Begin message:\n" + cotMessage.toString() + "\nTCP ========== End message");
-                if (this.debug) {
-                    cotParser.dumpCoTevent(cotMessage.toString());
+                connectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveConnection(accept);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // stopped after the connection was accepted
+                connections.remove(accept);
+                try {
+                    accept.close();
+                } catch (IOException ioe) {
+                    // nothing left to do with the connection
                 }
-                // The CoT message is handled here
-                cotParser.coTeventHandler(cotMessage.toString());
-                // Reset the StringBuilder to hold the next TCP CoT message
-                cotMessage = new StringBuilder();
-            } catch (Exception e) {
+            }
+        }//while
+        connectionExecutor.shutdown();
+        debugToConsole("CoT Listener thread stopped, port:" + cotPort);
+    }//runVirtualThreads
+
+    /**
+     * Accept the next client connection. The listener only stops when its
+     * socket is closed, any other accept failure is logged and retried.
+     *
+     * @return the accepted connection, or null if none was accepted
+     */
+    private Socket acceptConnection() {
+        try {
+            Socket accept = cotSocket.accept();
+            connections.add(accept);
+            if (!this.runFlag) {
+                // stopThread may already have closed the connections it found
+                connections.remove(accept);
+                accept.close();
+                return null;
+            }
+            return accept;
+        } catch (IOException ex) {
+            if (cotSocket.isClosed()) {
                 this.runFlag = false;
-                //throw new RuntimeException(e);
-                System.out.println(e.getMessage() + "\n" + e.toString());
-                System.out.println("CoT Listener thread stopped, port:" + cotPort);
+            } else if (this.runFlag) {
+                Logger.getLogger(CoTtcpListener.class.getName()).log(Level.SEVERE, null, ex);
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    this.runFlag = false;
+                }
+            }
+            return null;
+        }
+    }//acceptConnection
+
+    /**
+     * Read an accepted connection and close it. A failing connection is
+     * logged and closed, it never stops the listener.
+     *
+     * @param accept an accepted client connection
+     */
+    private void serveConnection(Socket accept) {
+        try {
+            readConnection(accept);
+        } catch (Exception ex) {
+            if (runFlag) {
+                Logger.getLogger(CoTtcpListener.class.getName()).log(Level.WARNING, "CoT TCP connection closed, port:" + cotPort, ex);
+            }
+        } finally {
+            connections.remove(accept);
+            try {
+                accept.close();
+            } catch (IOException ex) {
+                // nothing left to do with the connection
+            }
+        }
+    }//serveConnection
+
+    /**
+     * Read a client connection until the sender closes it and dispatch every
+     * CoT event as soon as it is complete.
+     *
+     * @param accept an accepted client connection
+     * @throws IOException if reading the connection fails
+     */
+    private void readConnection(Socket accept) throws IOException {
+        byte[] readBuffer = new byte[8192];
+        int count;
+        CoTconnectionDecoder connection = openConnection(accept.getRemoteSocketAddress());
+        try {
+            InputStream input = accept.getInputStream();
+            while ((count = input.read(readBuffer)) != -1) {
+                connection.feed(readBuffer, 0, count);
+            }
+            connection.flush();
+        } finally {
+            closeConnection(connection);
+        }
+    }//readConnection
+
+    private void runSelectors() {
+        try {
+            selectors = new CoTtcpSelector[ioThreads];
+            selectors[0] = new CoTtcpSelector(this, cotChannel);
+            for (int i = 1; i < ioThreads; i++) {
+                selectors[i] = new CoTtcpSelector(this, null);
+            }
+            selectors[0].setPeers(selectors);
+            for (int i = 1; i < ioThreads; i++) {
+                new Thread(selectors[i], "CoT TCP I/O " + cotPort + "-" + i).start();
+            }
+            if (!this.runFlag) {
+                // stopped while the selectors were created
+                stopThread();
+            }
+            // The listener thread is the first I/O thread and accepts connections
+            selectors[0].run();
+        } catch (IOException ex) {
+            if (this.runFlag) {
+                Logger.getLogger(CoTtcpListener.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            this.runFlag = false;
+        }
+        debugToConsole("CoT Listener thread stopped, port:" + cotPort);
+    }//runSelectors
+
+    private void runBlocking() {
+        while (this.runFlag) {
+            Socket accept = acceptConnection();
+            if (accept != null) {
+                serveConnection(accept);
             }
         }//while
-    }//run    
+        debugToConsole("CoT Listener thread stopped, port:" + cotPort);
+    }//runBlocking
 }// class CoTtcpListener
@@ -0,0 +1,352 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking I/O loop used by the CoTtcpListener in SELECTOR mode. Each
+ * loop owns a Selector and services any number of client connections from a
+ * single thread. Every connection has its own CoTconnectionDecoder that
+ * detects its format and dispatches events as soon as they are complete. The
+ * first loop of a listener also owns the server channel and hands accepted
+ * connections to itself and its peers in round-robin order. A failed accept
+ * is logged and never ends the loop; when the process runs out of file
+ * handles accepting pauses briefly. In TLS mode every connection also has an
+ * SSLEngine that decrypts the bytes before they reach the decoder.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+class CoTtcpSelector implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // how often TLS connections are checked for an expired handshake
+    private static final long HANDSHAKE_CHECK_MILLIS = 1000;
+
+    private final CoTtcpListener listener;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private long acceptResumeMillis = 0;
+    private long nextHandshakeCheck = 0;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private CoTtcpSelector[] peers = new CoTtcpSelector[]{this};
+    private int nextPeer = 0;
+    private volatile boolean runFlag = true;
+
+    /**
+     * Create a selector loop.
+     *
+     * @param listener the listener that owns this loop and dispatches events
+     * @param serverChannel the server channel to accept connections on, or
+     * null if this loop only services connections handed to it
+     * @throws IOException if the selector cannot be opened or the server
+     * channel cannot be registered
+     */
+    CoTtcpSelector(CoTtcpListener listener, ServerSocketChannel serverChannel) throws IOException {
+        this.listener = listener;
+        this.serverChannel = serverChannel;
+        this.selector = Selector.open();
+        if (serverChannel != null) {
+            serverChannel.configureBlocking(false);
+            acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+    }//CoTtcpSelector
+
+    /**
+     * Set the loops that accepted connections are distributed across. Only
+     * used by the loop that owns the server channel.
+     *
+     * @param peers all the selector loops of the listener, including this one
+     */
+    void setPeers(CoTtcpSelector[] peers) {
+        this.peers = peers;
+    }//setPeers
+
+    /**
+     * Hand an accepted connection to this loop. The connection is registered
+     * with the selector on the loop's own thread.
+     *
+     * @param channel an accepted client connection
+     */
+    void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+        if (!runFlag) {
+            // the loop may already have closed its pending connections
+            while ((channel = pending.poll()) != null) {
+                closeQuietly(channel);
+            }
+        }
+    }//register
+
+    /**
+     * Stop the loop and close all of its client connections.
+     */
+    void stop() {
+        runFlag = false;
+        selector.wakeup();
+    }//stop
+
+    @Override
+    public void run() {
+        try {
+            boolean tls = listener.getMode() == CoTtcpListener.Mode.TLS;
+            while (runFlag) {
+                if (acceptResumeMillis == 0 && !tls) {
+                    selector.select();
+                } else {
+                    long timeout = tls ? HANDSHAKE_CHECK_MILLIS : Long.MAX_VALUE;
+                    if (acceptResumeMillis != 0) {
+                        timeout = Math.min(timeout, acceptResumeMillis - System.currentTimeMillis());
+                    }
+                    selector.select(Math.max(1, timeout));
+                    if (acceptResumeMillis != 0) {
+                        resumeAccept();
+                    }
+                    if (tls) {
+                        closeExpiredHandshakes();
+                    }
+                }
+                registerPending();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        write(key);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }//while keys
+            }//while
+        } catch (ClosedSelectorException ex) {
+            // the listener was stopped
+        } catch (IOException ex) {
+            if (runFlag) {
+                Logger.getLogger(CoTtcpSelector.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        close();
+    }//run
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            CoTconnectionDecoder connection = null;
+            try {
+                channel.configureBlocking(false);
+                connection = listener.openConnection(channel.getRemoteAddress());
+                Object attachment = connection;
+                if (listener.getMode() == CoTtcpListener.Mode.TLS) {
+                    attachment = new CoTtlsConnection(listener.newSslEngine(), connection);
+                }
+                channel.register(selector, SelectionKey.OP_READ, attachment);
+            } catch (IOException ex) {
+                Logger.getLogger(CoTtcpSelector.class.getName()).log(Level.WARNING, null, ex);
+                closeQuietly(channel);
+                if (connection != null) {
+                    listener.closeConnection(connection);
+                }
+            }
+        }
+    }//registerPending
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while (true) {
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException ex) {
+                if (!runFlag || !serverChannel.isOpen()) {
+                    throw ex;
+                }
+                Logger.getLogger(CoTtcpSelector.class.getName()).log(Level.SEVERE, null, ex);
+                if (String.valueOf(ex.getMessage()).contains("Too many open files")) {
+                    // retrying at once would only fail again, stop accepting for a moment
+                    acceptKey.interestOps(0);
+                    acceptResumeMillis = System.currentTimeMillis() + CoTtcpListener.ACCEPT_RETRY_MILLIS;
+                }
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            CoTtcpSelector peer = peers[nextPeer];
+            nextPeer = (nextPeer + 1) % peers.length;
+            peer.register(channel);
+        }//while
+    }//accept
+
+    private void resumeAccept() {
+        if (System.currentTimeMillis() >= acceptResumeMillis) {
+            acceptResumeMillis = 0;
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }//resumeAccept
+
+    private void read(SelectionKey key) {
+        if (key.attachment() instanceof CoTtlsConnection) {
+            readTls(key);
+            return;
+        }
+        SocketChannel channel = (SocketChannel) key.channel();
+        CoTconnectionDecoder connection = (CoTconnectionDecoder) key.attachment();
+        try {
+            int count;
+            readBuffer.clear();
+            while ((count = channel.read(readBuffer)) > 0) {
+                readBuffer.flip();
+                connection.feed(readBuffer);
+                readBuffer.clear();
+            }
+            if (count < 0) {
+                close(key);
+                connection.flush();
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(CoTtcpSelector.class.getName()).log(Level.WARNING, "CoT TCP connection closed, port:" + listener.getPort(), ex);
+            close(key);
+        }
+    }//read
+
+    private void readTls(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        CoTtlsConnection connection = (CoTtlsConnection) key.attachment();
+        try {
+            if (connection.read(channel)) {
+                updateInterest(key, connection);
+            } else {
+                close(key);
+                connection.flush();
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(CoTtcpSelector.class.getName()).log(Level.WARNING, "CoT TLS connection closed, port:" + listener.getPort(), ex);
+            close(key);
+        }
+    }//readTls
+
+    private void write(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        CoTtlsConnection connection = (CoTtlsConnection) key.attachment();
+        try {
+            if (connection.write(channel)) {
+                updateInterest(key, connection);
+            } else {
+                close(key);
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(CoTtcpSelector.class.getName()).log(Level.WARNING, "CoT TLS connection closed, port:" + listener.getPort(), ex);
+            close(key);
+        }
+    }//write
+
+    /**
+     * Wait for the channel to become writable instead of readable while
+     * handshake records are waiting to be sent.
+     */
+    private static void updateInterest(SelectionKey key, CoTtlsConnection connection) {
+        key.interestOps(connection.hasPendingOutput() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }//updateInterest
+
+    private void closeExpiredHandshakes() {
+        long now = System.currentTimeMillis();
+        if (now < nextHandshakeCheck) {
+            return;
+        }
+        nextHandshakeCheck = now + HANDSHAKE_CHECK_MILLIS;
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof CoTtlsConnection
+                    && ((CoTtlsConnection) attachment).isHandshakeExpired(now)) {
+                Logger.getLogger(CoTtcpSelector.class.getName()).log(Level.WARNING,
+                        "CoT TLS handshake timed out, port:" + listener.getPort());
+                close(key);
+            }
+        }
+    }//closeExpiredHandshakes
+
+    /**
+     * Close a client connection and release its decoder. The decoder may
+     * still be flushed.
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        Object attachment = key.attachment();
+        if (attachment instanceof CoTtlsConnection) {
+            ((CoTtlsConnection) attachment).close((SocketChannel) key.channel());
+        }
+        closeQuietly(key.channel());
+        if (attachment instanceof CoTtlsConnection) {
+            listener.closeConnection(((CoTtlsConnection) attachment).getDecoder());
+        } else if (attachment != null) {
+            listener.closeConnection((CoTconnectionDecoder) attachment);
+        }
+    }//close(SelectionKey key)
+
+    private void close() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            selector.close();
+        } catch (ClosedSelectorException ex) {
+            // already closed
+        } catch (IOException ex) {
+            Logger.getLogger(CoTtcpSelector.class.getName()).log(Level.WARNING, null, ex);
+        }
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            closeQuietly(channel);
+        }
+    }//close
+
+    private static void closeQuietly(java.nio.channels.Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // nothing left to do with a channel that fails to close
+        }
+    }//closeQuietly
+}// class CoTtcpSelector
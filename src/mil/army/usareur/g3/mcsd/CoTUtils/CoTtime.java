@@ -0,0 +1,341 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts the times of CoT events, xs:dateTime values such as
+ * "2018-09-24T11:34:28.000Z", to milliseconds since the epoch and back
+ * without SimpleDateFormat, Calendar or DatatypeConverter. Every event
+ * carries three times, time, start and stale; parsing them with the date
+ * classes of the JDK creates several objects per time.
+ *
+ * The parser reads a String or the received bytes and creates no objects.
+ * The common layout, UTC with milliseconds, takes a fast path with fixed
+ * offsets; the other forms of xs:dateTime are read as well: no or more
+ * fraction digits, which are truncated to milliseconds, a time zone offset
+ * such as "+01:00", or no time zone, which is taken as UTC. The formatter
+ * always writes the common layout in UTC.
+ *
+ * Usage:
+ * <pre>
+ * long stale = CoTtime.parse(event.getStale());
+ * String time = CoTtime.format(System.currentTimeMillis());
+ * </pre>
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+public class CoTtime {
+
+    /**
+     * The length of a time in the common layout, yyyy-MM-ddTHH:mm:ss.SSSZ.
+     */
+    public static final int LENGTH = 24;
+    private static final long MILLIS_PER_DAY = 86400000L;
+    // days from 0000-03-01 to 1970-01-01
+    private static final int EPOCH_DAYS = 719468;
+    private static final int DAYS_PER_ERA = 146097;
+
+    /**
+     * A CharSequence view of bytes, so the bytes and Strings share one
+     * parser.
+     */
+    private static class ByteChars implements CharSequence {
+
+        ByteBuffer buffer;
+        int start;
+        int end;
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().substring(from, to);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }// class ByteChars
+
+    private static final ThreadLocal<ByteChars> BYTE_CHARS = new ThreadLocal<ByteChars>() {
+        @Override
+        protected ByteChars initialValue() {
+            return new ByteChars();
+        }
+    };
+
+    private CoTtime() {
+        // static helpers only
+    }
+
+    /**
+     * Parse a CoT time.
+     *
+     * @param time the xs:dateTime, e.g. "2018-09-24T11:34:28.000Z"
+     * @return the milliseconds since the epoch
+     * @throws IllegalArgumentException if the time is malformed
+     */
+    public static long parse(CharSequence time) {
+        return parseTime(time);
+    }//parse(CharSequence time)
+
+    /**
+     * Parse a CoT time from bytes, e.g. an attribute value in a received
+     * event.
+     *
+     * @param buffer the buffer holding the ASCII bytes of the time, its
+     * position is not changed
+     * @param start the index of the first byte
+     * @param end the index after the last byte
+     * @return the milliseconds since the epoch
+     * @throws IllegalArgumentException if the time is malformed
+     */
+    public static long parse(ByteBuffer buffer, int start, int end) {
+        ByteChars chars = BYTE_CHARS.get();
+        chars.buffer = buffer;
+        chars.start = start;
+        chars.end = end;
+        try {
+            return parseTime(chars);
+        } finally {
+            chars.buffer = null;
+        }
+    }//parse(ByteBuffer buffer, int start, int end)
+
+    private static long parseTime(CharSequence time) {
+        int length = time.length();
+        if (length == LENGTH && time.charAt(4) == '-' && time.charAt(7) == '-' && time.charAt(10) == 'T'
+                && time.charAt(13) == ':' && time.charAt(16) == ':' && time.charAt(19) == '.'
+                && time.charAt(23) == 'Z') {
+            // the fast path of yyyy-MM-ddTHH:mm:ss.SSSZ
+            return toMillis(time, digits(time, 0, 4), digits(time, 5, 2), digits(time, 8, 2),
+                    digits(time, 11, 2), digits(time, 14, 2), digits(time, 17, 2), digits(time, 20, 3), 0);
+        }
+        int i = 0;
+        boolean negative = length > 0 && time.charAt(0) == '-';
+        if (negative) {
+            i++;
+        }
+        int yearEnd = i;
+        while (yearEnd < length && isDigit(time.charAt(yearEnd))) {
+            yearEnd++;
+        }
+        if (yearEnd - i < 4 || yearEnd - i > 6 || length < yearEnd + 15) {
+            throw malformed(time);
+        }
+        int year = digits(time, i, yearEnd - i);
+        i = yearEnd;
+        expect(time, i, '-');
+        int month = digits(time, i + 1, 2);
+        expect(time, i + 3, '-');
+        int day = digits(time, i + 4, 2);
+        expect(time, i + 6, 'T');
+        int hour = digits(time, i + 7, 2);
+        expect(time, i + 9, ':');
+        int minute = digits(time, i + 10, 2);
+        expect(time, i + 12, ':');
+        int second = digits(time, i + 13, 2);
+        i += 15;
+        int millis = 0;
+        if (i < length && time.charAt(i) == '.') {
+            int fractionEnd = ++i;
+            while (fractionEnd < length && isDigit(time.charAt(fractionEnd))) {
+                fractionEnd++;
+            }
+            if (fractionEnd == i) {
+                throw malformed(time);
+            }
+            // milliseconds from the first three digits, further digits are truncated
+            for (int scale = 100; i < fractionEnd; i++, scale /= 10) {
+                millis += (time.charAt(i) - '0') * scale;
+            }
+        }
+        int offsetMinutes = 0;
+        if (i < length) {
+            char zone = time.charAt(i);
+            if (zone == 'Z' && i + 1 == length) {
+                offsetMinutes = 0;
+            } else if ((zone == '+' || zone == '-') && i + 6 == length) {
+                expect(time, i + 3, ':');
+                int offsetHours = digits(time, i + 1, 2);
+                int minutes = digits(time, i + 4, 2);
+                if (offsetHours > 14 || minutes > 59) {
+                    throw malformed(time);
+                }
+                offsetMinutes = (offsetHours * 60 + minutes) * (zone == '-' ? -1 : 1);
+            } else {
+                throw malformed(time);
+            }
+        }
+        return toMillis(time, negative ? -year : year, month, day, hour, minute, second, millis, offsetMinutes);
+    }//parseTime
+
+    private static long toMillis(CharSequence time, int year, int month, int day, int hour, int minute, int second,
+            int millis, int offsetMinutes) {
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || minute > 59 || second > 59
+                || hour > 24 || hour == 24 && (minute != 0 || second != 0 || millis != 0)) {
+            throw malformed(time);
+        }
+        long days = toDays(year, month, day);
+        return days * MILLIS_PER_DAY + ((hour * 60L + minute - offsetMinutes) * 60 + second) * 1000 + millis;
+    }//toMillis
+
+    /**
+     * Format milliseconds since the epoch as a CoT time in UTC.
+     *
+     * @param millis the milliseconds since the epoch
+     * @return the time, e.g. "2018-09-24T11:34:28.000Z"
+     * @throws IllegalArgumentException if the year is not between 0 and 9999
+     */
+    public static String format(long millis) {
+        byte[] bytes = new byte[LENGTH];
+        format(millis, bytes, 0);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }//format(long millis)
+
+    /**
+     * Format milliseconds since the epoch as a CoT time in UTC into a reused
+     * array, e.g. the buffer of an encoder.
+     *
+     * @param millis the milliseconds since the epoch
+     * @param out the array to write LENGTH ASCII bytes to
+     * @param offset the index of the first byte
+     * @return the index after the last byte written
+     * @throws IllegalArgumentException if the year is not between 0 and 9999
+     */
+    public static int format(long millis, byte[] out, int offset) {
+        long days = millis / MILLIS_PER_DAY;
+        long millisOfDay = millis % MILLIS_PER_DAY;
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+        // the civil date of the days since the epoch, see toDays()
+        long z = days + EPOCH_DAYS;
+        long era = (z >= 0 ? z : z - DAYS_PER_ERA + 1) / DAYS_PER_ERA;
+        int dayOfEra = (int) (z - era * DAYS_PER_ERA);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            throw new IllegalArgumentException("CoT time out of range " + millis);
+        }
+        int value = (int) millisOfDay;
+        write(out, offset, (int) year, 4);
+        out[offset + 4] = '-';
+        write(out, offset + 5, month, 2);
+        out[offset + 7] = '-';
+        write(out, offset + 8, day, 2);
+        out[offset + 10] = 'T';
+        write(out, offset + 11, value / 3600000, 2);
+        out[offset + 13] = ':';
+        write(out, offset + 14, value / 60000 % 60, 2);
+        out[offset + 16] = ':';
+        write(out, offset + 17, value / 1000 % 60, 2);
+        out[offset + 19] = '.';
+        write(out, offset + 20, value % 1000, 3);
+        out[offset + 23] = 'Z';
+        return offset + LENGTH;
+    }//format(long millis, byte[] out, int offset)
+
+    /**
+     * The days since 1970-01-01 of a date of the proleptic Gregorian
+     * calendar, counted in eras of 400 years from 0000-03-01 so that the leap
+     * day ends a year.
+     */
+    private static long toDays(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = (int) (y - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * DAYS_PER_ERA + dayOfEra - EPOCH_DAYS;
+    }//toDays
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }//daysInMonth
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }//isDigit
+
+    private static int digits(CharSequence time, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = time.charAt(i);
+            if (!isDigit(c)) {
+                throw malformed(time);
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }//digits
+
+    private static void expect(CharSequence time, int index, char c) {
+        if (time.charAt(index) != c) {
+            throw malformed(time);
+        }
+    }//expect
+
+    private static void write(byte[] out, int offset, int value, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }//write
+
+    private static IllegalArgumentException malformed(CharSequence time) {
+        return new IllegalArgumentException("Malformed CoT time " + time);
+    }//malformed
+}// class CoTtime
@@ -0,0 +1,302 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Martin Dudel.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package mil.army.usareur.g3.mcsd.CoTUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * One TLS client connection of a CoTtcpListener in TLS mode. The connection
+ * runs the handshake and decrypts the received records with an SSLEngine on
+ * the non-blocking I/O thread of its CoTtcpSelector and feeds the plain text
+ * to the decoder of the connection.
+ *
+ * The connection holds at most one TLS record of received bytes. While
+ * handshake records wait for the client to read them nothing more is read,
+ * so a client that only writes cannot make the buffers grow. A handshake that
+ * does not finish within HANDSHAKE_TIMEOUT_MILLIS is given up, and a
+ * close_notify is sent when the connection is closed.
+ *
+ * @author martin.c.dudel.civ@mail.mil
+ */
+class CoTtlsConnection {
+
+    /**
+     * The time a client has to complete the TLS handshake.
+     */
+    static final long HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final CoTconnectionDecoder decoder;
+    // received TLS records, in write mode
+    private ByteBuffer netIn;
+    // TLS records still to be sent, in read mode
+    private ByteBuffer netOut;
+    // decrypted application data, in write mode
+    private ByteBuffer appIn;
+    private boolean closed = false;
+    private boolean handshaking = true;
+    private final long handshakeDeadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MILLIS;
+
+    /**
+     * Create a TLS connection and start the handshake.
+     *
+     * @param engine a server mode SSLEngine for the connection
+     * @param decoder the decoder the decrypted bytes are fed to
+     * @throws SSLException if the handshake cannot be started
+     */
+    CoTtlsConnection(SSLEngine engine, CoTconnectionDecoder decoder) throws SSLException {
+        this.engine = engine;
+        this.decoder = decoder;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut.flip();
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        engine.beginHandshake();
+    }//CoTtlsConnection
+
+    /**
+     * Read what the channel has received, continue the handshake and dispatch
+     * the complete CoT events.
+     *
+     * @param channel the non-blocking channel of the connection
+     * @return false once the connection is closed
+     * @throws IOException if reading the channel or decrypting fails
+     */
+    boolean read(SocketChannel channel) throws IOException {
+        int count;
+        while (true) {
+            if (hasPendingOutput()) {
+                // read again once the client has taken the handshake records
+                return true;
+            }
+            if (!netIn.hasRemaining()) {
+                int size = engine.getSession().getPacketBufferSize();
+                if (netIn.capacity() >= size) {
+                    throw new SSLException("TLS record larger than " + size + " bytes");
+                }
+                // the session allows larger records since the handshake
+                netIn = enlarge(netIn, size);
+            }
+            if ((count = channel.read(netIn)) <= 0) {
+                break;
+            }
+            process(channel);
+            if (closed) {
+                return false;
+            }
+        }//while
+        if (count < 0) {
+            try {
+                engine.closeInbound();
+            } catch (SSLException ex) {
+                // the client closed the connection without a close_notify
+            }
+            closed = true;
+        }
+        return !closed;
+    }//read
+
+    /**
+     * Send the TLS records that did not fit into the socket buffer and
+     * continue the handshake.
+     *
+     * @param channel the non-blocking channel of the connection
+     * @return false once the connection is closed
+     * @throws IOException if writing the channel fails
+     */
+    boolean write(SocketChannel channel) throws IOException {
+        if (send(channel)) {
+            process(channel);
+        }
+        return !closed;
+    }//write
+
+    /**
+     *
+     * @return true if TLS records are waiting for the channel to be writable
+     */
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }//hasPendingOutput
+
+    /**
+     * @param now the current time in milliseconds
+     * @return true if the handshake has not completed in time
+     */
+    boolean isHandshakeExpired(long now) {
+        return handshaking && now > handshakeDeadline;
+    }//isHandshakeExpired
+
+    /**
+     * Send a close_notify to the client if the socket buffer takes it. The
+     * channel is closed by the caller.
+     *
+     * @param channel the non-blocking channel of the connection
+     */
+    void close(SocketChannel channel) {
+        engine.closeOutbound();
+        try {
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            send(channel);
+        } catch (IOException ex) {
+            // the client is gone, nothing left to tell it
+        }
+        closed = true;
+    }//close
+
+    /**
+     * Run the engine until it needs more input from the client or the socket
+     * buffer is full.
+     */
+    private void process(SocketChannel channel) throws IOException {
+        while (!closed) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                handshaking = false;
+            }
+            switch (status) {
+                case NEED_TASK:
+                    // certificate checks, run on the I/O thread
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    if (!wrap(channel)) {
+                        return;
+                    }
+                    break;
+                default:
+                    if (!unwrap()) {
+                        return;
+                    }
+            }//switch
+        }//while
+    }//process
+
+    /**
+     * Produce the next handshake record and send it.
+     *
+     * @return true if the record was sent completely
+     */
+    private boolean wrap(SocketChannel channel) throws IOException {
+        if (netOut.hasRemaining() && !send(channel)) {
+            return false;
+        }
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(EMPTY, netOut);
+        netOut.flip();
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut.flip();
+                return true;
+            case CLOSED:
+                send(channel);
+                closed = true;
+                return false;
+            default:
+                return send(channel);
+        }
+    }//wrap
+
+    /**
+     * Decrypt the received records and feed the plain text to the decoder.
+     *
+     * @return true if the engine made progress and may continue
+     */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result = engine.unwrap(netIn, appIn);
+        netIn.compact();
+        if (appIn.position() > 0) {
+            appIn.flip();
+            decoder.feed(appIn);
+            appIn.clear();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                return true;
+            case BUFFER_UNDERFLOW:
+                // wait for the rest of the record
+                return false;
+            case CLOSED:
+                closed = true;
+                return false;
+            default:
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0
+                        || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                        || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+        }
+    }//unwrap
+
+    /**
+     * @return true if all pending records were written
+     */
+    private boolean send(SocketChannel channel) throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }//send
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        buffer.flip();
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, buffer.remaining()));
+        larger.put(buffer);
+        return larger;
+    }//enlarge
+
+    /**
+     *
+     * @return the decoder of the connection
+     */
+    CoTconnectionDecoder getDecoder() {
+        return decoder;
+    }//getDecoder
+
+    /**
+     * Dispatch a last event the client did not terminate.
+     *
+     * @throws IOException if a gzip stream ends before it is complete
+     */
+    void flush() throws IOException {
+        decoder.flush();
+    }//flush
+}// class CoTtlsConnection
@@ -24,6 +24,7 @@
 package mil.army.usareur.g3.mcsd.CoTUtils;
 
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -31,7 +32,11 @@ import java.util.HashMap;
  */
 public class CoTtypes {
 
+    // bound of the descriptions cached by the CoT type of the events
+    private static final int MAX_CACHED_TYPES = 4096;
+
     HashMap<String, String> cotTypeMap = new HashMap<>();
+    private final ConcurrentHashMap<String, String> typeDescriptions = new ConcurrentHashMap<>();
 
     public CoTtypes() {
         cotTypeMap.put("a-.-A", "Air Track");
@@ -2251,4 +2256,43 @@ public class CoTtypes {
             return "null";
         }
     }//getDescription
+
+    /**
+     * Get the description of the CoT type of an event, e.g. "a-f-G-E-V" of a
+     * friendly ground vehicle. The type is looked up with the affiliation
+     * replaced by ".", as in "a-.-G-E-V". The descriptions are cached by
+     * type, so at steady state a lookup creates no objects; the types of the
+     * parsed events are shared instances of the CoTstringPool and their hash
+     * is computed once.
+     *
+     * @param type The CoT type
+     * @return a String of the type's human readable description
+     */
+    public String getTypeDescription(String type) {
+        String description = typeDescriptions.get(type);
+        if (description == null) {
+            StringBuilder t = new StringBuilder(type);
+            // a-.- Atom
+            // b-g-. Tactical graphics
+            // b-r-. Intelligence
+            // b-x Non-CoT object
+            // b-w Weather
+            // b Bits
+            // c Capability
+            // t Tasking
+            // y Reply
+            // r CBRN
+            if (type.charAt(0) == 'a') {
+                // a atom
+                t.setCharAt(2, '.');
+            } else if (type.startsWith("b-g") || type.startsWith("b-r")) {
+                t.setCharAt(4, '.');
+            }
+            description = getDescription(t.toString());
+            if (typeDescriptions.size() < MAX_CACHED_TYPES) {
+                typeDescriptions.put(type, description);
+            }
+        }
+        return description;
+    }//getTypeDescription
 }//CotTypes
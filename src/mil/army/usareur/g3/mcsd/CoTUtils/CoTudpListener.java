@@ -24,9 +24,21 @@
 package mil.army.usareur.g3.mcsd.CoTUtils;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,13 +48,28 @@ import java.util.logging.Logger;
  */
 public class CoTudpListener extends Thread {
 
+    /**
+     * The multicast group ATAK and WinTAK devices publish their situational
+     * awareness (SA) on.
+     */
+    public static final String SA_MULTICAST_GROUP = "239.2.3.1";
+    /**
+     * The port of the SA multicast group.
+     */
+    public static final int SA_MULTICAST_PORT = 6969;
+
     private int cotUdpPort = 9999;
     private boolean debug = false;
     private int packetSize = 1024;
+    private int socketCount = 1;
     private volatile boolean runFlag = true;
-    private DatagramSocket serverSocket;
+    private volatile DatagramChannel[] serverChannels;
+    private CoTbufferPool bufferPool;
+    private final List<String[]> multicastGroups = new ArrayList<>();
     private CoTparser cotParser;
     private boolean customParserSet = false;
+    private CoTeventSink eventSink;
+    private CoTdeadLetters deadLetters = new CoTdeadLetters();
 
     /**
      * Create a CoT UDP listener on the default port of 9999
@@ -64,6 +91,36 @@ public class CoTudpListener extends Thread {
         customParserSet = true;
     }
 
+    /**
+     * Set the stage the received CoT events are handed to, e.g. a
+     * CoTringBuffer that decouples the listener thread from the CoT parser.
+     * By default the events are handed straight to the CoT parser.
+     *
+     * @param sink the stage that receives the CoT events
+     */
+    public void setEventSink(CoTeventSink sink) {
+        this.eventSink = sink;
+    }//setEventSink
+
+    /**
+     * Set the dead letters that receive the datagrams the event handler
+     * failed on. By default the rejects are only counted and logged.
+     *
+     * @param deadLetters the dead letters of the listener
+     */
+    public void setDeadLetters(CoTdeadLetters deadLetters) {
+        this.deadLetters = deadLetters;
+    }//setDeadLetters
+
+    /**
+     *
+     * @return the dead letters of the listener, e.g. to read the rejects per
+     * second
+     */
+    public CoTdeadLetters getDeadLetters() {
+        return deadLetters;
+    }//getDeadLetters
+
     /**
      * Set the maximum packet size that the CoT UDP parse will handle. Bytes
      * that exceed this threshold will be truncated. The maximum expected UDP
@@ -77,6 +134,47 @@ public class CoTudpListener extends Thread {
         this.packetSize = packetSize;
     }//setPacketSize
 
+    /**
+     * Set the number of sockets the listener opens on its port. Each socket
+     * has its own receive thread and the operating system balances the
+     * datagrams across the sockets (SO_REUSEPORT), which spreads receiving and
+     * parsing over several cores. Note that the CoT event handler is then
+     * called from several threads concurrently. SO_REUSEPORT requires Java 9
+     * and an operating system that supports it, otherwise a single socket is
+     * used. The default is 1 socket. Must be set before the listener is
+     * started.
+     *
+     * @param socketCount an integer number of sockets, at least 1
+     */
+    public void setSocketCount(int socketCount) {
+        this.socketCount = Math.max(1, socketCount);
+    }//setSocketCount
+
+    /**
+     * Join a multicast group on all network interfaces that are up and support
+     * multicast. A listener that joins one or more groups receives the
+     * datagrams sent to those groups on its port as well as unicast
+     * datagrams. Must be called before the listener is started.
+     *
+     * @param group the multicast group address, e.g. SA_MULTICAST_GROUP
+     */
+    public void addMulticastGroup(String group) {
+        addMulticastGroup(group, null);
+    }//addMulticastGroup(String group)
+
+    /**
+     * Join a multicast group on one network interface. Use the loopback
+     * interface ("lo" on Linux) to receive multicast sent from the same
+     * host. Must be called before the listener is started.
+     *
+     * @param group the multicast group address, e.g. SA_MULTICAST_GROUP
+     * @param networkInterface the name of the network interface, e.g. "eth0",
+     * or null for all interfaces that support multicast
+     */
+    public void addMulticastGroup(String group, String networkInterface) {
+        multicastGroups.add(new String[]{group, networkInterface});
+    }//addMulticastGroup(String group, String networkInterface)
+
     /**
      * Create a CoT UDP listener on the desired port. The default packet size is
      * 1024 bytes.
@@ -132,6 +230,26 @@ public class CoTudpListener extends Thread {
         debugToConsole("Maximum CoT UDP packet size: " + this.packetSize);
     }//CotUdpListener(int port, int packetSize, boolean debug)  
 
+    /**
+     * Create a CoT UDP listener on the desired port with a maximum packet size
+     * that receives on several sockets and set the debug statement option.
+     * Debug statements are not printed by default. See setSocketCount().
+     *
+     * @param port an integer port number
+     * @param packetSize an integer representing the maximum packet size
+     * @param socketCount an integer number of sockets sharing the port
+     * @param debug a boolean indicating whether to print out debug statements
+     */
+    public CoTudpListener(int port, int packetSize, int socketCount, boolean debug) {
+        cotUdpPort = port;
+        this.packetSize = packetSize;
+        this.socketCount = Math.max(1, socketCount);
+        this.debug = debug;
+        debugToConsole("CoT UDP Listener port: " + cotUdpPort);
+        debugToConsole("Maximum CoT UDP packet size: " + this.packetSize);
+        debugToConsole("CoT UDP Listener sockets: " + this.socketCount);
+    }//CotUdpListener(int port, int packetSize, int socketCount, boolean debug)
+
     private void debugToConsole(String msg) {
         if (this.debug) {
             System.out.println(msg);
@@ -145,7 +263,7 @@ public class CoTudpListener extends Thread {
     public void stopThread() {
         debugToConsole("CoT UDP Listener received stop request, port:" + cotUdpPort);
         this.runFlag = false;
-        serverSocket.close();
+        closeSockets();
     }//stopThread
 
     /**
@@ -156,41 +274,198 @@ public class CoTudpListener extends Thread {
         return this.cotUdpPort;
     }//getPort
 
+    /**
+     * Look up the SO_REUSEPORT socket option, which exists since Java 9.
+     *
+     * @return the option or null if the Java runtime does not provide it
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }//reusePortOption
+
+    private void openSockets() throws IOException {
+        int count = socketCount;
+        ProtocolFamily family = null;
+        if (!multicastGroups.isEmpty()) {
+            if (count > 1) {
+                // every socket of a port receives its own copy of a multicast datagram
+                Logger.getLogger(CoTudpListener.class.getName()).log(Level.WARNING,
+                        "Multicast listeners use a single socket, port {0}", cotUdpPort);
+                count = 1;
+            }
+            family = InetAddress.getByName(multicastGroups.get(0)[0]) instanceof Inet4Address
+                    ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+        }
+        SocketOption<Boolean> reusePort = reusePortOption();
+        DatagramChannel[] channels = new DatagramChannel[count];
+        for (int i = 0; i < count; i++) {
+            DatagramChannel channel = family == null ? DatagramChannel.open() : DatagramChannel.open(family);
+            if (family != null) {
+                // other applications on the host may listen to the same group
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            }
+            if (count > 1) {
+                if (reusePort == null || !channel.supportedOptions().contains(reusePort)) {
+                    Logger.getLogger(CoTudpListener.class.getName()).log(Level.WARNING,
+                            "SO_REUSEPORT is not supported, using a single socket on port {0}", cotUdpPort);
+                    count = 1;
+                    channels = new DatagramChannel[1];
+                } else {
+                    channel.setOption(reusePort, true);
+                }
+            }
+            channel.bind(new InetSocketAddress(cotUdpPort));
+            channels[i] = channel;
+            joinMulticastGroups(channel);
+        }
+        serverChannels = channels;
+    }//openSockets
+
+    private void joinMulticastGroups(DatagramChannel channel) throws IOException {
+        for (String[] multicastGroup : multicastGroups) {
+            InetAddress group = InetAddress.getByName(multicastGroup[0]);
+            if (!group.isMulticastAddress()) {
+                throw new IOException(multicastGroup[0] + " is not a multicast address");
+            }
+            if (multicastGroup[1] != null) {
+                NetworkInterface networkInterface = NetworkInterface.getByName(multicastGroup[1]);
+                if (networkInterface == null) {
+                    throw new IOException("Unknown network interface " + multicastGroup[1]);
+                }
+                channel.join(group, networkInterface);
+                debugToConsole("CoT UDP Listener joined " + multicastGroup[0] + " on " + multicastGroup[1] + ", port:" + cotUdpPort);
+            } else {
+                for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                    if (!networkInterface.isUp() || !networkInterface.supportsMulticast()) {
+                        continue;
+                    }
+                    try {
+                        channel.join(group, networkInterface);
+                        debugToConsole("CoT UDP Listener joined " + multicastGroup[0] + " on " + networkInterface.getName() + ", port:" + cotUdpPort);
+                    } catch (IOException ex) {
+                        Logger.getLogger(CoTudpListener.class.getName()).log(Level.WARNING,
+                                "Unable to join " + multicastGroup[0] + " on " + networkInterface.getName(), ex);
+                    }
+                }
+            }
+        }
+    }//joinMulticastGroups
+
+    private void closeSockets() {
+        DatagramChannel[] channels = serverChannels;
+        if (channels != null) {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
+                        Logger.getLogger(CoTudpListener.class.getName()).log(Level.WARNING, null, ex);
+                    }
+                }
+            }
+        }
+    }//closeSockets
+
     @Override
     public void run() {
-        byte[] rcvData = new byte[packetSize];
         if (!this.customParserSet) {
             cotParser = new CoTparser();  // Create a default Cursor on Target parser
         }
+        if (eventSink == null) {
+            eventSink = cotParser;
+        }
+        try {
+            openSockets();
+            bufferPool = new CoTbufferPool(packetSize, 2 * serverChannels.length);
+            debugToConsole("CoT UDP Listener thread started, port:" + cotUdpPort + " sockets:" + serverChannels.length);
+            // Every additional socket gets its own receive thread
+            for (int i = 1; i < serverChannels.length; i++) {
+                final DatagramChannel channel = serverChannels[i];
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        receive(channel);
+                    }
+                }, "CoT UDP " + cotUdpPort + "-" + i).start();
+            }
+            receive(serverChannels[0]);
+        } catch (IOException ex) {
+            Logger.getLogger(CoTudpListener.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        closeSockets();
+        debugToConsole("CoT UDP Listener thread closed, port:" + cotUdpPort);
+    }//run
+
+    /**
+     * Print a datagram in debug mode. A datagram the dump cannot handle is
+     * only logged, it still goes to the event sink.
+     */
+    private void dumpCoTevent(ByteBuffer rcvData) {
+        int position = rcvData.position();
+        int limit = rcvData.limit();
+        try {
+            String cotXml = cotParser.decodeCoTevent(rcvData);
+            debugToConsole("UDP ========== Begin message:\n" + cotXml.trim() + "\nUDP ========== End message");
+            cotParser.dumpCoTevent(cotXml);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(CoTudpListener.class.getName()).log(Level.WARNING, "CoT datagram cannot be dumped, port:" + cotUdpPort, ex);
+        } finally {
+            rcvData.limit(limit).position(position);
+        }
+    }//dumpCoTevent
+
+    /**
+     * Receive datagrams into pooled buffers and hand them to the event sink,
+     * by default the byte oriented CoT event handler of the parser. Only the
+     * received bytes are handed on, and no objects are created per datagram
+     * unless debug statements are printed. A datagram the event sink fails on
+     * is handed to the dead letters.
+     *
+     * @param channel the channel to receive on
+     */
+    private void receive(DatagramChannel channel) {
         try {
-            serverSocket = new DatagramSocket(cotUdpPort);
-            debugToConsole("CoT UDP Listener thread started, port:" + cotUdpPort);
             while (this.runFlag) {
-                DatagramPacket rcvPacket = new DatagramPacket(rcvData, rcvData.length);
-                serverSocket.receive(rcvPacket);
-                String cotXml = new String(rcvPacket.getData());
-                debugToConsole("UDP ========== Begin message:\n" + cotXml.trim() + "\nUDP ========== End message");
-                if (this.debug) {
-                    cotParser.dumpCoTevent(cotXml);
+                ByteBuffer rcvData = bufferPool.acquire();
+                try {
+                    SocketAddress source = channel.receive(rcvData);
+                    rcvData.flip();
+                    int received = rcvData.limit();
+                    if (this.debug) {
+                        dumpCoTevent(rcvData);
+                    }
+                    try {
+                        // The CoT message is handled here
+                        eventSink.onCoTevent(rcvData, source);
+                    } catch (RuntimeException ex) {
+                        // one bad datagram must not stop the receive thread
+                        rcvData.limit(received).position(0);
+                        deadLetters.reject(rcvData, source, ex);
+                    }
+                } finally {
+                    bufferPool.release(rcvData);
                 }
-                // The CoT message is handled here                
-                cotParser.coTeventHandler(cotXml);
-                // reset the byte array for the mext UDP packet
-                rcvData = new byte[packetSize];
             }//while
-        } catch (SocketException ex) {
+        } catch (ClosedChannelException ex) {
             if (this.runFlag) {
                 Logger.getLogger(CoTudpListener.class.getName()).log(Level.SEVERE, null, ex);
             } else {
-                serverSocket.close();
                 debugToConsole("CoT UDP Listener socket closed, port:" + cotUdpPort);
             }
         } catch (IOException ex) {
             Logger.getLogger(CoTudpListener.class.getName()).log(Level.SEVERE, null, ex);
         }//try catch
-        debugToConsole("CoT UDP Listener thread closed, port:" + cotUdpPort + " socket closed:" + serverSocket.isClosed());
-        if (!serverSocket.isClosed()) {
-            serverSocket.close();
+        if (channel.isOpen()) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(CoTudpListener.class.getName()).log(Level.WARNING, null, ex);
+            }
         }// ensure socket is closed
-    }//run
+    }//receive
 }// class CoTudpListener